@@ -0,0 +1,91 @@
+package fi.solita.clamav;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the INSTREAM chunk size for each scan.
+ * <p>
+ * Inputs of known length that fit into the largest candidate are sent as a single chunk. For the rest, the tuner
+ * keeps an exponentially weighted average of the throughput seen with each candidate size, mostly uses the best one
+ * and now and then tries another, so the choice follows changes in network and clamd load.
+ */
+final class ChunkSizeTuner {
+
+  static final int MIN_TUNED_CHUNK_SIZE = 2048;
+  // how often a candidate other than the best one is tried
+  private static final double EXPLORE_PROBABILITY = 0.05;
+  // weight of the latest observation in the throughput averages
+  private static final double SMOOTHING = 0.2;
+
+  private final int[] candidates;
+  private final double[] throughput;
+
+  /**
+   * @param maxChunkSize largest chunk size to try, candidates are the powers of two between 2 KiB and this
+   */
+  ChunkSizeTuner(int maxChunkSize) {
+    int count = 1;
+    while (count < 31 && ((long) MIN_TUNED_CHUNK_SIZE << count) <= maxChunkSize) {
+      count++;
+    }
+    candidates = new int[count];
+    for (int i = 0; i < count; i++) {
+      candidates[i] = MIN_TUNED_CHUNK_SIZE << i;
+    }
+    throughput = new double[count];
+  }
+
+  /**
+   * @param knownLength length of the input, or -1 if not known
+   */
+  int chunkSize(long knownLength) {
+    int largest = candidates[candidates.length - 1];
+    if (knownLength >= 0 && knownLength <= largest) {
+      return (int) Math.max(knownLength, 1);
+    }
+    synchronized (this) {
+      for (int i = 0; i < candidates.length; i++) {
+        if (throughput[i] == 0) {
+          return candidates[i];
+        }
+      }
+      if (ThreadLocalRandom.current().nextDouble() < EXPLORE_PROBABILITY) {
+        return candidates[ThreadLocalRandom.current().nextInt(candidates.length)];
+      }
+      int best = 0;
+      for (int i = 1; i < candidates.length; i++) {
+        if (throughput[i] > throughput[best]) {
+          best = i;
+        }
+      }
+      return candidates[best];
+    }
+  }
+
+  /**
+   * Records the outcome of a scan. Scans that fit into a single chunk tell nothing about chunking and are ignored.
+   */
+  void record(int chunkSize, long bytes, long nanos) {
+    int i = indexOf(chunkSize);
+    if (i < 0 || bytes <= chunkSize || nanos <= 0) {
+      return;
+    }
+    double observed = (double) bytes / nanos;
+    synchronized (this) {
+      throughput[i] = throughput[i] == 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * throughput[i];
+    }
+  }
+
+  int[] candidates() {
+    return candidates.clone();
+  }
+
+  private int indexOf(int chunkSize) {
+    for (int i = 0; i < candidates.length; i++) {
+      if (candidates[i] == chunkSize) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -1,27 +1,57 @@
 package fi.solita.clamav;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Simple client for ClamAV's clamd scanner. Provides straightforward instream scanning.
+ * <p>
+ * By default commands run over pooled IDSESSION connections, so a client should be created once, shared between
+ * threads and closed when no longer needed. See {@link ClamAVClientConfig#setMaxIdleSessions(int)}.
+ * <p>
+ * Results can be cached by content, see {@link ClamAVClientConfig#setResultCacheSize(int)}.
  */
-public class ClamAVClient {
+public class ClamAVClient implements Closeable {
 
   private final String hostName;
   private final int port;
+  private final ClamdTransport transport;
   private final int readTimeout;
   private final int connectTimeout;
-
+  private final SessionPool pool;
   // "do not exceed StreamMaxLength as defined in clamd.conf, otherwise clamd will reply with INSTREAM size limit exceeded and close the connection."
-  private static final int CHUNK_SIZE = 2048;
-  private static final int DEFAULT_READ_TIMEOUT = 500;
-  private static final int DEFAULT_CONNECT_TIMEOUT = 500;
-  private static final int PONG_REPLY_LEN = 4;
+  private final int chunkSize;
+  private final ChunkSizeTuner chunkSizeTuner;
+  // codecs for scans over connections of their own, sessions have a codec each
+  private final BlockingQueue<InstreamCodec> codecs = new ArrayBlockingQueue<>(CODEC_POOL_SIZE);
+  private final int eventLoopThreads;
+  private final int maxReplySize;
+  private final ScanResultCache cache;
+  private final ScanCoalescer coalescer;
+  private final VersionWatcher versionWatcher;
+  // digests content for the cache, coalescing and results, null if none of them needs it
+  private final ContentDigest digests;
+  private final boolean contentDigest;
+  private NioScanEngine nioEngine;
+  private boolean closed;
+
+  private static final int CODEC_POOL_SIZE = 8;
+  private static final byte[] PONG = asBytes("PONG");
+  private static final byte[] SIZE_LIMIT_EXCEEDED = asBytes("INSTREAM size limit exceeded.");
 
   /**
    * @param hostName The hostname of the server running clamav-daemon
@@ -30,13 +60,7 @@ public class ClamAVClient {
    * @param connectTimeout  zero means infinite connect timeout. Not a good idea, but will be accepted.
    */
   public ClamAVClient(String hostName, int port, int readTimeout, int connectTimeout) {
-    if (readTimeout < 0 || connectTimeout < 0) {
-      throw new IllegalArgumentException("Negative timeout value does not make sense.");
-    }
-    this.hostName = hostName;
-    this.port = port;
-    this.readTimeout = readTimeout;
-    this.connectTimeout = connectTimeout;
+    this(hostName, port, new ClamAVClientConfig().setReadTimeout(readTimeout).setConnectTimeout(connectTimeout));
   }
 
   /**
@@ -45,11 +69,91 @@ public class ClamAVClient {
    * @param readTimeout  zero means infinite read timeout. Not a good idea, but will be accepted.
    */
   public ClamAVClient(String hostName, int port, int readTimeout) {
-    this(hostName, port, readTimeout, DEFAULT_CONNECT_TIMEOUT);
+    this(hostName, port, readTimeout, ClamAVClientConfig.DEFAULT_CONNECT_TIMEOUT);
   }
 
   public ClamAVClient(String hostName, int port) {
-    this(hostName, port, DEFAULT_READ_TIMEOUT);
+    this(hostName, port, ClamAVClientConfig.DEFAULT_READ_TIMEOUT);
+  }
+
+  /**
+   * @param hostName The hostname of the server running clamav-daemon
+   * @param port     The port that clamav-daemon listens to(By default it might not listen to a port. Check your clamav configuration).
+   * @param config   timeouts, connection pooling and chunking settings
+   */
+  public ClamAVClient(String hostName, int port, ClamAVClientConfig config) {
+    this(hostName, port, null, config);
+  }
+
+  /**
+   * Connects to clamd over a Unix domain socket. See {@link UnixSocketTransport}.
+   *
+   * @param unixSocket path of the socket file, for example /var/run/clamav/clamd.ctl
+   * @param config     timeouts, connection pooling and chunking settings. There is no connect timeout for local sockets.
+   */
+  public ClamAVClient(Path unixSocket, ClamAVClientConfig config) {
+    this(new UnixSocketTransport(unixSocket), config);
+  }
+
+  /**
+   * @param transport how to reach clamd
+   * @param config    timeouts, connection pooling and chunking settings
+   */
+  public ClamAVClient(ClamdTransport transport, ClamAVClientConfig config) {
+    this(null, -1, transport, config);
+  }
+
+  private ClamAVClient(String hostName, int port, ClamdTransport transport, ClamAVClientConfig config) {
+    if (config.getReadTimeout() < 0 || config.getConnectTimeout() < 0) {
+      throw new IllegalArgumentException("Negative timeout value does not make sense.");
+    }
+    this.hostName = hostName;
+    this.port = port;
+    // clients given a host and port connect through openSocket, which subclasses may have overridden
+    this.transport = transport != null ? transport : new TcpTransport(hostName, port) {
+      @Override
+      public ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException {
+        return new SocketConnection(openSocket());
+      }
+
+      @Override
+      ClamdConnection connectWithoutChannel(int connectTimeout, int readTimeout) throws IOException {
+        return overridesOpenSocket(ClamAVClient.this.getClass())
+            ? new SocketConnection(openSocket())
+            : super.connectWithoutChannel(connectTimeout, readTimeout);
+      }
+    };
+    this.readTimeout = config.getReadTimeout();
+    this.connectTimeout = config.getConnectTimeout();
+    this.pool = config.getMaxIdleSessions() > 0
+        ? new SessionPool(this, config.getMaxIdleSessions(), config.getSessionMaxLifetime(),
+                          config.getSessionValidationInterval(), config.getMaxReplySize())
+        : null;
+    this.chunkSize = config.getChunkSize();
+    this.chunkSizeTuner = config.isChunkSizeAutoTuning()
+        ? new ChunkSizeTuner(ClamAVClientConfig.MAX_AUTO_TUNED_CHUNK_SIZE)
+        : null;
+    this.eventLoopThreads = config.getEventLoopThreads();
+    this.maxReplySize = config.getMaxReplySize();
+    this.cache = config.getResultCacheSize() > 0 || config.getResultStore() != null
+        ? new ScanResultCache(config,
+                              config.getResultStore() != null
+                                  ? new MappedResultStore(config.getResultStore(), config.getResultStoreSlots())
+                                  : null,
+                              this::versionForCache)
+        : null;
+    this.coalescer = config.isCoalesceScans() ? new ScanCoalescer() : null;
+    this.contentDigest = config.isContentDigest();
+    this.digests = cache != null || coalescer != null || contentDigest
+        ? new ContentDigest(config.getDigestAlgorithm())
+        : null;
+    // last, the watcher's thread uses the client right away
+    this.versionWatcher = config.getVersionWatchInterval() > 0
+        ? new VersionWatcher(this::version, config.getVersionWatchInterval())
+        : null;
+    if (versionWatcher != null && cache != null) {
+      versionWatcher.addListener((previous, current) -> cache.versionSeen(current.getReply()));
+    }
   }
 
   /**
@@ -58,21 +162,123 @@ public class ClamAVClient {
    * @return true if the server responded with proper ping reply.
    */
   public boolean ping() throws IOException {
-    try (Socket s = openSocket();
-         OutputStream outs = s.getOutputStream()) {
+    if (pool != null) {
+      ClamdSession session = pool.borrow();
+      boolean pong = session.isValid();
+      if (pong) {
+        pool.release(session);
+      } else {
+        pool.invalidate(session);
+      }
+      return pong;
+    }
+    InstreamCodec codec = borrowCodec();
+    try (ClamdConnection c = openConnection();
+         OutputStream outs = c.getOutputStream()) {
 
-      outs.write(asBytes("zPING\0"));
+      outs.write(InstreamCodec.PING);
       outs.flush();
-      byte[] b = new byte[PONG_REPLY_LEN];
-      InputStream inputStream = s.getInputStream();
-      int copyIndex = 0;
-      int readResult;
-      do {
-        readResult = inputStream.read(b, copyIndex, Math.max(b.length - copyIndex, 0));
-        copyIndex += readResult;
-      } while (readResult > 0);
-      return Arrays.equals(b, asBytes("PONG"));
+      return isPong(codec.replyBuffer(), codec.readTerminated(c.getInputStream()));
+    } finally {
+      codecs.offer(codec);
+    }
+  }
+
+  /**
+   * Run VERSION command to find out which ClamAV and signature database clamd is running.
+   *
+   * @return version reply without the terminating null, for example "ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"
+   * @see ClamdVersion#parse(String)
+   */
+  public String version() throws IOException {
+    return command(InstreamCodec.VERSION);
+  }
+
+  /**
+   * Run STATS command to find out how busy clamd is: its scanner threads, the length of its queue and its memory use.
+   *
+   * @return statistics reply without the terminating null, several lines ending with "END"
+   * @see ClamdStats#parse(String)
+   */
+  public String stats() throws IOException {
+    return command(InstreamCodec.STATS);
+  }
+
+  // sends a command with a single reply, over a pooled session if there is a pool
+  private String command(byte[] command) throws IOException {
+    byte[] reply;
+    if (pool != null) {
+      ClamdSession session = pool.borrow();
+      boolean reusable = false;
+      try {
+        session.send(command);
+        reply = session.readReply();
+        reusable = true;
+      } finally {
+        if (reusable) {
+          pool.release(session);
+        } else {
+          pool.invalidate(session);
+        }
+      }
+    } else {
+      InstreamCodec codec = borrowCodec();
+      try (ClamdConnection c = openConnection();
+           OutputStream outs = c.getOutputStream()) {
+
+        outs.write(command);
+        outs.flush();
+        codec.readTerminated(c.getInputStream());
+        reply = codec.replyCopy(0);
+      } finally {
+        codecs.offer(codec);
+      }
     }
+    return new String(reply, 0, reply.length - 1, StandardCharsets.US_ASCII);
+  }
+
+  // the cache uses the version the watcher has seen last, if any, instead of asking clamd
+  private String versionForCache() throws IOException {
+    ClamdVersion latest = versionWatcher != null ? versionWatcher.latest() : null;
+    return latest != null ? latest.getReply() : version();
+  }
+
+  /**
+   * Starts telling the listener when clamd starts running another signature database, for example to drop results
+   * cached elsewhere. The version is checked in the background, see
+   * {@link ClamAVClientConfig#setVersionWatchInterval(long)}, which must be set.
+   *
+   * @throws IllegalStateException if the version is not watched
+   */
+  public void addVersionListener(VersionListener listener) {
+    if (versionWatcher == null) {
+      throw new IllegalStateException("Version is not watched, see ClamAVClientConfig.setVersionWatchInterval.");
+    }
+    versionWatcher.addListener(listener);
+  }
+
+  public void removeVersionListener(VersionListener listener) {
+    if (versionWatcher != null) {
+      versionWatcher.removeListener(listener);
+    }
+  }
+
+  /**
+   * @return version clamd ran at the latest background check, null if the version is not watched or has not been
+   * checked yet. Use {@link #version()} to ask clamd right away.
+   */
+  public ClamdVersion getWatchedVersion() {
+    return versionWatcher != null ? versionWatcher.latest() : null;
+  }
+
+  // codecs for scans over connections of their own, return them to the pool with codecs.offer
+  private InstreamCodec borrowCodec() {
+    InstreamCodec codec = codecs.poll();
+    if (codec == null) {
+      return new InstreamCodec(maxReplySize);
+    }
+    codec.clearReplies();
+    return codec;
   }
 
   /**
@@ -81,47 +287,216 @@ public class ClamAVClient {
    * Since the parameter InputStream is not reset, you can not use the stream afterwards, as it will be left in a EOF-state.
    * If your goal is to scan some data, and then pass that data further, consider using {@link #scan(byte[]) scan(byte[] in)}.
    * <p>
-   * Opens a socket and reads the reply. Parameter input stream is NOT closed.
+   * Uses a pooled session or opens a socket, and reads the reply. Parameter input stream is NOT closed.
    *
    * @param is data to scan. Not closed by this method!
    * @return server reply
    */
   public byte[] scan(InputStream is) throws IOException {
-    try (Socket s = openSocket();
-         OutputStream outs = new BufferedOutputStream(s.getOutputStream())) {
+    return scanResult(is).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(InputStream)}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(InputStream is) throws IOException {
+    final int chunkSize = chunkSize(-1);
+    InstreamBody body = tuned(chunkSize, (codec, outs, channel, clamIs) -> codec.sendChunks(is, chunkSize, outs, clamIs));
+    if (cache == null && !contentDigest) {
+      return instream(body, null);
+    }
+    // a stream can only be digested as it is sent, so its result is cached but the cache is not looked up first
+    String version = cache != null ? cache.databaseVersion() : null;
+    MessageDigest digest = digests.start();
+    ScanResult result = instream(body, digest);
+    byte[] digested = digest.digest();
+    if (cache != null) {
+      cache.put(digested, version, result);
+    }
+    return withDigest(result, digested);
+  }
+
+  // answers from the cache if possible, otherwise scans unless the same content is being scanned already
+  private ScanResult scanDigested(byte[] digest, ScanResultCache.Scan scan, ScanResultCache.Revalidation revalidation)
+      throws IOException {
+    ScanResultCache.Scan coalesced = coalescer != null ? () -> coalescer.scan(digest, scan) : scan;
+    return cache != null ? cache.scan(digest, coalesced, revalidation) : coalesced.run();
+  }
+
+  // scans content again with a digest computed on the way, null if the content no longer has the expected digest
+  private ScanResult rescan(byte[] digest, DigestedScan scan) throws IOException {
+    MessageDigest current = digests.start();
+    ScanResult result = scan.run(current);
+    return Arrays.equals(current.digest(), digest) ? result : null;
+  }
+
+  // adds the digest to the result if results carry one
+  private ScanResult withDigest(ScanResult result, byte[] digest) {
+    return contentDigest ? result.withDigest(digest) : result;
+  }
+
+  /**
+   * Scans a file. The file content is sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+   * which lets the operating system move the bytes from the page cache to the socket (sendfile) without copying them
+   * through the Java heap. Preferred for large files.
+   *
+   * @param file file to scan
+   * @return server reply
+   */
+  public byte[] scan(Path file) throws IOException {
+    return scanResult(file).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(Path)}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return scanFile(channel, 0, channel.size(), file);
+    }
+  }
+
+  /**
+   * Scans a region of a file. See {@link #scan(Path)}. The position of the channel is not changed.
+   *
+   * @param file     channel to scan. Not closed by this method!
+   * @param position where the data to scan starts
+   * @param length   bytes to scan
+   * @return server reply
+   */
+  public byte[] scan(FileChannel file, long position, long length) throws IOException {
+    return scanResult(file, position, length).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(FileChannel, long, long)}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(final FileChannel file, final long position, final long length) throws IOException {
+    if (position < 0 || length < 0) {
+      throw new IllegalArgumentException("Negative position or length does not make sense.");
+    }
+    return scanFile(file, position, length, null);
+  }
+
+  // path is where the whole file can be opened again for revalidation, null if only the region can be scanned
+  private ScanResult scanFile(final FileChannel file, final long position, final long length, final Path path)
+      throws IOException {
+    if (cache != null || coalescer != null) {
+      byte[] digest = digests.of(file, position, length);
+      ScanResultCache.Revalidation revalidation = path == null ? null : () -> () -> rescan(digest, current -> {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          return scanRegion(channel, 0, channel.size(), current);
+        }
+      });
+      return withDigest(scanDigested(digest, () -> scanRegion(file, position, length, null), revalidation), digest);
+    }
+    if (contentDigest) {
+      MessageDigest digest = digests.start();
+      return scanRegion(file, position, length, digest).withDigest(digest.digest());
+    }
+    return scanRegion(file, position, length, null);
+  }
+
+  // file content digested on the way goes through the heap, otherwise it is transferred without copying if possible
+  private ScanResult scanRegion(final FileChannel file, final long position, final long length, MessageDigest digest)
+      throws IOException {
+    final int chunkSize = chunkSize(length);
+    return instream(tuned(chunkSize, (codec, outs, channel, clamIs) -> channel != null && digest == null
+        ? codec.transferChunks(file, position, length, chunkSize, outs, channel, clamIs)
+        : codec.sendChunks(new FileRegionInputStream(file, position, length), chunkSize, outs, clamIs)), digest);
+  }
+
+  // the configured chunk size, or the tuner's choice for an input of the given length, -1 if not known
+  private int chunkSize(long knownLength) {
+    return chunkSizeTuner != null ? chunkSizeTuner.chunkSize(knownLength) : chunkSize;
+  }
+
+  // tells the tuner, if any, how fast the body sent its data
+  private InstreamBody tuned(final int chunkSize, final InstreamBody body) {
+    if (chunkSizeTuner == null) {
+      return body;
+    }
+    return (codec, outs, channel, clamIs) -> {
+      long start = System.nanoTime();
+      boolean terminated = body.send(codec, outs, channel, clamIs);
+      chunkSizeTuner.record(chunkSize, codec.bytesSent(), System.nanoTime() - start);
+      return terminated;
+    };
+  }
+
+  // runs INSTREAM with the given body over a pooled session or a socket of its own, feeding the data to the digest
+  // unless it is null
+  private ScanResult instream(InstreamBody body, MessageDigest digest) throws IOException {
+    return pool != null ? instreamInSession(body, digest) : instreamInSocket(body, digest);
+  }
+
+  private ScanResult instreamInSocket(InstreamBody body, MessageDigest digest) throws IOException {
+    InstreamCodec codec = borrowCodec();
+    codec.setDigest(digest);
+    try (ClamdConnection c = openConnection();
+         OutputStream outs = new BufferedOutputStream(c.getOutputStream())) {
 
       // handshake
-      outs.write(asBytes("zINSTREAM\0"));
+      outs.write(InstreamCodec.INSTREAM);
       outs.flush();
-      byte[] chunk = new byte[CHUNK_SIZE];
-
-      try (InputStream clamIs = s.getInputStream()) {
-        // send data
-        int read = is.read(chunk);
-        while (read >= 0) {
-          // The format of the chunk is: '<length><data>' where <length> is the size of the following data in bytes expressed as a 4 byte unsigned
-          // integer in network byte order and <data> is the actual chunk. Streaming is terminated by sending a zero-length chunk.
-          byte[] chunkSize = ByteBuffer.allocate(4).putInt(read).array();
-
-          outs.write(chunkSize);
-          outs.write(chunk, 0, read);
-          if (clamIs.available() > 0) {
-            // reply from server before scan command has been terminated.
-            byte[] reply = assertSizeLimit(readAll(clamIs));
-            throw new IOException("Scan aborted. Reply from server: " + asText(reply));
-          }
-          read = is.read(chunk);
-        }
 
-        // terminate scan
-        outs.write(new byte[]{0, 0, 0, 0});
-        outs.flush();
+      try (InputStream clamIs = c.getInputStream()) {
+        if (!body.send(codec, outs, c.getChannel(), clamIs)) {
+          // reply from server before scan command has been terminated.
+          throw scanAborted(codec, clamIs);
+        }
         // read reply
-        return assertSizeLimit(readAll(clamIs));
+        return assertSizeLimit(codec.replyBuffer(), codec.readTerminated(clamIs));
+      }
+    } finally {
+      codec.setDigest(null);
+      codecs.offer(codec);
+    }
+  }
+
+  private ScanResult instreamInSession(InstreamBody body, MessageDigest digest) throws IOException {
+    ClamdSession session = pool.borrow();
+    boolean reusable = false;
+    session.codec().setDigest(digest);
+    try {
+      session.send(InstreamCodec.INSTREAM);
+      if (!body.send(session.codec(), session.out(), session.channel(), session.in())) {
+        // clamd ends the session after an error, so it is not returned to the pool
+        throw scanAborted(session.codec(), session.in());
+      }
+      ScanResult result = session.readResult();
+      if (result.getStatus() == ScanResult.Status.SIZE_LIMIT) {
+        throw new ClamAVSizeLimitException("Clamd size limit exceeded. Full reply from server: " + result);
+      }
+      reusable = true;
+      return result;
+    } finally {
+      session.codec().setDigest(null);
+      if (reusable) {
+        pool.release(session);
+      } else {
+        pool.invalidate(session);
       }
     }
   }
 
+  // Reads the reply clamd sent before the stream was terminated. If writing failed, clamd has most likely replied
+  // with an error and closed the connection, but if there is no reply to read the write failure is what went wrong.
+  private static IOException scanAborted(InstreamCodec codec, InputStream clamIs) throws IOException {
+    ScanResult reply;
+    try {
+      reply = assertSizeLimit(codec.replyBuffer(), codec.readTerminated(clamIs));
+    } catch (IOException e) {
+      IOException writeFailure = codec.writeFailure();
+      if (writeFailure == null) {
+        throw e;
+      }
+      writeFailure.addSuppressed(e);
+      throw writeFailure;
+    }
+    return new IOException("Scan aborted. Reply from server: " + reply, codec.writeFailure());
+  }
+
   /**
    * Scans bytes for virus by passing the bytes to clamav
    *
@@ -129,15 +504,194 @@ public class ClamAVClient {
    * @return server reply
    **/
   public byte[] scan(byte[] in) throws IOException {
-    ByteArrayInputStream bis = new ByteArrayInputStream(in);
-    return scan(bis);
+    return scanResult(in).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(byte[])}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(byte[] in) throws IOException {
+    return scanResult(in, 0, in.length);
+  }
+
+  /**
+   * Scans a slice of a byte array. The bytes are sent straight from the array, see {@link #scan(ByteBuffer)}.
+   *
+   * @param in  data to scan
+   * @param off where the data to scan starts
+   * @param len bytes to scan
+   * @return server reply
+   */
+  public byte[] scan(byte[] in, int off, int len) throws IOException {
+    return scanResult(in, off, len).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(byte[], int, int)}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(byte[] in, int off, int len) throws IOException {
+    return scanResult(ByteBuffer.wrap(in, off, len));
+  }
+
+  /**
+   * Scans the remaining bytes of a heap or direct buffer. Each chunk is written together with its length header
+   * with a gathering write straight from the buffer, so off-heap data is never copied into a {@code byte[]}.
+   * The position of the buffer is not changed.
+   *
+   * @param in data to scan
+   * @return server reply
+   */
+  public byte[] scan(ByteBuffer in) throws IOException {
+    return scanResult(in).getReply();
+  }
+
+  /**
+   * Same as {@link #scan(ByteBuffer)}, but returns the parsed reply.
+   */
+  public ScanResult scanResult(ByteBuffer in) throws IOException {
+    if (cache != null || coalescer != null) {
+      byte[] digest = digests.of(in);
+      ScanResultCache.Revalidation revalidation = () -> {
+        // the caller may reuse the buffer once the stale result is returned
+        ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+        copy.put(in.duplicate()).flip();
+        return () -> scanBuffer(copy, null);
+      };
+      return withDigest(scanDigested(digest, () -> scanBuffer(in, null), revalidation), digest);
+    }
+    if (contentDigest) {
+      MessageDigest digest = digests.start();
+      return scanBuffer(in, digest).withDigest(digest.digest());
+    }
+    return scanBuffer(in, null);
+  }
+
+  private ScanResult scanBuffer(ByteBuffer in, MessageDigest digest) throws IOException {
+    final ByteBuffer data = in.duplicate();
+    final int chunkSize = chunkSize(data.remaining());
+    return instream(tuned(chunkSize, (codec, outs, channel, clamIs) ->
+        codec.writeChunks(data, chunkSize, outs, channel, clamIs)), digest);
+  }
+
+  /**
+   * Scans bytes without blocking the calling thread. See {@link #scanAsync(ByteBuffer)}.
+   *
+   * @param in data to scan, must not be modified before the scan completes
+   */
+  public CompletableFuture<ScanResult> scanAsync(byte[] in) {
+    return scanAsync(ByteBuffer.wrap(in));
+  }
+
+  /**
+   * Scans the remaining bytes of the buffer without blocking the calling thread. Heap and direct buffers are sent
+   * as they are, without copying. Scans are driven by a few event loop threads, see
+   * {@link ClamAVClientConfig#setEventLoopThreads(int)}, and each scan opens a connection of its own.
+   * <p>
+   * The position of the buffer is not changed. Cancelling the returned future aborts the scan and closes its connection.
+   * The future is completed on the common fork-join pool, not on an event loop thread. The read timeout also limits
+   * how long clamd may go without accepting more of the data.
+   *
+   * @param in data to scan, must not be modified before the scan completes
+   * @return future completed with the scan result, or with {@link ClamAVSizeLimitException} or {@link IOException}
+   */
+  public CompletableFuture<ScanResult> scanAsync(ByteBuffer in) {
+    int chunkSize = chunkSize(in.remaining());
+    try {
+      SocketAddress address = transport.address();
+      if (address == null) {
+        throw new IOException("Asynchronous scans are not supported over " + transport + ".");
+      }
+      return nioEngine().scan(address, in, chunkSize, contentDigest ? digests.create() : null);
+    } catch (IOException e) {
+      CompletableFuture<ScanResult> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  private synchronized NioScanEngine nioEngine() throws IOException {
+    if (closed) {
+      throw new IOException("Client is closed.");
+    }
+    if (nioEngine == null) {
+      nioEngine = new NioScanEngine(eventLoopThreads, connectTimeout, readTimeout, maxReplySize);
+    }
+    return nioEngine;
+  }
+
+  /**
+   * Opens a dedicated IDSESSION connection for pipelined scanning. Worthwhile when many small inputs are scanned
+   * in a row, since no scan waits for the reply to the previous one. The pipeline must be closed after use.
+   *
+   * @param maxInFlight how many scans may be sent before their replies have arrived
+   */
+  public ClamdPipeline openPipeline(int maxInFlight) throws IOException {
+    ClamdConnection connection = transport instanceof TcpTransport
+        ? ((TcpTransport) transport).connectWithoutChannel(connectTimeout, readTimeout)
+        : openConnection();
+    return new ClamdPipeline(connection, readTimeout, maxInFlight, chunkSize, maxReplySize);
   }
 
+  /**
+   * Ends all pooled sessions, stops the threads driving asynchronous scans and watching the version, and closes the
+   * result store. Commands issued after closing fail
+   * if pooling is enabled, asynchronous scans fail always.
+   */
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.close();
+    }
+    synchronized (this) {
+      closed = true;
+      if (nioEngine != null) {
+        nioEngine.close();
+      }
+    }
+    if (versionWatcher != null) {
+      versionWatcher.close();
+    }
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  /**
+   * Opens a TCP connection to clamd. Clients created with a host name and port open every blocking connection with
+   * this, pipelines included, so subclasses may override it. Asynchronous scans connect to the same host and port
+   * without blocking and do not call it. The socket is backed by a
+   * {@link SocketChannel}, which file scans use for zero-copy transfers. If a subclass returns a socket without a
+   * channel, file content is copied through the heap instead. Pipelines read and write at the same time, which on
+   * Java 8 to 12 the streams of a channel backed socket do one after another.
+   * <p>
+   * Clients created with a {@link ClamdTransport} do not call this. Called anyway, it connects over a
+   * {@link TcpTransport} and fails with an IOException over other transports.
+   *
+   * @deprecated pass a {@link ClamdTransport} to {@link #ClamAVClient(ClamdTransport, ClamAVClientConfig)} instead
+   */
+  @Deprecated
   protected Socket openSocket() throws IOException {
-    Socket socket = new Socket();
-    socket.connect(new InetSocketAddress(hostName, port), connectTimeout);
-    socket.setSoTimeout(readTimeout);
-    return socket;
+    if (!(transport instanceof TcpTransport)) {
+      throw new IOException("Client connects over " + transport + ", which has no TCP socket.");
+    }
+    return ((TcpTransport) transport).connect(SocketChannel.open().socket(), connectTimeout, readTimeout);
+  }
+
+  // a subclass that overrides openSocket decides what socket its pipelines get too
+  private static boolean overridesOpenSocket(Class<?> type) {
+    for (Class<?> c = type; c != ClamAVClient.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod("openSocket");
+        return true;
+      } catch (NoSuchMethodException e) {
+        // look in the superclass
+      }
+    }
+    return false;
+  }
+
+  ClamdConnection openConnection() throws IOException {
+    return transport.connect(connectTimeout, readTimeout);
   }
 
   /**
@@ -145,40 +699,95 @@ public class ClamAVClient {
    *
    * @param reply The reply from the server after scanning
    * @return true if no virus was found according to the clamd reply message
+   * @see ScanResult#parse(byte[])
    */
   public static boolean isCleanReply(byte[] reply) {
-    String r = asText(reply);
-    return (r.contains("OK") && !r.contains("FOUND"));
+    return ScanResult.parse(reply).isClean();
+  }
+
+
+  static boolean isPong(byte[] reply) {
+    return isPong(reply, reply.length);
   }
 
+  static boolean isPong(byte[] reply, int length) {
+    return startsWith(reply, length, PONG);
+  }
 
-  private static byte[] assertSizeLimit(byte[] reply) {
-    String r = asText(reply);
-    if (r.startsWith("INSTREAM size limit exceeded."))
-      throw new ClamAVSizeLimitException("Clamd size limit exceeded. Full reply from server: " + r);
+  static byte[] assertSizeLimit(byte[] reply) {
+    if (startsWith(reply, reply.length, SIZE_LIMIT_EXCEEDED))
+      throw new ClamAVSizeLimitException("Clamd size limit exceeded. Full reply from server: " + asText(reply));
     return reply;
   }
 
+  // parses the reply in the first length bytes of the buffer, throws if it is about the size limit
+  static ScanResult assertSizeLimit(byte[] reply, int length) {
+    ScanResult result = ScanResult.parse(reply, 0, length);
+    if (result.getStatus() == ScanResult.Status.SIZE_LIMIT)
+      throw new ClamAVSizeLimitException("Clamd size limit exceeded. Full reply from server: " + new String(reply, 0, length, StandardCharsets.US_ASCII));
+    return result;
+  }
+
+  private static boolean startsWith(byte[] reply, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (reply[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   // construct an ASCII string from an array of bytes
-  private static String asText(byte[] reply) {
+  static String asText(byte[] reply) {
     return new String(reply, StandardCharsets.US_ASCII);
   }
 
   // byte conversion based on ASCII character set regardless of the current system locale
-  private static byte[] asBytes(String s) {
+  static byte[] asBytes(String s) {
     return s.getBytes(StandardCharsets.US_ASCII);
   }
 
-  // reads all available bytes from the stream
-  private static byte[] readAll(InputStream is) throws IOException {
-    ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+  private interface DigestedScan {
+    ScanResult run(MessageDigest digest) throws IOException;
+  }
+
+  // writes the data of one INSTREAM command, channel is null if the socket has none
+  private interface InstreamBody {
+    boolean send(InstreamCodec codec, OutputStream outs, GatheringByteChannel channel, InputStream clamIs) throws IOException;
+  }
+
+  // reads a file region without moving the channel position, for sockets without a channel
+  private static final class FileRegionInputStream extends InputStream {
+    private final FileChannel file;
+    private long position;
+    private final long end;
 
-    byte[] buf = new byte[2000];
-    int read;
-    do {
-      read = is.read(buf);
-      tmp.write(buf, 0, read);
-    } while ((read > 0) && (is.available() > 0));
-    return tmp.toByteArray();
+    FileRegionInputStream(FileChannel file, long position, long length) {
+      this.file = file;
+      this.position = position;
+      this.end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int read = file.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+      if (read < 0) {
+        throw new EOFException("File ended before the region to scan.");
+      }
+      position += read;
+      return read;
+    }
   }
 }
@@ -0,0 +1,363 @@
+package fi.solita.clamav;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Tunables for {@link ClamAVClient}. Setters return the configuration itself so they can be chained.
+ * <p>
+ * The configuration is read when the client is constructed, changing it afterwards has no effect on existing clients.
+ */
+public class ClamAVClientConfig {
+
+  static final int DEFAULT_READ_TIMEOUT = 500;
+  static final int DEFAULT_CONNECT_TIMEOUT = 500;
+  static final int DEFAULT_MAX_IDLE_SESSIONS = 8;
+  static final long DEFAULT_SESSION_MAX_LIFETIME = 60000;
+  static final long DEFAULT_SESSION_VALIDATION_INTERVAL = 5000;
+  static final int DEFAULT_CHUNK_SIZE = 2048;
+  static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+  static final int MAX_AUTO_TUNED_CHUNK_SIZE = 1024 * 1024;
+  static final int DEFAULT_EVENT_LOOP_THREADS = 1;
+  static final int DEFAULT_MAX_REPLY_SIZE = 8192;
+  static final long DEFAULT_VERSION_CHECK_INTERVAL = 10000;
+  static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+  static final int DEFAULT_RESULT_STORE_SLOTS = 65536;
+  static final int DEFAULT_MAX_REVALIDATIONS = 2;
+
+  private int readTimeout = DEFAULT_READ_TIMEOUT;
+  private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+  private long sessionMaxLifetime = DEFAULT_SESSION_MAX_LIFETIME;
+  private long sessionValidationInterval = DEFAULT_SESSION_VALIDATION_INTERVAL;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private boolean chunkSizeAutoTuning;
+  private int eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+  private int maxReplySize = DEFAULT_MAX_REPLY_SIZE;
+  private int resultCacheSize;
+  private long versionCheckInterval = DEFAULT_VERSION_CHECK_INTERVAL;
+  private boolean contentDigest;
+  private String digestAlgorithm = DEFAULT_DIGEST_ALGORITHM;
+  private Path resultStore;
+  private boolean coalesceScans;
+  private long staleWhileRevalidate;
+  private int maxRevalidations = DEFAULT_MAX_REVALIDATIONS;
+  private long versionWatchInterval;
+  private int resultStoreSlots = DEFAULT_RESULT_STORE_SLOTS;
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * @param readTimeout zero means infinite read timeout. Not a good idea, but will be accepted.
+   */
+  public ClamAVClientConfig setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+    return this;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * @param connectTimeout zero means infinite connect timeout. Not a good idea, but will be accepted.
+   */
+  public ClamAVClientConfig setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  public int getMaxIdleSessions() {
+    return maxIdleSessions;
+  }
+
+  /**
+   * Maximum number of idle IDSESSION connections kept open for reuse. Zero disables pooling, in which case
+   * every command opens and closes a connection of its own.
+   */
+  public ClamAVClientConfig setMaxIdleSessions(int maxIdleSessions) {
+    if (maxIdleSessions < 0) {
+      throw new IllegalArgumentException("Negative session count does not make sense.");
+    }
+    this.maxIdleSessions = maxIdleSessions;
+    return this;
+  }
+
+  public long getSessionMaxLifetime() {
+    return sessionMaxLifetime;
+  }
+
+  /**
+   * @param sessionMaxLifetime milliseconds after which a pooled session is ended instead of being reused.
+   */
+  public ClamAVClientConfig setSessionMaxLifetime(long sessionMaxLifetime) {
+    if (sessionMaxLifetime <= 0) {
+      throw new IllegalArgumentException("Session lifetime must be positive.");
+    }
+    this.sessionMaxLifetime = sessionMaxLifetime;
+    return this;
+  }
+
+  public long getSessionValidationInterval() {
+    return sessionValidationInterval;
+  }
+
+  /**
+   * @param sessionValidationInterval milliseconds a session may sit idle in the pool before it is checked with PING
+   *                                  prior to reuse. clamd drops sessions that have been idle longer than its
+   *                                  IdleTimeout setting (30 seconds by default).
+   */
+  public ClamAVClientConfig setSessionValidationInterval(long sessionValidationInterval) {
+    if (sessionValidationInterval < 0) {
+      throw new IllegalArgumentException("Negative validation interval does not make sense.");
+    }
+    this.sessionValidationInterval = sessionValidationInterval;
+    return this;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Size of the chunks data is streamed to clamd in. Larger chunks mean fewer frames and system calls per scan, but
+   * more memory per scan in progress. Buffers and files are sent straight from their memory, so for them a larger
+   * chunk only costs the frames, and a large size or {@link #setChunkSizeAutoTuning(boolean) auto-tuning} pays off.
+   * Clamd rejects a stream as soon as it exceeds StreamMaxLength in clamd.conf, so a single chunk larger than that
+   * can not succeed.
+   *
+   * @param chunkSize bytes, at most 16 MiB
+   */
+  public ClamAVClientConfig setChunkSize(int chunkSize) {
+    if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes.");
+    }
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  public boolean isChunkSizeAutoTuning() {
+    return chunkSizeAutoTuning;
+  }
+
+  /**
+   * When enabled the chunk size setting is ignored. Inputs of known length up to 1 MiB, that is byte arrays, buffers
+   * and files, are sent as one chunk. Other inputs use the power of two between 2 KiB and 1 MiB that has given the
+   * best throughput in earlier scans.
+   */
+  public ClamAVClientConfig setChunkSizeAutoTuning(boolean chunkSizeAutoTuning) {
+    this.chunkSizeAutoTuning = chunkSizeAutoTuning;
+    return this;
+  }
+
+  public int getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  /**
+   * Number of threads driving asynchronous scans, see {@link ClamAVClient#scanAsync(ByteBuffer)}. The threads are
+   * started on the first asynchronous scan.
+   */
+  public ClamAVClientConfig setEventLoopThreads(int eventLoopThreads) {
+    if (eventLoopThreads <= 0) {
+      throw new IllegalArgumentException("At least one event loop thread is needed.");
+    }
+    this.eventLoopThreads = eventLoopThreads;
+    return this;
+  }
+
+  public int getMaxReplySize() {
+    return maxReplySize;
+  }
+
+  /**
+   * Longest reply accepted from clamd, including the terminating null byte. Replies are read into buffers of this
+   * size at most, a longer reply fails the command. Scan replies are short unless AllMatchScan reports many signatures.
+   *
+   * @param maxReplySize bytes
+   */
+  public ClamAVClientConfig setMaxReplySize(int maxReplySize) {
+    if (maxReplySize <= 0) {
+      throw new IllegalArgumentException("Maximum reply size must be positive.");
+    }
+    this.maxReplySize = maxReplySize;
+    return this;
+  }
+
+  public int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  /**
+   * Number of scan results remembered by content, so that scanning the same bytes again does not reach clamd.
+   * Results count only while clamd runs the signature database they were scanned with. Zero, the default, disables
+   * the cache. Scans of byte arrays, buffers and files are digested before scanning and answered from the cache if
+   * possible. Streams are digested as they are sent, their results are cached but a stream is always scanned.
+   *
+   * @see #setDigestAlgorithm(String)
+   */
+  public ClamAVClientConfig setResultCacheSize(int resultCacheSize) {
+    if (resultCacheSize < 0) {
+      throw new IllegalArgumentException("Negative cache size does not make sense.");
+    }
+    this.resultCacheSize = resultCacheSize;
+    return this;
+  }
+
+  public long getVersionCheckInterval() {
+    return versionCheckInterval;
+  }
+
+  /**
+   * @param versionCheckInterval milliseconds the signature database version is trusted before clamd is asked again
+   *                             with VERSION. Cached results from an older database are no longer used once the
+   *                             new version has been seen.
+   */
+  public ClamAVClientConfig setVersionCheckInterval(long versionCheckInterval) {
+    if (versionCheckInterval < 0) {
+      throw new IllegalArgumentException("Negative version check interval does not make sense.");
+    }
+    this.versionCheckInterval = versionCheckInterval;
+    return this;
+  }
+
+  public boolean isContentDigest() {
+    return contentDigest;
+  }
+
+  /**
+   * When enabled every scan result carries a digest of the scanned content, see {@link ScanResult#getDigest()}.
+   * Content is digested in the same pass that sends it to clamd, so a stream is read only once. Files are then read
+   * through the heap instead of being sent with sendfile, unless the result cache needs their digest first anyway.
+   */
+  public ClamAVClientConfig setContentDigest(boolean contentDigest) {
+    this.contentDigest = contentDigest;
+    return this;
+  }
+
+  public String getDigestAlgorithm() {
+    return digestAlgorithm;
+  }
+
+  /**
+   * {@link java.security.MessageDigest} algorithm for content digests and the result cache, SHA-256 by default.
+   * Faster non-cryptographic hashes can be used if a security provider registers one as a MessageDigest.
+   *
+   * @throws IllegalArgumentException if no provider implements the algorithm
+   */
+  public ClamAVClientConfig setDigestAlgorithm(String digestAlgorithm) {
+    ContentDigest.newDigest(digestAlgorithm);
+    this.digestAlgorithm = digestAlgorithm;
+    return this;
+  }
+
+  public Path getResultStore() {
+    return resultStore;
+  }
+
+  /**
+   * File that keeps scan results over restarts and shares them with every process on the host that uses the same
+   * file. It is looked up before clamd is contacted, after the in-memory result cache if there is one, and obeys
+   * the same rules: results count only while clamd runs the signature database they were scanned with.
+   * Null, the default, disables the store.
+   *
+   * @param resultStore created with {@link #setResultStoreSlots(int)} slots if it does not exist
+   * @see #setResultCacheSize(int)
+   */
+  public ClamAVClientConfig setResultStore(Path resultStore) {
+    this.resultStore = resultStore;
+    return this;
+  }
+
+  public int getResultStoreSlots() {
+    return resultStoreSlots;
+  }
+
+  /**
+   * Number of results a new result store file holds, 128 bytes each. An existing file keeps the size it was created
+   * with. When the slots around a digest are taken, the oldest result there is replaced.
+   */
+  public ClamAVClientConfig setResultStoreSlots(int resultStoreSlots) {
+    if (resultStoreSlots <= 0 || resultStoreSlots > MappedResultStore.MAX_SLOTS) {
+      throw new IllegalArgumentException("Result store slots must be between 1 and " + MappedResultStore.MAX_SLOTS + ".");
+    }
+    this.resultStoreSlots = resultStoreSlots;
+    return this;
+  }
+
+  public boolean isCoalesceScans() {
+    return coalesceScans;
+  }
+
+  /**
+   * When enabled, concurrent scans of identical byte arrays, buffers or files share one clamd scan: the content is
+   * digested first, and a scan of content that is already being scanned waits for that scan's result. Worthwhile
+   * when the same file tends to arrive many times at once. Streams are always scanned on their own.
+   *
+   * @see #setDigestAlgorithm(String)
+   */
+  public ClamAVClientConfig setCoalesceScans(boolean coalesceScans) {
+    this.coalesceScans = coalesceScans;
+    return this;
+  }
+
+  public long getStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  /**
+   * How long clean results cached under the previous signature database are still returned after clamd has loaded
+   * a new one. Such a result is returned at once, and the content is scanned again in the background to refresh it.
+   * This avoids a burst of full scans after every database update, at the price of content that only the new
+   * signatures detect passing as clean until its revalidation completes. Zero, the default, disables it.
+   * <p>
+   * Applies to byte arrays, buffers and files given as a Path. A buffer is copied for its revalidation.
+   *
+   * @param staleWhileRevalidate milliseconds from the moment the new database version is first seen
+   * @see #setMaxRevalidations(int)
+   */
+  public ClamAVClientConfig setStaleWhileRevalidate(long staleWhileRevalidate) {
+    if (staleWhileRevalidate < 0) {
+      throw new IllegalArgumentException("Negative staleness does not make sense.");
+    }
+    this.staleWhileRevalidate = staleWhileRevalidate;
+    return this;
+  }
+
+  public int getMaxRevalidations() {
+    return maxRevalidations;
+  }
+
+  /**
+   * Number of background scans refreshing stale results at a time. While they are all busy, stale results are
+   * returned without being revalidated.
+   */
+  public ClamAVClientConfig setMaxRevalidations(int maxRevalidations) {
+    if (maxRevalidations <= 0) {
+      throw new IllegalArgumentException("At least one revalidation must be allowed.");
+    }
+    this.maxRevalidations = maxRevalidations;
+    return this;
+  }
+
+  public long getVersionWatchInterval() {
+    return versionWatchInterval;
+  }
+
+  /**
+   * Milliseconds between background checks of clamd's version, which tell version listeners about signature
+   * database updates. The result cache then uses the version seen by the latest check instead of asking clamd, and
+   * stops using results from an older database as soon as the new one is seen. Zero, the default, disables watching.
+   *
+   * @see ClamAVClient#addVersionListener(VersionListener)
+   */
+  public ClamAVClientConfig setVersionWatchInterval(long versionWatchInterval) {
+    if (versionWatchInterval < 0) {
+      throw new IllegalArgumentException("Negative watch interval does not make sense.");
+    }
+    this.versionWatchInterval = versionWatchInterval;
+    return this;
+  }
+}
@@ -0,0 +1,38 @@
+package fi.solita.clamav;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A connection to clamd opened by a {@link ClamdTransport}. The input stream may be read by one thread while another
+ * writes to the output stream, which is what {@link ClamdPipeline} does.
+ */
+public interface ClamdConnection extends Closeable {
+
+  /**
+   * Reads block at most the read timeout given to {@link ClamdTransport#connect(int, int)}, then throw
+   * {@link java.net.SocketTimeoutException}. The same stream is returned on every call.
+   */
+  InputStream getInputStream() throws IOException;
+
+  /**
+   * The same stream is returned on every call.
+   */
+  OutputStream getOutputStream() throws IOException;
+
+  /**
+   * A blocking channel writing to the same connection, which lets file and buffer scans hand data to the operating
+   * system without copying it through the heap.
+   *
+   * @return null if there is no such channel, then data is written to the output stream
+   */
+  GatheringByteChannel getChannel();
+
+  /**
+   * Closes the sending side only, so that a reply that is already on its way can still be read.
+   */
+  void shutdownOutput() throws IOException;
+}
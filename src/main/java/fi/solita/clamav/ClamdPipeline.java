@@ -0,0 +1,211 @@
+package fi.solita.clamav;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined INSTREAM scanning over a single IDSESSION connection.
+ * <p>
+ * Commands are written back to back without waiting for the previous reply. A reader thread matches the replies,
+ * which clamd tags with {@code <id>: } and may send in any order, to the futures returned by {@link #submit(InputStream)}.
+ * At most {@code maxInFlight} commands are outstanding at a time, further submits block until a reply arrives.
+ * <p>
+ * If the connection fails, every outstanding scan fails and the pipeline can not be used any more.
+ * Create pipelines with {@link ClamAVClient#openPipeline(int)}.
+ */
+public final class ClamdPipeline implements Closeable {
+
+  // how long close waits for outstanding replies if the read timeout is infinite, in milliseconds
+  private static final long CLOSE_WAIT_WITHOUT_READ_TIMEOUT = 5000;
+
+  private final ClamdConnection connection;
+  private final int readTimeout;
+  private final OutputStream out;
+  private final InputStream in;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+  private final int chunkSize;
+  private final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  // guarded by writeLock
+  private final InstreamCodec codec = new InstreamCodec();
+  private int requestId;
+  // used by the reader thread only
+  private final InstreamCodec replies;
+  private volatile IOException failure;
+  private volatile IOException writeFailure;
+  private volatile boolean writing;
+  private volatile long lastWrite;
+
+  ClamdPipeline(ClamdConnection connection, int readTimeout, int maxInFlight, int chunkSize, int maxReplySize) throws IOException {
+    if (maxInFlight <= 0) {
+      connection.close();
+      throw new IllegalArgumentException("At least one command must be allowed in flight.");
+    }
+    this.connection = connection;
+    this.readTimeout = readTimeout;
+    this.maxInFlight = maxInFlight;
+    this.chunkSize = chunkSize;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.replies = new InstreamCodec(maxReplySize);
+    try {
+      this.out = new BufferedOutputStream(connection.getOutputStream());
+      this.in = new BufferedInputStream(connection.getInputStream());
+      out.write(InstreamCodec.IDSESSION);
+      out.flush();
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+    Thread reader = new Thread(this::readReplies, "clamd-pipeline-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Writes an INSTREAM command for the data. Returns once the data has been sent, without waiting for the reply.
+   *
+   * @param is data to scan. Not closed by this method!
+   * @return future completed with the server reply, or with {@link ClamAVSizeLimitException} or {@link IOException}.
+   * If sending fails, the future fails too.
+   */
+  public CompletableFuture<byte[]> submit(InputStream is) throws IOException {
+    assertUsable();
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a free pipeline slot.");
+    }
+    CompletableFuture<byte[]> reply = new CompletableFuture<>();
+    synchronized (writeLock) {
+      try {
+        assertUsable();
+      } catch (IOException e) {
+        inFlight.release();
+        throw e;
+      }
+      pending.put(++requestId, reply);
+      writing = true;
+      try {
+        out.write(InstreamCodec.INSTREAM);
+        if (!codec.sendChunks(is, chunkSize, out, null)) {
+          throw codec.writeFailure();
+        }
+      } catch (IOException e) {
+        // clamd may have replied with an error before closing the connection, the reader delivers it
+        writeFailure = e;
+        try {
+          connection.shutdownOutput();
+        } catch (IOException ignored) {
+          // the reader notices the broken connection
+        }
+      } finally {
+        lastWrite = System.currentTimeMillis();
+        writing = false;
+      }
+    }
+    if (failure != null) {
+      // the reader failed while we were writing, make sure this scan does not wait forever
+      fail(failure);
+    }
+    return reply;
+  }
+
+  /**
+   * @see #submit(InputStream)
+   */
+  public CompletableFuture<byte[]> submit(byte[] in) throws IOException {
+    return submit(new ByteArrayInputStream(in));
+  }
+
+  /**
+   * Waits for outstanding scans, then ends the session. Scans fail if clamd does not reply within the read timeout,
+   * or within five seconds if the read timeout is infinite.
+   */
+  @Override
+  public void close() {
+    long wait = readTimeout > 0 ? readTimeout : CLOSE_WAIT_WITHOUT_READ_TIMEOUT;
+    try {
+      if (failure == null && inFlight.tryAcquire(maxInFlight, wait, TimeUnit.MILLISECONDS)) {
+        try {
+          synchronized (writeLock) {
+            out.write(InstreamCodec.END);
+            out.flush();
+          }
+        } finally {
+          inFlight.release(maxInFlight);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      // nothing to do, the connection is closed below
+    }
+    fail(new IOException("Pipeline closed."));
+  }
+
+  private void readReplies() {
+    while (failure == null) {
+      try {
+        // a read timeout in the middle of a reply does not lose the bytes read so far, the codec keeps them
+        replies.readTerminated(in);
+        byte[] reply = replies.replyCopy(0);
+        CompletableFuture<byte[]> future = pending.remove(ClamdSession.requestId(reply));
+        if (future == null) {
+          throw new IOException("Reply to unknown request from server: " + ClamAVClient.asText(reply));
+        }
+        inFlight.release();
+        complete(future, ClamdSession.stripRequestId(reply));
+      } catch (SocketTimeoutException e) {
+        // the read timeout only counts once all data has been sent, clamd can not reply before that
+        if (!pending.isEmpty() && !writing && System.currentTimeMillis() - lastWrite >= readTimeout) {
+          fail(e);
+        }
+      } catch (IOException e) {
+        fail(writeFailure != null ? writeFailure : e);
+      }
+    }
+  }
+
+  private static void complete(CompletableFuture<byte[]> future, byte[] reply) {
+    try {
+      future.complete(ClamAVClient.assertSizeLimit(reply));
+    } catch (ClamAVSizeLimitException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private void assertUsable() throws IOException {
+    IOException cause = failure != null ? failure : writeFailure;
+    if (cause != null) {
+      throw new IOException("Pipeline is no longer usable.", cause);
+    }
+  }
+
+  private void fail(IOException cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+    List<Integer> ids = new ArrayList<>(pending.keySet());
+    for (Integer id : ids) {
+      CompletableFuture<byte[]> future = pending.remove(id);
+      if (future != null) {
+        inFlight.release();
+        future.completeExceptionally(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package fi.solita.clamav;
+
+import java.io.*;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A connection to clamd in IDSESSION mode. Several commands can be run one after another over the same socket,
+ * clamd prefixes every reply with the request id: {@code <id>: <reply>}.
+ * <p>
+ * Not thread safe, a session is used by one caller at a time. See {@link SessionPool}.
+ */
+final class ClamdSession implements Closeable {
+
+  private final ClamdConnection connection;
+  private final OutputStream out;
+  private final InputStream in;
+  private final InstreamCodec codec;
+  private final long createdAt;
+  private long lastUsedAt;
+  // id of the latest command sent, clamd numbers the commands of a session from 1
+  private int requestId;
+
+  private ClamdSession(ClamdConnection connection, int maxReplySize) throws IOException {
+    this.connection = connection;
+    this.codec = new InstreamCodec(maxReplySize);
+    this.out = new BufferedOutputStream(connection.getOutputStream());
+    this.in = new BufferedInputStream(connection.getInputStream());
+    this.createdAt = System.currentTimeMillis();
+    this.lastUsedAt = createdAt;
+  }
+
+  /**
+   * Starts a session over the given connection. The connection is closed if the session can not be started.
+   */
+  static ClamdSession open(ClamdConnection connection, int maxReplySize) throws IOException {
+    try {
+      ClamdSession session = new ClamdSession(connection, maxReplySize);
+      session.out.write(InstreamCodec.IDSESSION);
+      session.out.flush();
+      return session;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  OutputStream out() {
+    return out;
+  }
+
+  InputStream in() {
+    return in;
+  }
+
+  InstreamCodec codec() {
+    return codec;
+  }
+
+  /**
+   * @return channel of the connection, or null if it has none
+   */
+  GatheringByteChannel channel() {
+    return connection.getChannel();
+  }
+
+  /**
+   * Sends a command. The reply must be read with {@link #readReply()} before the next command is sent.
+   *
+   * @param command null terminated command, see {@link InstreamCodec}
+   */
+  void send(byte[] command) throws IOException {
+    out.write(command);
+    out.flush();
+    requestId++;
+  }
+
+  /**
+   * Reads the reply to the latest command up to and including the terminating null byte.
+   *
+   * @return reply without the request id prefix, in the same form clamd sends it outside of a session
+   * @throws IOException also if the reply is to another command, the session is then out of step and must be closed
+   */
+  byte[] readReply() throws IOException {
+    int length = codec.readTerminated(in);
+    lastUsedAt = System.currentTimeMillis();
+    return codec.replyCopy(checkRequestId(codec.replyBuffer(), length));
+  }
+
+  /**
+   * Reads the reply to the latest scan and parses it straight from the reply buffer.
+   *
+   * @throws IOException also if the reply is to another command, see {@link #readReply()}
+   */
+  ScanResult readResult() throws IOException {
+    int length = codec.readTerminated(in);
+    lastUsedAt = System.currentTimeMillis();
+    checkRequestId(codec.replyBuffer(), length);
+    return ScanResult.parse(codec.replyBuffer(), 0, length);
+  }
+
+  // a reply left over from an earlier command must not pass for the reply to the latest one
+  private int checkRequestId(byte[] reply, int length) throws IOException {
+    int id = requestId(reply, length);
+    if (id != requestId) {
+      throw new IOException("Reply to request " + id + " from server, expected " + requestId + ": "
+                                + new String(reply, 0, length, StandardCharsets.US_ASCII));
+    }
+    return prefixLength(reply, length);
+  }
+
+  /**
+   * Runs PING and checks the reply. Any failure means the session is no longer usable.
+   */
+  boolean isValid() {
+    try {
+      send(InstreamCodec.PING);
+      return ClamAVClient.isPong(readReply());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  long age(long now) {
+    return now - createdAt;
+  }
+
+  long idleTime(long now) {
+    return now - lastUsedAt;
+  }
+
+  /**
+   * Ends the session politely with END and closes the connection. Errors are ignored, the session is gone either way.
+   */
+  void end() {
+    try {
+      out.write(InstreamCodec.END);
+      out.flush();
+    } catch (IOException e) {
+      // nothing to do, the connection is closed below
+    }
+    close();
+  }
+
+  @Override
+  public void close() {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+  }
+
+  // replies in session are of form "<id>: <reply>"
+  static int requestId(byte[] reply) throws IOException {
+    return requestId(reply, reply.length);
+  }
+
+  private static int requestId(byte[] reply, int length) throws IOException {
+    int id = 0;
+    for (int i = 0; i < prefixLength(reply, length) - 2; i++) {
+      id = id * 10 + (reply[i] - '0');
+    }
+    return id;
+  }
+
+  static byte[] stripRequestId(byte[] reply) throws IOException {
+    return Arrays.copyOfRange(reply, prefixLength(reply, reply.length), reply.length);
+  }
+
+  private static int prefixLength(byte[] reply, int length) throws IOException {
+    int i = 0;
+    while (i < length && reply[i] >= '0' && reply[i] <= '9') {
+      i++;
+    }
+    if (i == 0 || i + 1 >= length || reply[i] != ':' || reply[i + 1] != ' ') {
+      throw new IOException("Malformed session reply from server: " + new String(reply, 0, length, StandardCharsets.US_ASCII));
+    }
+    return i + 2;
+  }
+}
@@ -0,0 +1,217 @@
+package fi.solita.clamav;
+
+/**
+ * State of clamd's scanner threads, queue and memory, parsed from the reply to STATS, for example
+ * <pre>
+ * POOLS: 1
+ *
+ * STATE: VALID PRIMARY
+ * THREADS: live 2  idle 1 max 12 idle-timeout 30
+ * QUEUE: 0 items
+ *     STATS 0.000394
+ *
+ * MEMSTATS: heap 9.082M mmap 0.000M used 6.902M free 2.184M releasable 0.129M pools 1 pools_used 565.979M pools_total 565.999M
+ * END
+ * </pre>
+ * With more than one pool the threads and queued items of all pools are added up.
+ */
+public final class ClamdStats {
+
+  private static final double MEGABYTE = 1024 * 1024;
+
+  private final String reply;
+  private final String state;
+  private final int liveThreads;
+  private final int idleThreads;
+  private final int maxThreads;
+  private final int queueLength;
+  private final long heapBytes;
+  private final long usedBytes;
+  private final long poolsUsedBytes;
+
+  private ClamdStats(String reply, String state, int liveThreads, int idleThreads, int maxThreads, int queueLength,
+                     long heapBytes, long usedBytes, long poolsUsedBytes) {
+    this.reply = reply;
+    this.state = state;
+    this.liveThreads = liveThreads;
+    this.idleThreads = idleThreads;
+    this.maxThreads = maxThreads;
+    this.queueLength = queueLength;
+    this.heapBytes = heapBytes;
+    this.usedBytes = usedBytes;
+    this.poolsUsedBytes = poolsUsedBytes;
+  }
+
+  /**
+   * Parses a reply as returned by {@link ClamAVClient#stats()}. Values that are missing or not understood are -1,
+   * the reply itself is always kept.
+   */
+  public static ClamdStats parse(String reply) {
+    String state = null;
+    int live = -1;
+    int idle = -1;
+    int max = -1;
+    int queue = -1;
+    long heap = -1;
+    long used = -1;
+    long poolsUsed = -1;
+    for (String line : reply.split("\n")) {
+      if (line.startsWith("STATE: ")) {
+        state = line.substring("STATE: ".length()).trim();
+      } else if (line.startsWith("THREADS: ")) {
+        String[] words = line.substring("THREADS: ".length()).trim().split("\\s+");
+        live = add(live, intValue(words, "live"));
+        idle = add(idle, intValue(words, "idle"));
+        max = add(max, intValue(words, "max"));
+      } else if (line.startsWith("QUEUE: ")) {
+        String[] words = line.substring("QUEUE: ".length()).trim().split("\\s+");
+        queue = add(queue, words.length == 2 && words[1].equals("items") ? parseInt(words[0]) : -1);
+      } else if (line.startsWith("MEMSTATS: ")) {
+        String[] words = line.substring("MEMSTATS: ".length()).trim().split("\\s+");
+        heap = bytes(words, "heap");
+        used = bytes(words, "used");
+        poolsUsed = bytes(words, "pools_used");
+      }
+    }
+    return new ClamdStats(reply, state, live, idle, max, queue, heap, used, poolsUsed);
+  }
+
+  private static int add(int total, int value) {
+    return value < 0 ? total : Math.max(total, 0) + value;
+  }
+
+  // the word after the name, words come as name value pairs
+  private static String value(String[] words, String name) {
+    for (int i = 0; i < words.length - 1; i++) {
+      if (words[i].equals(name)) {
+        return words[i + 1];
+      }
+    }
+    return null;
+  }
+
+  private static int intValue(String[] words, String name) {
+    String value = value(words, name);
+    return value == null ? -1 : parseInt(value);
+  }
+
+  private static int parseInt(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // megabytes like 9.082M, N/A where the C library can not tell
+  private static long bytes(String[] words, String name) {
+    String value = value(words, name);
+    if (value == null || !value.endsWith("M")) {
+      return -1;
+    }
+    try {
+      return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * MEGABYTE);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return state of the signature database engine, for example "VALID PRIMARY", or null if the reply did not have it
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return scanner threads running, idle ones included
+   */
+  public int getLiveThreads() {
+    return liveThreads;
+  }
+
+  /**
+   * @return scanner threads waiting for work
+   */
+  public int getIdleThreads() {
+    return idleThreads;
+  }
+
+  /**
+   * @return scanner threads clamd runs at most, its MaxThreads setting
+   */
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * @return commands waiting for a scanner thread
+   */
+  public int getQueueLength() {
+    return queueLength;
+  }
+
+  /**
+   * @return threads busy with commands, not counting the one that answered STATS, -1 if the reply did not tell
+   */
+  public int getBusyThreads() {
+    if (liveThreads < 0 || idleThreads < 0) {
+      return -1;
+    }
+    return Math.max(0, liveThreads - idleThreads - 1);
+  }
+
+  /**
+   * @return commands that could start at once without waiting, that is threads not yet busy less queued commands,
+   * negative when commands are queued, {@link Integer#MIN_VALUE} if the reply did not tell
+   */
+  public int getFreeThreads() {
+    if (maxThreads < 0 || getBusyThreads() < 0 || queueLength < 0) {
+      return Integer.MIN_VALUE;
+    }
+    return maxThreads - getBusyThreads() - queueLength;
+  }
+
+  /**
+   * @return bytes of heap clamd has allocated, -1 if its C library does not tell
+   */
+  public long getHeapBytes() {
+    return heapBytes;
+  }
+
+  /**
+   * @return bytes of memory clamd has in use, -1 if its C library does not tell
+   */
+  public long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * @return bytes of memory used by the signature database, -1 if the reply did not have it
+   */
+  public long getPoolsUsedBytes() {
+    return poolsUsedBytes;
+  }
+
+  /**
+   * @return the reply to STATS this was parsed from
+   */
+  public String getReply() {
+    return reply;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ClamdStats && reply.equals(((ClamdStats) o).reply);
+  }
+
+  @Override
+  public int hashCode() {
+    return reply.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return reply;
+  }
+}
@@ -0,0 +1,33 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * How {@link ClamAVClient} reaches clamd. Every session, pipeline and single command gets its connection from the
+ * transport, so a transport decides the cheapest path to clamd for a deployment.
+ * <p>
+ * Provided are {@link TcpTransport}, {@link UnixSocketTransport}, {@link TlsTransport} for a TLS terminating proxy in
+ * front of clamd, and {@link LoopbackTransport}, an in-memory stand-in for clamd that lets benchmarks measure the
+ * client alone. Implementations must be thread safe.
+ */
+public interface ClamdTransport {
+
+  /**
+   * Opens a new connection.
+   *
+   * @param connectTimeout milliseconds, zero means infinite
+   * @param readTimeout    milliseconds a read may block, zero means infinite
+   */
+  ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException;
+
+  /**
+   * Address for non-blocking connections, which {@link ClamAVClient#scanAsync(java.nio.ByteBuffer)} uses. An
+   * {@link java.net.InetSocketAddress} means TCP, any other address a Unix domain socket.
+   *
+   * @return null if the transport only supports blocking connections, in which case asynchronous scans fail
+   */
+  default SocketAddress address() throws IOException {
+    return null;
+  }
+}
@@ -0,0 +1,99 @@
+package fi.solita.clamav;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Version of ClamAV and of the signature database clamd runs, parsed from the reply to VERSION, for example
+ * {@code ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026}.
+ */
+public final class ClamdVersion {
+
+  private static final String PREFIX = "ClamAV ";
+  private static final DateTimeFormatter BUILD_TIME = DateTimeFormatter.ofPattern("MMM d HH:mm:ss yyyy", Locale.ROOT);
+
+  private final String reply;
+  private final String engineVersion;
+  private final long databaseVersion;
+  private final LocalDateTime databaseBuildTime;
+
+  private ClamdVersion(String reply, String engineVersion, long databaseVersion, LocalDateTime databaseBuildTime) {
+    this.reply = reply;
+    this.engineVersion = engineVersion;
+    this.databaseVersion = databaseVersion;
+    this.databaseBuildTime = databaseBuildTime;
+  }
+
+  /**
+   * Parses a reply as returned by {@link ClamAVClient#version()}. Parts that are missing or not understood are
+   * left out, the reply itself is always kept.
+   */
+  public static ClamdVersion parse(String reply) {
+    String text = reply.startsWith(PREFIX) ? reply.substring(PREFIX.length()) : reply;
+    String[] parts = text.split("/", 3);
+    long databaseVersion = -1;
+    if (parts.length > 1) {
+      try {
+        databaseVersion = Long.parseLong(parts[1].trim());
+      } catch (NumberFormatException e) {
+        // left out
+      }
+    }
+    LocalDateTime buildTime = null;
+    if (parts.length > 2) {
+      try {
+        // asctime format, single digit days are padded with a space. The day of the week adds nothing.
+        String time = parts[2].trim().replaceAll(" +", " ");
+        buildTime = LocalDateTime.parse(time.substring(time.indexOf(' ') + 1), BUILD_TIME);
+      } catch (DateTimeParseException e) {
+        // left out
+      }
+    }
+    return new ClamdVersion(reply, parts[0].trim(), databaseVersion, buildTime);
+  }
+
+  /**
+   * @return version of the ClamAV engine, for example 0.103.8
+   */
+  public String getEngineVersion() {
+    return engineVersion;
+  }
+
+  /**
+   * @return version of the signature database, -1 if the reply did not have one
+   */
+  public long getDatabaseVersion() {
+    return databaseVersion;
+  }
+
+  /**
+   * @return when the signature database was built, in clamd's local time, or null if the reply did not have it
+   */
+  public LocalDateTime getDatabaseBuildTime() {
+    return databaseBuildTime;
+  }
+
+  /**
+   * @return the reply to VERSION this was parsed from
+   */
+  public String getReply() {
+    return reply;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ClamdVersion && reply.equals(((ClamdVersion) o).reply);
+  }
+
+  @Override
+  public int hashCode() {
+    return reply.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return reply;
+  }
+}
@@ -0,0 +1,112 @@
+package fi.solita.clamav;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Digests of scanned content, for the result cache and for {@link ScanResult#getDigest()}. Each thread reuses a
+ * {@link MessageDigest} instance of its own. Any algorithm a security provider offers by name can be used.
+ */
+final class ContentDigest {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String algorithm;
+  private final ThreadLocal<MessageDigest> digests;
+
+  /**
+   * @throws IllegalArgumentException if no provider implements the algorithm
+   */
+  ContentDigest(final String algorithm) {
+    newDigest(algorithm);
+    this.algorithm = algorithm;
+    this.digests = new ThreadLocal<MessageDigest>() {
+      @Override
+      protected MessageDigest initialValue() {
+        return newDigest(algorithm);
+      }
+    };
+  }
+
+  /**
+   * @return this thread's digest, reset to be fed with new content
+   */
+  MessageDigest start() {
+    MessageDigest digest = digests.get();
+    digest.reset();
+    return digest;
+  }
+
+  /**
+   * @return a digest of its own, for content that is digested on some other thread
+   */
+  MessageDigest create() {
+    return newDigest(algorithm);
+  }
+
+  /**
+   * Digests the remaining bytes of the buffer without changing its position.
+   */
+  byte[] of(ByteBuffer data) {
+    MessageDigest digest = start();
+    digest.update(data.duplicate());
+    return digest.digest();
+  }
+
+  /**
+   * Digests a file region without moving the channel position.
+   */
+  byte[] of(FileChannel file, long position, long length) throws IOException {
+    MessageDigest digest = start();
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+    long end = position + length;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = file.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("File ended before " + length + " bytes were read.");
+      }
+      position += read;
+      buffer.flip();
+      digest.update(buffer);
+    }
+    return digest.digest();
+  }
+
+  static MessageDigest newDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Digest algorithm " + algorithm + " is not available.", e);
+    }
+  }
+
+  /**
+   * A digest as a map key.
+   */
+  static final class Key {
+    final byte[] digest;
+    private final int hash;
+
+    Key(byte[] digest) {
+      this.digest = digest;
+      this.hash = Arrays.hashCode(digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package fi.solita.clamav;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Reusable INSTREAM framing and reply reading. Keeps its chunk, header and reply buffers between scans, so a scan
+ * in steady state allocates nothing per chunk. Codecs are owned by pooled sessions or pooled by {@link ClamAVClient}.
+ * <p>
+ * The format of the chunk is: '&lt;length&gt;&lt;data&gt;' where &lt;length&gt; is the size of the following data in
+ * bytes expressed as a 4 byte unsigned integer in network byte order and &lt;data&gt; is the actual chunk.
+ * Streaming is terminated by sending a zero-length chunk.
+ * <p>
+ * Not thread safe.
+ */
+final class InstreamCodec {
+
+  static final byte[] INSTREAM = ClamAVClient.asBytes("zINSTREAM\0");
+  static final byte[] PING = ClamAVClient.asBytes("zPING\0");
+  static final byte[] IDSESSION = ClamAVClient.asBytes("zIDSESSION\0");
+  static final byte[] END = ClamAVClient.asBytes("zEND\0");
+  static final byte[] VERSION = ClamAVClient.asBytes("zVERSION\0");
+  static final byte[] STATS = ClamAVClient.asBytes("zSTATS\0");
+
+  private static final int INITIAL_REPLY_BUFFER_SIZE = 256;
+  // bytes sent between checks for an early reply
+  static final int EARLY_REPLY_CHECK_INTERVAL = 64 * 1024;
+
+  private final byte[] header = new byte[4];
+  private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+  private final ByteBuffer[] frame = new ByteBuffer[2];
+  private final int maxReplySize;
+  private byte[] chunk = new byte[0];
+  private byte[] reply;
+  // the latest reply is at the start of the buffer, anything read after it follows up to filled
+  private int replyLength;
+  private int filled;
+  private long bytesSent;
+  private long nextReplyCheck;
+  private IOException writeFailure;
+  private MessageDigest digest;
+
+  InstreamCodec() {
+    this(ClamAVClientConfig.DEFAULT_MAX_REPLY_SIZE);
+  }
+
+  /**
+   * @param maxReplySize longest reply accepted from clamd, including the terminating null byte
+   */
+  InstreamCodec(int maxReplySize) {
+    this.maxReplySize = maxReplySize;
+    this.reply = new byte[Math.min(INITIAL_REPLY_BUFFER_SIZE, maxReplySize)];
+  }
+
+  /**
+   * Streams the data as INSTREAM chunks and terminates the stream, unless clamd replies early.
+   *
+   * @param clamIs reply side of the connection, checked for early replies. Null if somebody else reads the replies.
+   * @return false if clamd sent a reply before the stream was terminated, or writing failed. The reply is left unread.
+   * @throws IOException if reading the input fails
+   * @see #writeFailure()
+   */
+  boolean sendChunks(InputStream is, int chunkSize, OutputStream outs, InputStream clamIs) throws IOException {
+    start();
+    if (chunk.length < chunkSize) {
+      chunk = new byte[chunkSize];
+    }
+    int read;
+    while ((read = is.read(chunk, 0, chunkSize)) >= 0) {
+      if (read > 0 && !sendChunk(read, outs, clamIs)) {
+        return false;
+      }
+    }
+    try {
+      outs.write(header(0));
+      outs.flush();
+      return true;
+    } catch (IOException e) {
+      writeFailure = e;
+      return false;
+    }
+  }
+
+  private boolean sendChunk(int length, OutputStream outs, InputStream clamIs) {
+    try {
+      if (digest != null) {
+        digest.update(chunk, 0, length);
+      }
+      outs.write(header(length));
+      outs.write(chunk, 0, length);
+      bytesSent += length;
+      return !repliedEarly(clamIs);
+    } catch (IOException e) {
+      writeFailure = e;
+      return false;
+    }
+  }
+
+  /**
+   * Streams a file region as INSTREAM chunks with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+   * and terminates the stream unless clamd replies early. Anything buffered in outs is flushed first.
+   *
+   * @return false if clamd sent a reply before the stream was terminated, or writing failed. The reply is left unread.
+   * @throws IOException if the file ends before the region
+   * @see #writeFailure()
+   */
+  boolean transferChunks(FileChannel file, long position, long length, int chunkSize,
+                         OutputStream outs, GatheringByteChannel channel, InputStream clamIs) throws IOException {
+    start();
+    long end = position + length;
+    try {
+      outs.flush();
+      while (position < end) {
+        int size = (int) Math.min(chunkSize, end - position);
+        writeFully(channel, headerBuffer(size));
+        long sent = 0;
+        while (sent < size) {
+          long transferred = file.transferTo(position + sent, size - sent, channel);
+          if (transferred <= 0 && position + sent >= file.size()) {
+            throw new EOFException("File ended before " + length + " bytes were sent.");
+          }
+          sent += transferred;
+        }
+        position += size;
+        bytesSent += size;
+        if (repliedEarly(clamIs)) {
+          return false;
+        }
+      }
+      writeFully(channel, headerBuffer(0));
+      return true;
+    } catch (EOFException e) {
+      throw e;
+    } catch (IOException e) {
+      writeFailure = e;
+      return false;
+    }
+  }
+
+  /**
+   * Streams the remaining bytes of the buffer as INSTREAM chunks and terminates the stream unless clamd replies early.
+   * Uses gathering writes on the channel if there is one, otherwise writes heap buffers from their backing array.
+   * Only direct buffers on sockets without a channel are copied, a chunk at a time. Anything buffered in outs is
+   * flushed first. The position of the buffer is left at the end of the data sent.
+   *
+   * @return false if clamd sent a reply before the stream was terminated, or writing failed. The reply is left unread.
+   * @see #writeFailure()
+   */
+  boolean writeChunks(ByteBuffer data, int chunkSize, OutputStream outs, GatheringByteChannel channel,
+                      InputStream clamIs) {
+    start();
+    int end = data.limit();
+    try {
+      outs.flush();
+      while (data.position() < end) {
+        int size = Math.min(chunkSize, end - data.position());
+        if (digest != null) {
+          ByteBuffer slice = data.duplicate();
+          slice.limit(slice.position() + size);
+          digest.update(slice);
+        }
+        if (channel != null) {
+          // the data buffer itself is the frame body, its limit marks the end of the chunk
+          frame[0] = headerBuffer(size);
+          frame[1] = data;
+          data.limit(data.position() + size);
+          try {
+            while (data.hasRemaining()) {
+              channel.write(frame);
+            }
+          } finally {
+            data.limit(end);
+            frame[1] = null;
+          }
+        } else {
+          outs.write(header(size));
+          if (data.hasArray()) {
+            outs.write(data.array(), data.arrayOffset() + data.position(), size);
+            data.position(data.position() + size);
+          } else {
+            if (chunk.length < size) {
+              chunk = new byte[size];
+            }
+            data.get(chunk, 0, size);
+            outs.write(chunk, 0, size);
+          }
+          outs.flush();
+        }
+        bytesSent += size;
+        if (repliedEarly(clamIs)) {
+          return false;
+        }
+      }
+      if (channel != null) {
+        writeFully(channel, headerBuffer(0));
+      } else {
+        outs.write(header(0));
+        outs.flush();
+      }
+      return true;
+    } catch (IOException e) {
+      writeFailure = e;
+      return false;
+    }
+  }
+
+  /**
+   * Feeds the data of the following sends and writes to the digest, in the same pass that sends it. File transfers
+   * do not go through the heap and are not digested.
+   *
+   * @param digest null to stop digesting
+   */
+  void setDigest(MessageDigest digest) {
+    this.digest = digest;
+  }
+
+  /**
+   * @return why the latest send, transfer or write could not write to clamd, or null if it did not fail. clamd
+   * closes the connection after replying with an error, so the reply may still be readable.
+   */
+  IOException writeFailure() {
+    return writeFailure;
+  }
+
+  /**
+   * @return bytes of data sent by the latest send, transfer or write, excluding framing
+   */
+  long bytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * Reads a reply up to and including the terminating null byte into the reply buffer. Returns as soon as the
+   * terminator arrives, without waiting for more data or for clamd to close the connection. The stream is read in
+   * bulk, bytes following the reply are kept for the next call, so replies to pipelined commands are not lost.
+   * If the read fails, for example on a read timeout, the bytes read so far are kept as well and the next call
+   * continues the same reply.
+   *
+   * @return length of the reply
+   * @throws IOException if the reply is longer than the maximum reply size, or the stream ends before the terminator
+   * @see #replyBuffer()
+   */
+  int readTerminated(InputStream in) throws IOException {
+    if (replyLength > 0) {
+      filled -= replyLength;
+      System.arraycopy(reply, replyLength, reply, 0, filled);
+      replyLength = 0;
+    }
+    int scanned = 0;
+    while (true) {
+      for (; scanned < filled; scanned++) {
+        if (reply[scanned] == 0) {
+          replyLength = scanned + 1;
+          return replyLength;
+        }
+      }
+      if (filled == reply.length) {
+        if (reply.length >= maxReplySize) {
+          throw new IOException("Reply from server exceeds " + maxReplySize + " bytes.");
+        }
+        reply = Arrays.copyOf(reply, Math.min(reply.length * 2, maxReplySize));
+      }
+      int read = in.read(reply, filled, reply.length - filled);
+      if (read < 0) {
+        throw new EOFException("Connection closed by clamd before the reply was complete.");
+      }
+      filled += read;
+    }
+  }
+
+  /**
+   * Forgets any reply data read so far, before the codec is used on another connection.
+   */
+  void clearReplies() {
+    replyLength = 0;
+    filled = 0;
+  }
+
+  /**
+   * @return buffer holding the latest reply, valid until the next read
+   */
+  byte[] replyBuffer() {
+    return reply;
+  }
+
+  /**
+   * @return copy of the latest reply
+   */
+  byte[] replyCopy(int from) {
+    return Arrays.copyOfRange(reply, from, replyLength);
+  }
+
+  private void start() {
+    bytesSent = 0;
+    nextReplyCheck = EARLY_REPLY_CHECK_INTERVAL;
+    writeFailure = null;
+  }
+
+  // available() is a system call, so the reply side is looked at once per check interval rather than per chunk.
+  // Missing an early reply costs little: clamd closes the connection after it, the next write fails and the
+  // caller reads the reply then.
+  private boolean repliedEarly(InputStream clamIs) throws IOException {
+    if (clamIs == null || bytesSent < nextReplyCheck) {
+      return false;
+    }
+    nextReplyCheck = bytesSent + EARLY_REPLY_CHECK_INTERVAL;
+    return clamIs.available() > 0;
+  }
+
+  private byte[] header(int length) {
+    header[0] = (byte) (length >>> 24);
+    header[1] = (byte) (length >>> 16);
+    header[2] = (byte) (length >>> 8);
+    header[3] = (byte) length;
+    return header;
+  }
+
+  private ByteBuffer headerBuffer(int length) {
+    header(length);
+    headerBuffer.clear();
+    return headerBuffer;
+  }
+
+  private static void writeFully(GatheringByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for clamd. Understands the commands the client sends (IDSESSION, END, PING, VERSION, STATS
+ * and INSTREAM) and gives every scan the same reply, clean unless told otherwise. Stream data is discarded as it is
+ * written, without being copied, so benchmarks over the loopback measure the cost of the client alone. Also handy
+ * in tests of code that uses the client.
+ * <p>
+ * Like clamd, the loopback ends the connection after a reply outside of a session and after a size limit error.
+ */
+public final class LoopbackTransport implements ClamdTransport {
+
+  static final String VERSION = "ClamAV loopback";
+  static final String STATS = "POOLS: 1\n\nSTATE: VALID PRIMARY\nTHREADS: live 1  idle 0 max 10 idle-timeout 30\n"
+      + "QUEUE: 0 items\n\tSTATS 0.000000 \n\nMEMSTATS: heap N/A mmap N/A used N/A free N/A releasable N/A pools 1 "
+      + "pools_used 0.000M pools_total 0.000M\nEND";
+
+  private final byte[] scanReply;
+  private final long streamMaxLength;
+  private volatile byte[] versionReply = ClamAVClient.asBytes(VERSION);
+  private volatile byte[] statsReply = ClamAVClient.asBytes(STATS);
+  private volatile long scanDelay;
+  private final AtomicInteger scans = new AtomicInteger();
+  private final AtomicInteger frames = new AtomicInteger();
+
+  /**
+   * Every scan is clean.
+   */
+  public LoopbackTransport() {
+    this("stream: OK", Long.MAX_VALUE);
+  }
+
+  /**
+   * @param scanReply       reply to every scan without the terminating null, for example "stream: Eicar-Test-Signature FOUND"
+   * @param streamMaxLength bytes after which a stream is rejected like clamd does with StreamMaxLength
+   */
+  public LoopbackTransport(String scanReply, long streamMaxLength) {
+    this.scanReply = ClamAVClient.asBytes(scanReply);
+    this.streamMaxLength = streamMaxLength;
+  }
+
+  /**
+   * Changes the reply to VERSION, as if clamd had loaded another signature database.
+   *
+   * @param version for example "ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"
+   */
+  public void setVersion(String version) {
+    this.versionReply = ClamAVClient.asBytes(version);
+  }
+
+  /**
+   * Changes the reply to STATS, as if clamd had got busier or less busy. By default one thread of ten is live,
+   * the one answering STATS, and nothing is queued.
+   *
+   * @param stats lines as clamd sends them, ending with "END"
+   */
+  public void setStats(String stats) {
+    this.statsReply = ClamAVClient.asBytes(stats);
+  }
+
+  /**
+   * Makes the reply to every scan arrive after a delay, like a busy clamd. The connection is not blocked meanwhile,
+   * but the replies to later commands in a session wait behind it.
+   *
+   * @param scanDelay milliseconds
+   */
+  public void setScanDelay(long scanDelay) {
+    this.scanDelay = scanDelay;
+  }
+
+  // scans replied to so far
+  int scanCount() {
+    return scans.get();
+  }
+
+  // INSTREAM chunks received so far, not counting the terminating ones
+  int frameCount() {
+    return frames.get();
+  }
+
+  @Override
+  public ClamdConnection connect(int connectTimeout, int readTimeout) {
+    return new Connection(readTimeout);
+  }
+
+  @Override
+  public String toString() {
+    return "loopback";
+  }
+
+  private enum State {COMMAND, LENGTH, DATA}
+
+  private static final byte[] IDSESSION = ClamAVClient.asBytes("IDSESSION");
+  private static final byte[] END = ClamAVClient.asBytes("END");
+  private static final byte[] PING = ClamAVClient.asBytes("PING");
+  private static final byte[] VERSION_COMMAND = ClamAVClient.asBytes("VERSION");
+  private static final byte[] STATS_COMMAND = ClamAVClient.asBytes("STATS");
+  private static final byte[] INSTREAM = ClamAVClient.asBytes("INSTREAM");
+  private static final byte[] PONG = ClamAVClient.asBytes("PONG");
+  private static final byte[] SIZE_LIMIT_EXCEEDED = ClamAVClient.asBytes("INSTREAM size limit exceeded. ERROR");
+  private static final byte[] UNKNOWN_COMMAND = ClamAVClient.asBytes("UNKNOWN COMMAND");
+
+  // the client writes commands, clamd's replies are queued for reading
+  private final class Connection implements ClamdConnection {
+    private final int readTimeout;
+    private final InputStream in = new In();
+    private final OutputStream out = new Out();
+    private byte[] replies = new byte[256];
+    private int replyStart;
+    private int replyEnd;
+    // System.currentTimeMillis() before which the queued replies can not be read
+    private long repliesReadyAt;
+    private boolean ended;
+    private boolean outputShut;
+    private boolean closed;
+
+    private State state = State.COMMAND;
+    private final byte[] command = new byte[32];
+    private int commandLength;
+    private int lengthBytes;
+    private int frameLength;
+    private long streamLength;
+    private byte terminator;
+    private boolean session;
+    private int requestId;
+
+    Connection(int readTimeout) {
+      this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    @Override
+    public GatheringByteChannel getChannel() {
+      return null;
+    }
+
+    @Override
+    public synchronized void shutdownOutput() {
+      outputShut = true;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new SocketException("Socket closed");
+      }
+      if (ended || outputShut) {
+        throw new SocketException("Broken pipe");
+      }
+      int end = off + len;
+      while (off < end && !ended) {
+        switch (state) {
+          case COMMAND:
+            byte c = b[off++];
+            if (c == 0 || c == '\n') {
+              terminator = c;
+              command();
+            } else if (commandLength < command.length) {
+              command[commandLength++] = c;
+            }
+            break;
+          case LENGTH:
+            frameLength = frameLength << 8 | (b[off++] & 0xff);
+            if (++lengthBytes == 4) {
+              frame();
+            }
+            break;
+          case DATA:
+            int skipped = Math.min(frameLength, end - off);
+            off += skipped;
+            frameLength -= skipped;
+            if (frameLength == 0) {
+              state = State.LENGTH;
+            }
+            break;
+        }
+      }
+    }
+
+    private void command() {
+      if (isCommand(IDSESSION)) {
+        session = true;
+      } else if (isCommand(END)) {
+        end();
+      } else if (isCommand(PING)) {
+        reply(PONG);
+      } else if (isCommand(VERSION_COMMAND)) {
+        reply(versionReply);
+      } else if (isCommand(STATS_COMMAND)) {
+        reply(statsReply);
+      } else if (isCommand(INSTREAM)) {
+        state = State.LENGTH;
+        streamLength = 0;
+      } else {
+        reply(UNKNOWN_COMMAND);
+      }
+      commandLength = 0;
+    }
+
+    // the command without its z or n prefix
+    private boolean isCommand(byte[] name) {
+      if (commandLength != name.length + 1) {
+        return false;
+      }
+      for (int i = 0; i < name.length; i++) {
+        if (command[i + 1] != name[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void frame() {
+      int length = frameLength;
+      lengthBytes = 0;
+      frameLength = 0;
+      if (length == 0) {
+        state = State.COMMAND;
+        scans.incrementAndGet();
+        repliesReadyAt = System.currentTimeMillis() + scanDelay;
+        reply(scanReply);
+      } else if ((streamLength += length & 0xffffffffL) > streamMaxLength) {
+        reply(SIZE_LIMIT_EXCEEDED);
+        end();
+      } else {
+        frames.incrementAndGet();
+        frameLength = length;
+        state = State.DATA;
+      }
+    }
+
+    private void reply(byte[] text) {
+      requestId++;
+      if (session) {
+        appendNumber(requestId);
+        append(':');
+        append(' ');
+      }
+      for (byte b : text) {
+        append(b);
+      }
+      append(terminator);
+      if (!session) {
+        end();
+      }
+      notifyAll();
+    }
+
+    private void appendNumber(int n) {
+      if (n >= 10) {
+        appendNumber(n / 10);
+      }
+      append((byte) ('0' + n % 10));
+    }
+
+    private void append(int b) {
+      if (replyEnd == replies.length) {
+        replies = Arrays.copyOf(replies, replies.length * 2);
+      }
+      replies[replyEnd++] = (byte) b;
+    }
+
+    private void end() {
+      ended = true;
+      notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+      long deadline = System.currentTimeMillis() + readTimeout;
+      while (!closed && (replyStart == replyEnd ? !ended : System.currentTimeMillis() < repliesReadyAt)) {
+        long now = System.currentTimeMillis();
+        long left = readTimeout == 0 ? 0 : deadline - now;
+        if (readTimeout != 0 && left <= 0) {
+          throw new SocketTimeoutException("Read timed out");
+        }
+        if (replyStart != replyEnd) {
+          // wait(0) would wait for good
+          long untilReady = Math.max(1, repliesReadyAt - now);
+          left = left == 0 ? untilReady : Math.min(left, untilReady);
+        }
+        try {
+          wait(left);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SocketException("Interrupted");
+        }
+      }
+      if (closed) {
+        throw new SocketException("Socket closed");
+      }
+      if (replyStart == replyEnd) {
+        return -1;
+      }
+      int read = Math.min(len, replyEnd - replyStart);
+      System.arraycopy(replies, replyStart, b, off, read);
+      replyStart += read;
+      if (replyStart == replyEnd) {
+        replyStart = 0;
+        replyEnd = 0;
+      }
+      return read;
+    }
+
+    private synchronized int available() {
+      return System.currentTimeMillis() < repliesReadyAt ? 0 : replyEnd - replyStart;
+    }
+
+    private final class In extends InputStream {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return len == 0 ? 0 : Connection.this.read(b, off, len);
+      }
+
+      @Override
+      public int available() {
+        return Connection.this.available();
+      }
+
+      @Override
+      public void close() {
+        Connection.this.close();
+      }
+    }
+
+    private final class Out extends OutputStream {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        Connection.this.write(b, off, len);
+      }
+
+      @Override
+      public void close() {
+        Connection.this.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package fi.solita.clamav;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Scan results on disk, shared by every process on the host that uses the same file and kept over restarts.
+ * <p>
+ * The file is a memory-mapped, open-addressed hash table of fixed size slots. A slot holds the first bytes of a
+ * content digest, the status of the result, a hash of the signature database version, the time the result was
+ * stored and, for found results, the reply. Lookups probe a few slots from the one the digest points at. An insert
+ * takes the slot of the same digest, an empty one or else the oldest one in that window.
+ * <p>
+ * Writers lock the file, so processes and clients in this JVM write one at a time. Readers do not lock, they copy a
+ * slot and read it from the copy. Every slot carries a checksum written after its content, and a slot whose checksum
+ * does not match, because it was being written while copied or was torn by a crash, reads as a miss.
+ * <p>
+ * The file is opened on first use. If that fails, the store stays unusable and every call fails the same way, without
+ * trying again. Thread safe.
+ */
+final class MappedResultStore implements Closeable {
+
+  private static final long MAGIC = 0x434c414d52535431L; // "CLAMRST1"
+  private static final int HEADER_SIZE = 64;
+  static final int SLOT_SIZE = 128;
+  static final int KEY_LENGTH = 32;
+  // slot layout
+  private static final int CHECKSUM = 0;
+  private static final int USED = 8;
+  private static final int STATUS = 9;
+  private static final int REPLY_LENGTH = 10;
+  private static final int VERSION = 16;
+  private static final int STORED_AT = 24;
+  private static final int KEY = 32;
+  private static final int REPLY = KEY + KEY_LENGTH;
+  static final int REPLY_CAPACITY = SLOT_SIZE - REPLY;
+  // slots looked at from the one a digest points at
+  private static final int MAX_PROBES = 8;
+  static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+  // file locks belong to the whole JVM, so clients in this JVM writing the same file take turns on these first
+  private static final ConcurrentMap<Path, Object> WRITE_LOCKS = new ConcurrentHashMap<>();
+
+  private final Path file;
+  private final int slots;
+  private FileChannel channel;
+  private Object writeLock;
+  private volatile MappedByteBuffer table;
+  private volatile boolean closed;
+  // why the file could not be opened, it is not tried again
+  private IOException openFailure;
+
+  /**
+   * @param file  created if it does not exist
+   * @param slots results the file holds, only used when the file is created
+   */
+  MappedResultStore(Path file, int slots) {
+    this.file = file;
+    this.slots = slots;
+  }
+
+  /**
+   * @return the result stored for the digest under the database version, or null if there is none
+   */
+  ScanResult get(byte[] digest, String version) throws IOException {
+    ByteBuffer table = table();
+    int slotCount = slotCount(table);
+    long versionHash = hash(version);
+    int first = slotIndex(digest, slotCount);
+    // a writer may replace a slot while it is read, so everything is taken from one copy the checksum is checked on
+    ByteBuffer copy = ByteBuffer.allocate(SLOT_SIZE);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = slotOffset((first + probe) % slotCount);
+      if (table.get(slot + USED) == 0) {
+        return null;
+      }
+      if (!keyMatches(table, slot, digest)) {
+        continue;
+      }
+      ByteBuffer source = table.duplicate();
+      source.position(slot).limit(slot + SLOT_SIZE);
+      copy.clear();
+      copy.put(source);
+      if (copy.getLong(CHECKSUM) != checksum(copy, 0) || !keyMatches(copy, 0, digest)) {
+        return null;
+      }
+      int replyLength = copy.getShort(REPLY_LENGTH);
+      if (replyLength < 0 || replyLength > REPLY_CAPACITY || copy.getLong(VERSION) != versionHash) {
+        return null;
+      }
+      ScanResult.Status status = status(copy.get(STATUS));
+      if (status == ScanResult.Status.CLEAN) {
+        return ScanResult.CLEAN;
+      }
+      byte[] reply = new byte[replyLength];
+      System.arraycopy(copy.array(), REPLY, reply, 0, replyLength);
+      ScanResult result = ScanResult.parse(reply);
+      return result.getStatus() == status ? result : null;
+    }
+    return null;
+  }
+
+  /**
+   * Stores a clean or found result. Found results with a reply too long for a slot are not stored.
+   */
+  void put(byte[] digest, String version, ScanResult result) throws IOException {
+    byte[] reply = null;
+    if (result.getStatus() == ScanResult.Status.FOUND) {
+      reply = ClamAVClient.asBytes(result.toString());
+      if (reply.length > REPLY_CAPACITY) {
+        return;
+      }
+    } else if (result.getStatus() != ScanResult.Status.CLEAN) {
+      return;
+    }
+    ByteBuffer table = table();
+    int slotCount = slotCount(table);
+    int first = slotIndex(digest, slotCount);
+    synchronized (writeLock) {
+      FileLock lock = channel.lock();
+      try {
+        int slot = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+          int candidate = slotOffset((first + probe) % slotCount);
+          if (table.get(candidate + USED) == 0 || keyMatches(table, candidate, digest)) {
+            slot = candidate;
+            break;
+          }
+          long storedAt = table.getLong(candidate + STORED_AT);
+          if (storedAt < oldest) {
+            oldest = storedAt;
+            slot = candidate;
+          }
+        }
+        // invalidate the slot first, so that readers do not take a half written slot for a valid one
+        table.putLong(slot + CHECKSUM, ~table.getLong(slot + CHECKSUM));
+        for (int i = 0; i < KEY_LENGTH; i++) {
+          table.put(slot + KEY + i, i < digest.length ? digest[i] : 0);
+        }
+        table.put(slot + STATUS, (byte) result.getStatus().ordinal());
+        table.putShort(slot + REPLY_LENGTH, (short) (reply == null ? 0 : reply.length));
+        table.putLong(slot + VERSION, hash(version));
+        table.putLong(slot + STORED_AT, System.currentTimeMillis());
+        for (int i = 0; i < REPLY_CAPACITY; i++) {
+          table.put(slot + REPLY + i, reply != null && i < reply.length ? reply[i] : 0);
+        }
+        table.put(slot + USED, (byte) 1);
+        table.putLong(slot + CHECKSUM, checksum(table, slot));
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private ByteBuffer table() throws IOException {
+    ByteBuffer table = this.table;
+    if (table != null && !closed) {
+      return table;
+    }
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Result store is closed.");
+      }
+      if (openFailure != null) {
+        throw openFailure;
+      }
+      if (this.table == null) {
+        try {
+          open();
+        } catch (IOException e) {
+          openFailure = e;
+          throw e;
+        }
+      }
+      return this.table;
+    }
+  }
+
+  private void open() throws IOException {
+    Path path = file.toAbsolutePath().normalize();
+    Object lock = WRITE_LOCKS.computeIfAbsent(path, p -> new Object());
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long size;
+      synchronized (lock) {
+        FileLock fileLock = channel.lock();
+        try {
+          if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(SLOT_SIZE).putInt(slots).clear();
+            channel.write(header, 0);
+            // the slots are zero, that is empty, in the extended file
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * SLOT_SIZE - 1);
+          }
+          size = channel.size();
+        } finally {
+          fileLock.release();
+        }
+      }
+      MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (size < HEADER_SIZE || table.getLong(0) != MAGIC || table.getInt(8) != SLOT_SIZE
+          || table.getInt(12) <= 0 || HEADER_SIZE + (long) table.getInt(12) * SLOT_SIZE > size) {
+        throw new IOException(file + " is not a scan result store.");
+      }
+      this.channel = channel;
+      this.writeLock = lock;
+      this.table = table;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes the file. The mapping itself goes away when it is garbage collected.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+
+  private static int slotCount(ByteBuffer table) {
+    return table.getInt(12);
+  }
+
+  private static int slotOffset(int index) {
+    return HEADER_SIZE + index * SLOT_SIZE;
+  }
+
+  // digests are uniformly distributed, their first bytes make a good hash
+  private static int slotIndex(byte[] digest, int slotCount) {
+    long hash = 0;
+    for (int i = 0; i < Math.min(8, digest.length); i++) {
+      hash = hash << 8 | (digest[i] & 0xff);
+    }
+    return (int) Math.floorMod(hash, (long) slotCount);
+  }
+
+  private static boolean keyMatches(ByteBuffer table, int slot, byte[] digest) {
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      if (table.get(slot + KEY + i) != (i < digest.length ? digest[i] : 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static ScanResult.Status status(byte ordinal) {
+    return ordinal == ScanResult.Status.FOUND.ordinal() ? ScanResult.Status.FOUND : ScanResult.Status.CLEAN;
+  }
+
+  // FNV-1a over everything in the slot but the checksum itself, never 0 so that an empty slot is never valid
+  private static long checksum(ByteBuffer table, int slot) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = USED; i < SLOT_SIZE; i++) {
+      hash = (hash ^ (table.get(slot + i) & 0xff)) * 0x100000001b3L;
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  static long hash(String version) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : version.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+}
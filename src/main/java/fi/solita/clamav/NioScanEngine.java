@@ -0,0 +1,374 @@
+package fi.solita.clamav;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking INSTREAM scanning. A few event loop threads, each with its own selector, drive any number of scans.
+ * <p>
+ * Every scan is a small state machine: connect, send the command and the length-prefixed chunks straight from the
+ * caller's buffer with gathering writes, then read the null terminated reply. The reply side is watched the whole
+ * time, so an early reply from clamd (size limit exceeded) ends the scan at once. Each scan uses a connection of its own.
+ * <p>
+ * Results are handed to the common fork-join pool, so stages the caller chains to a future never run on, or stall,
+ * an event loop.
+ */
+final class NioScanEngine implements Closeable {
+
+  // how often the event loops look for timed out scans
+  private static final long TIMEOUT_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+  // completes the futures, the pool CompletableFuture runs its async stages in
+  private static final Executor COMPLETIONS = ForkJoinPool.commonPool();
+
+  private final EventLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private final long connectTimeout;
+  private final long readTimeout;
+  private final int maxReplySize;
+
+  /**
+   * @param connectTimeout milliseconds, zero means infinite
+   * @param readTimeout    milliseconds clamd may take to accept more of the stream while it is sent, and to send
+   *                       more of the reply after that, zero means infinite
+   * @param maxReplySize   longest reply accepted from clamd, including the terminating null byte
+   */
+  NioScanEngine(int threads, int connectTimeout, int readTimeout, int maxReplySize) throws IOException {
+    this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+    this.readTimeout = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+    this.maxReplySize = maxReplySize;
+    this.loops = new EventLoop[threads];
+    try {
+      for (int i = 0; i < threads; i++) {
+        loops[i] = new EventLoop(i);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Scans the remaining bytes of the buffer over TCP, or over a Unix domain socket if the address is not an
+   * {@link InetSocketAddress}. The buffer's position is not changed, but its content must not change
+   * before the scan completes. Cancelling the returned future closes the connection.
+   *
+   * @param digest fed with the data as it is sent, its value is added to the result. Null if results carry no digest.
+   */
+  CompletableFuture<ScanResult> scan(SocketAddress address, ByteBuffer data, int chunkSize, MessageDigest digest) {
+    CompletableFuture<ScanResult> result = new CompletableFuture<>();
+    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    InstreamTask task = new InstreamTask(loop, address, data.duplicate(), chunkSize, digest, result);
+    loop.execute(task::start);
+    result.whenComplete((r, e) -> {
+      if (result.isCancelled()) {
+        loop.execute(task::close);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Stops the event loops. Scans in progress fail.
+   */
+  @Override
+  public void close() {
+    for (EventLoop loop : loops) {
+      if (loop != null) {
+        loop.close();
+      }
+    }
+  }
+
+  private final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    EventLoop(int index) throws IOException {
+      selector = Selector.open();
+      Thread thread = new Thread(this, "clamd-nio-" + index);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    void close() {
+      closed = true;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long lastTimeoutCheck = System.nanoTime();
+      while (!closed) {
+        try {
+          selector.select(TimeUnit.NANOSECONDS.toMillis(TIMEOUT_CHECK_INTERVAL));
+        } catch (IOException e) {
+          break;
+        }
+        runTasks();
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          ((InstreamTask) key.attachment()).handle(key);
+        }
+        long now = System.nanoTime();
+        if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+          for (SelectionKey key : selector.keys()) {
+            ((InstreamTask) key.attachment()).checkTimeout(now);
+          }
+          lastTimeoutCheck = now;
+        }
+      }
+      IOException closed = new IOException("Scan engine closed.");
+      for (SelectionKey key : selector.keys()) {
+        ((InstreamTask) key.attachment()).fail(closed);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+      // scans submitted while closing fail when they try to register with the closed selector
+      runTasks();
+    }
+
+    private void runTasks() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  private enum State {CONNECTING, SENDING, READING}
+
+  private final class InstreamTask {
+    private final EventLoop loop;
+    private final SocketAddress address;
+    private final ByteBuffer data;
+    private final int dataLimit;
+    private final int chunkSize;
+    private final MessageDigest digest;
+    private final CompletableFuture<ScanResult> result;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private final ByteBuffer[] lastFrame = new ByteBuffer[1];
+    private final ByteBuffer reply = ByteBuffer.allocate(maxReplySize);
+    private ByteBuffer[] pending;
+    private boolean terminated;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.CONNECTING;
+    // System.nanoTime() after which the scan times out, or 0 if there is no deadline
+    private long deadline;
+    private IOException writeFailure;
+
+    InstreamTask(EventLoop loop, SocketAddress address, ByteBuffer data, int chunkSize, MessageDigest digest,
+                 CompletableFuture<ScanResult> result) {
+      this.loop = loop;
+      this.address = address;
+      this.data = data;
+      this.dataLimit = data.limit();
+      this.chunkSize = chunkSize;
+      this.digest = digest;
+      this.result = result;
+      this.pending = new ByteBuffer[]{ByteBuffer.wrap(InstreamCodec.INSTREAM)};
+    }
+
+    void start() {
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        if (address instanceof InetSocketAddress) {
+          channel = SocketChannel.open();
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } else {
+          channel = UnixSocketConnection.openChannel();
+        }
+        channel.configureBlocking(false);
+        if (channel.connect(address)) {
+          key = channel.register(loop.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+          state = State.SENDING;
+          deadline = deadlineAfter(readTimeout);
+        } else {
+          key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+          deadline = deadlineAfter(connectTimeout);
+        }
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    void handle(SelectionKey key) {
+      try {
+        if (key.isConnectable()) {
+          channel.finishConnect();
+          state = State.SENDING;
+          deadline = deadlineAfter(readTimeout);
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        if (key.isReadable()) {
+          read();
+        }
+        if (state == State.SENDING && key.isValid() && key.isWritable()) {
+          write();
+        }
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    void checkTimeout(long now) {
+      if (deadline != 0 && now - deadline >= 0) {
+        fail(new SocketTimeoutException(state == State.CONNECTING ? "Connect timed out"
+                                            : state == State.SENDING ? "Write timed out" : "Read timed out"));
+      }
+    }
+
+    private void write() throws IOException {
+      try {
+        while (true) {
+          if (channel.write(pending) > 0) {
+            // a peer that stops reading holds the scan no longer than the read timeout
+            deadline = deadlineAfter(readTimeout);
+          }
+          if (pending[pending.length - 1].hasRemaining()) {
+            // socket buffer is full, continue when writable again
+            return;
+          }
+          if (!nextFrame()) {
+            state = State.READING;
+            deadline = deadlineAfter(readTimeout);
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+          }
+        }
+      } catch (IOException e) {
+        // clamd may have replied with an error and closed the connection, read what it said
+        writeFailure = e;
+        state = State.READING;
+        deadline = deadlineAfter(readTimeout);
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    // The format of the chunk is: '<length><data>' where <length> is the size of the following data in bytes expressed as a 4 byte unsigned
+    // integer in network byte order and <data> is the actual chunk. Streaming is terminated by sending a zero-length chunk.
+    private boolean nextFrame() {
+      data.limit(dataLimit);
+      if (data.hasRemaining()) {
+        int length = Math.min(chunkSize, data.remaining());
+        header.clear();
+        header.putInt(length);
+        header.flip();
+        // the data buffer itself is the frame body, its limit marks the end of the chunk
+        data.limit(data.position() + length);
+        if (digest != null) {
+          digest.update(data.duplicate());
+        }
+        frame[0] = header;
+        frame[1] = data;
+        pending = frame;
+        return true;
+      }
+      if (!terminated) {
+        header.clear();
+        header.putInt(0);
+        header.flip();
+        lastFrame[0] = header;
+        pending = lastFrame;
+        terminated = true;
+        return true;
+      }
+      return false;
+    }
+
+    private void read() throws IOException {
+      int start = reply.position();
+      int read = channel.read(reply);
+      if (read < 0) {
+        throw writeFailure != null ? writeFailure : new EOFException("Connection closed by clamd before the reply was complete.");
+      }
+      if (state == State.READING) {
+        deadline = deadlineAfter(readTimeout);
+      }
+      for (int i = start; i < reply.position(); i++) {
+        if (reply.get(i) == 0) {
+          complete(i + 1);
+          return;
+        }
+      }
+      if (!reply.hasRemaining()) {
+        throw new IOException("Reply from server exceeds " + maxReplySize + " bytes.");
+      }
+    }
+
+    private void complete(int length) {
+      boolean early = state != State.READING || writeFailure != null;
+      close();
+      ScanResult parsed;
+      try {
+        parsed = ClamAVClient.assertSizeLimit(reply.array(), length);
+      } catch (ClamAVSizeLimitException e) {
+        COMPLETIONS.execute(() -> result.completeExceptionally(e));
+        return;
+      }
+      if (early) {
+        COMPLETIONS.execute(() -> result.completeExceptionally(new IOException("Scan aborted. Reply from server: " + parsed)));
+      } else {
+        ScanResult digested = digest != null ? parsed.withDigest(digest.digest()) : parsed;
+        COMPLETIONS.execute(() -> result.complete(digested));
+      }
+    }
+
+    void fail(Throwable cause) {
+      close();
+      COMPLETIONS.execute(() -> result.completeExceptionally(cause));
+    }
+
+    void close() {
+      deadline = 0;
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+
+    private long deadlineAfter(long timeout) {
+      if (timeout == 0) {
+        return 0;
+      }
+      long deadline = System.nanoTime() + timeout;
+      // 0 means no deadline
+      return deadline == 0 ? 1 : deadline;
+    }
+  }
+}
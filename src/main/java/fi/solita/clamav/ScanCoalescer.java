@@ -0,0 +1,64 @@
+package fi.solita.clamav;
+
+import fi.solita.clamav.ContentDigest.Key;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Lets concurrent scans of the same content share one clamd scan. The first caller with a digest runs the scan,
+ * callers with the same digest arriving before it finishes wait for its result instead of scanning again.
+ * Nothing is remembered after the scan, see {@link ScanResultCache} for that. Thread safe.
+ */
+final class ScanCoalescer {
+
+  private final ConcurrentMap<Key, CompletableFuture<ScanResult>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Runs the scan, or waits for the scan of the same digest already running. Waiting callers get the same result,
+   * or an exception of the same type caused by the one the scan failed with.
+   */
+  ScanResult scan(byte[] digest, ScanResultCache.Scan scan) throws IOException {
+    Key key = new Key(digest);
+    CompletableFuture<ScanResult> mine = new CompletableFuture<>();
+    CompletableFuture<ScanResult> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      return await(running);
+    }
+    try {
+      ScanResult result = scan.run();
+      mine.complete(result);
+      return result;
+    } catch (IOException | RuntimeException | Error e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  // the scan's exception is not rethrown as such, as it belongs to the thread that ran the scan
+  private static ScanResult await(CompletableFuture<ScanResult> running) throws IOException {
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the same content to be scanned.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ClamAVSizeLimitException) {
+        ClamAVSizeLimitException exception = new ClamAVSizeLimitException(cause.getMessage());
+        exception.initCause(cause);
+        throw exception;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Scan of the same content failed: " + cause.getMessage(), cause);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package fi.solita.clamav;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a scan, parsed from the clamd reply.
+ * <p>
+ * Clean replies are by far the most common, so they all share the {@link #CLEAN} instance. Its request id is zero
+ * even when the scan ran in a session.
+ */
+public final class ScanResult {
+
+  public enum Status {
+    /** nothing was found */
+    CLEAN,
+    /** one or more signatures matched, see {@link #getSignatures()} */
+    FOUND,
+    /** clamd could not scan the data */
+    ERROR,
+    /** the data exceeded StreamMaxLength in clamd.conf */
+    SIZE_LIMIT
+  }
+
+  private static final byte[] CLEAN_REPLY = ClamAVClient.asBytes("stream: OK\0");
+  private static final byte[] OK = ClamAVClient.asBytes(" OK");
+  private static final byte[] FOUND = ClamAVClient.asBytes(" FOUND");
+  private static final byte[] SIZE_LIMIT_EXCEEDED = ClamAVClient.asBytes("INSTREAM size limit exceeded.");
+
+  public static final ScanResult CLEAN = new ScanResult(Status.CLEAN, Collections.<String>emptyList(), 0, CLEAN_REPLY, null);
+
+  private final Status status;
+  private final List<String> signatures;
+  private final int requestId;
+  private final byte[] reply;
+  private final byte[] digest;
+
+  private ScanResult(Status status, List<String> signatures, int requestId, byte[] reply, byte[] digest) {
+    this.status = status;
+    this.signatures = signatures;
+    this.requestId = requestId;
+    this.reply = reply;
+    this.digest = digest;
+  }
+
+  /**
+   * Parses a reply as returned by the scan methods of {@link ClamAVClient}. A request id prefix ({@code <id>: })
+   * from a session is recognized and left out of {@link #getReply()}.
+   */
+  public static ScanResult parse(byte[] reply) {
+    return parse(reply, 0, reply.length);
+  }
+
+  /**
+   * Parses the reply in the given part of the buffer in one pass, without decoding it to a String. Only the names
+   * of found signatures become Strings. The buffer may be reused once this returns.
+   */
+  static ScanResult parse(byte[] buf, int off, int len) {
+    int end = off + len;
+    while (end > off && (buf[end - 1] == 0 || buf[end - 1] == '\n')) {
+      end--;
+    }
+    int requestId = 0;
+    int start = off;
+    while (start < end && buf[start] >= '0' && buf[start] <= '9') {
+      requestId = requestId * 10 + (buf[start++] - '0');
+    }
+    if (start > off && start + 1 < end && buf[start] == ':' && buf[start + 1] == ' ') {
+      start += 2;
+    } else {
+      requestId = 0;
+      start = off;
+    }
+
+    Status status = null;
+    List<String> signatures = null;
+    int lineStart = start;
+    // with AllMatchScan clamd reports every matching signature on a line of its own
+    for (int i = start; i <= end; i++) {
+      if (i < end && buf[i] != '\n' && buf[i] != 0) {
+        continue;
+      }
+      if (endsWith(buf, lineStart, i, FOUND)) {
+        if (signatures == null) {
+          signatures = new ArrayList<>(1);
+        }
+        int name = nameStart(buf, lineStart, i - FOUND.length);
+        signatures.add(new String(buf, name, i - FOUND.length - name, StandardCharsets.US_ASCII));
+        status = Status.FOUND;
+      } else if (endsWith(buf, lineStart, i, OK)) {
+        if (status == null) {
+          status = Status.CLEAN;
+        }
+      } else if (status != Status.FOUND && i > lineStart) {
+        status = startsWith(buf, lineStart, i, SIZE_LIMIT_EXCEEDED) ? Status.SIZE_LIMIT : Status.ERROR;
+      }
+      lineStart = i + 1;
+    }
+
+    if (status == Status.CLEAN) {
+      return CLEAN;
+    }
+    byte[] text = new byte[off + len - start];
+    System.arraycopy(buf, start, text, 0, text.length);
+    return new ScanResult(status == null ? Status.ERROR : status,
+        signatures == null ? Collections.<String>emptyList() : Collections.unmodifiableList(signatures),
+        requestId, text, null);
+  }
+
+  // the same result for content with the given digest
+  ScanResult withDigest(byte[] digest) {
+    return new ScanResult(status, signatures, requestId, reply, digest);
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return true if no virus was found and the scan succeeded
+   */
+  public boolean isClean() {
+    return status == Status.CLEAN;
+  }
+
+  /**
+   * @return names of the matched signatures, empty unless the status is {@link Status#FOUND}
+   */
+  public List<String> getSignatures() {
+    return signatures;
+  }
+
+  /**
+   * @return id of the command in the clamd session, zero for clean results and scans outside of a session
+   */
+  public int getRequestId() {
+    return requestId;
+  }
+
+  /**
+   * @return server reply without the session request id, in the form returned by {@link ClamAVClient#scan(byte[])}
+   */
+  public byte[] getReply() {
+    return reply.clone();
+  }
+
+  /**
+   * @return digest of the scanned content, computed while it was sent to clamd, or null unless enabled with
+   * {@link ClamAVClientConfig#setContentDigest(boolean)}. {@link #CLEAN} never has one.
+   * @see ClamAVClientConfig#setDigestAlgorithm(String)
+   */
+  public byte[] getDigest() {
+    return digest == null ? null : digest.clone();
+  }
+
+  @Override
+  public String toString() {
+    int length = reply.length;
+    while (length > 0 && (reply[length - 1] == 0 || reply[length - 1] == '\n')) {
+      length--;
+    }
+    return new String(reply, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  // the name follows "<path>: ", for streams the path is "stream"
+  private static int nameStart(byte[] buf, int from, int to) {
+    for (int i = from; i + 1 < to; i++) {
+      if (buf[i] == ':' && buf[i + 1] == ' ') {
+        return i + 2;
+      }
+    }
+    return from;
+  }
+
+  private static boolean endsWith(byte[] buf, int from, int to, byte[] suffix) {
+    return to - from >= suffix.length && regionMatches(buf, to - suffix.length, suffix);
+  }
+
+  private static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+    return to - from >= prefix.length && regionMatches(buf, from, prefix);
+  }
+
+  private static boolean regionMatches(byte[] buf, int from, byte[] word) {
+    for (int i = 0; i < word.length; i++) {
+      if (buf[from + i] != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,299 @@
+package fi.solita.clamav;
+
+import fi.solita.clamav.ContentDigest.Key;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers scan results by a digest of the scanned content, see {@link ContentDigest}, so scanning the same bytes
+ * again does not reach clamd. Every result is stored with the signature database version it was scanned with, and only counts
+ * while clamd still runs that version. The version is asked from clamd with VERSION at most once per check interval.
+ * <p>
+ * Only clean and found results are kept, errors are worth retrying. The least recently used entry is evicted when
+ * the cache is full. Results missing from memory are looked up in the {@link MappedResultStore} if there is one,
+ * and new results are stored there too.
+ * <p>
+ * Right after clamd has loaded a new database every cached result is out of date. With stale-while-revalidate, a
+ * clean result from the previous database is still returned for a while, and the content is scanned again in the
+ * background under the new database. Only a few revalidations run at a time, when they are all busy stale results
+ * are returned without one. Thread safe.
+ */
+final class ScanResultCache implements Closeable {
+
+  // null if results are kept in the store only
+  private final Map<Key, Cached> entries;
+  private final MappedResultStore store;
+  private final VersionSource versionSource;
+  private final long versionCheckInterval;
+  private final Object versionLock = new Object();
+  private volatile Versions versions = new Versions(null, null, 0, 0);
+  private final long staleness;
+  // null if stale results are not used
+  private final ThreadPoolExecutor revalidations;
+  private final Set<Key> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+
+  /**
+   * @param config        cache size, version check interval and stale-while-revalidate settings
+   * @param store         results shared with other processes, or null
+   * @param versionSource asks clamd for its version, see {@link ClamAVClient#version()}
+   */
+  ScanResultCache(ClamAVClientConfig config, MappedResultStore store, VersionSource versionSource) {
+    final int maxEntries = config.getResultCacheSize();
+    this.entries = maxEntries == 0 ? null : new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    this.store = store;
+    this.versionCheckInterval = config.getVersionCheckInterval();
+    this.versionSource = versionSource;
+    this.staleness = config.getStaleWhileRevalidate();
+    // no queue, a revalidation that finds every thread busy is not run
+    this.revalidations = staleness > 0
+        ? new ThreadPoolExecutor(0, config.getMaxRevalidations(), 60, TimeUnit.SECONDS,
+                                 new SynchronousQueue<Runnable>(), runnable -> {
+                                   Thread thread = new Thread(runnable, "clamd-revalidation");
+                                   thread.setDaemon(true);
+                                   return thread;
+                                 })
+        : null;
+  }
+
+  /**
+   * Returns the cached result for the digest, or runs the scan and caches its result.
+   */
+  ScanResult scan(byte[] digest, Scan scan) throws IOException {
+    return scan(digest, scan, null);
+  }
+
+  /**
+   * Returns the cached result for the digest, or a clean result from the previous database while the revalidation
+   * runs in the background, or runs the scan and caches its result.
+   *
+   * @param revalidation prepares a scan of the same content that can run after this returns and gives null if the
+   *                     content turns out to have changed. Null if the content can not be scanned again later.
+   */
+  ScanResult scan(byte[] digest, Scan scan, Revalidation revalidation) throws IOException {
+    Versions versions = databaseVersions();
+    String version = versions.current;
+    Key key = new Key(digest);
+    ScanResult stale = null;
+    if (entries != null) {
+      synchronized (this) {
+        Cached cached = entries.get(key);
+        if (cached != null && cached.version.equals(version)) {
+          return cached.result;
+        }
+        if (cached != null && cached.version.equals(versions.previous)) {
+          stale = cached.result;
+        }
+      }
+    }
+    if (store != null) {
+      ScanResult stored = stored(digest, version);
+      if (stored != null) {
+        remember(key, version, stored);
+        return stored;
+      }
+      if (stale == null && revalidation != null && isStaleUsable(versions)) {
+        stale = stored(digest, versions.previous);
+      }
+    }
+    if (stale != null && stale.isClean() && revalidation != null && isStaleUsable(versions)) {
+      revalidate(key, version, revalidation);
+      return stale;
+    }
+    ScanResult result = scan.run();
+    put(key, version, result);
+    return result;
+  }
+
+  // the store is only a cache, a store that can not be read misses
+  private ScanResult stored(byte[] digest, String version) {
+    try {
+      return store.get(digest, version);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private boolean isStaleUsable(Versions versions) {
+    return revalidations != null && versions.previous != null
+        && System.currentTimeMillis() - versions.changedAt < staleness;
+  }
+
+  // at most one revalidation per content, and none if all revalidation threads are busy
+  private void revalidate(final Key key, final String version, Revalidation revalidation) {
+    if (!revalidating.add(key)) {
+      return;
+    }
+    boolean started = false;
+    try {
+      final Scan scan = revalidation.prepare();
+      revalidations.execute(() -> {
+        try {
+          ScanResult result = scan.run();
+          if (result != null) {
+            put(key, version, result);
+          }
+        } catch (IOException | RuntimeException e) {
+          // the next request for the content scans it or tries again
+        } finally {
+          revalidating.remove(key);
+        }
+      });
+      started = true;
+    } catch (RejectedExecutionException e) {
+      // all revalidation threads are busy, the next request for the content tries again
+    } finally {
+      if (!started) {
+        revalidating.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Caches the result of a scan that did not look in the cache first, for example of a stream digested as it was sent.
+   *
+   * @param version database version as returned by {@link #databaseVersion()} before the scan
+   */
+  void put(byte[] digest, String version, ScanResult result) {
+    put(new Key(digest), version, result);
+  }
+
+  private void put(Key key, String version, ScanResult result) {
+    if (result.getStatus() == ScanResult.Status.CLEAN || result.getStatus() == ScanResult.Status.FOUND) {
+      remember(key, version, result);
+      if (store != null) {
+        try {
+          store.put(key.digest, version, result);
+        } catch (IOException e) {
+          // clamd has answered, the result is only not shared this time
+        }
+      }
+    }
+  }
+
+  private void remember(Key key, String version, ScanResult result) {
+    if (entries != null) {
+      synchronized (this) {
+        entries.put(key, new Cached(version, result));
+      }
+    }
+  }
+
+  /**
+   * Stops revalidating and closes the store.
+   */
+  @Override
+  public void close() {
+    if (revalidations != null) {
+      revalidations.shutdownNow();
+    }
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  /**
+   * @return the signature database clamd runs, asked again once the check interval has passed
+   */
+  String databaseVersion() throws IOException {
+    return databaseVersions().current;
+  }
+
+  private Versions databaseVersions() throws IOException {
+    Versions versions = this.versions;
+    if (System.currentTimeMillis() - versions.checkedAt < versionCheckInterval) {
+      return versions;
+    }
+    synchronized (versionLock) {
+      versions = this.versions;
+      // another thread may have asked while this one waited
+      if (System.currentTimeMillis() - versions.checkedAt >= versionCheckInterval) {
+        versions = seen(versionSource.version());
+      }
+      return versions;
+    }
+  }
+
+  /**
+   * Takes a version reply clamd has given, for example to a {@link VersionWatcher}. Results from older databases
+   * stop counting at once instead of after the check interval.
+   */
+  void versionSeen(String versionReply) {
+    synchronized (versionLock) {
+      seen(versionReply);
+    }
+  }
+
+  private Versions seen(String versionReply) {
+    String current = databaseVersion(versionReply);
+    long now = System.currentTimeMillis();
+    Versions versions = this.versions;
+    versions = current.equals(versions.current) || versions.current == null
+        ? new Versions(current, versions.previous, versions.changedAt, now)
+        : new Versions(current, versions.current, now, now);
+    this.versions = versions;
+    return versions;
+  }
+
+  // "ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026" is engine version, database version and database build time,
+  // the time is left out as the two versions identify the signatures
+  static String databaseVersion(String versionReply) {
+    int date = versionReply.lastIndexOf('/');
+    return date > versionReply.indexOf('/') ? versionReply.substring(0, date) : versionReply;
+  }
+
+  interface Scan {
+    ScanResult run() throws IOException;
+  }
+
+  interface VersionSource {
+    String version() throws IOException;
+  }
+
+  interface Revalidation {
+    /**
+     * Called before the cached result is returned, for example to copy content the caller may change afterwards.
+     */
+    Scan prepare();
+  }
+
+  // the database version and the one before it, replaced as a whole when the version changes
+  private static final class Versions {
+    final String current;
+    final String previous;
+    // when the current version was first seen
+    final long changedAt;
+    final long checkedAt;
+
+    Versions(String current, String previous, long changedAt, long checkedAt) {
+      this.current = current;
+      this.previous = previous;
+      this.changedAt = changedAt;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  private static final class Cached {
+    final String version;
+    final ScanResult result;
+
+    Cached(String version, ScanResult result) {
+      this.version = version;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package fi.solita.clamav;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps idle {@link ClamdSession}s for reuse so that consecutive commands do not pay for a TCP handshake each.
+ * <p>
+ * Sessions are handed out most recently used first. A session that has been idle longer than the validation interval
+ * is checked with PING before it is handed out, and sessions older than the maximum lifetime are ended with END.
+ * There is no background thread, all housekeeping happens on borrow and release.
+ */
+final class SessionPool implements Closeable {
+
+  private final ClamAVClient client;
+  private final int maxIdle;
+  private final long maxLifetime;
+  private final long validationInterval;
+  private final int maxReplySize;
+  private final Deque<ClamdSession> idle = new ArrayDeque<ClamdSession>();
+  private boolean closed;
+
+  SessionPool(ClamAVClient client, int maxIdle, long maxLifetime, long validationInterval, int maxReplySize) {
+    this.client = client;
+    this.maxIdle = maxIdle;
+    this.maxLifetime = maxLifetime;
+    this.validationInterval = validationInterval;
+    this.maxReplySize = maxReplySize;
+  }
+
+  /**
+   * @return an idle session, or a freshly opened one if no usable idle session exists
+   */
+  ClamdSession borrow() throws IOException {
+    while (true) {
+      ClamdSession session;
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("Session pool is closed.");
+        }
+        session = idle.pollFirst();
+      }
+      if (session == null) {
+        return ClamdSession.open(client.openConnection(), maxReplySize);
+      }
+      long now = System.currentTimeMillis();
+      if (session.age(now) >= maxLifetime) {
+        session.end();
+      } else if (session.idleTime(now) >= validationInterval && !session.isValid()) {
+        session.close();
+      } else {
+        return session;
+      }
+    }
+  }
+
+  /**
+   * Returns a session in a known good state, that is with no command in progress.
+   */
+  void release(ClamdSession session) {
+    List<ClamdSession> expired = new ArrayList<ClamdSession>();
+    boolean pooled = false;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Iterator<ClamdSession> it = idle.iterator(); it.hasNext(); ) {
+        ClamdSession s = it.next();
+        if (s.age(now) >= maxLifetime) {
+          it.remove();
+          expired.add(s);
+        }
+      }
+      if (!closed && idle.size() < maxIdle && session.age(now) < maxLifetime) {
+        idle.offerFirst(session);
+        pooled = true;
+      }
+    }
+    if (!pooled) {
+      expired.add(session);
+    }
+    for (ClamdSession s : expired) {
+      s.end();
+    }
+  }
+
+  /**
+   * Discards a session that failed or was left in an unknown state, without trying to talk to clamd.
+   */
+  void invalidate(ClamdSession session) {
+    session.close();
+  }
+
+  synchronized int idleCount() {
+    return idle.size();
+  }
+
+  @Override
+  public void close() {
+    List<ClamdSession> sessions;
+    synchronized (this) {
+      closed = true;
+      sessions = new ArrayList<ClamdSession>(idle);
+      idle.clear();
+    }
+    for (ClamdSession s : sessions) {
+      s.end();
+    }
+  }
+}
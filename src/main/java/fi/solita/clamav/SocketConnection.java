@@ -0,0 +1,54 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A connection over a connected {@link Socket}, TCP or TLS.
+ */
+final class SocketConnection implements ClamdConnection {
+
+  private final Socket socket;
+
+  SocketConnection(Socket socket) {
+    this.socket = socket;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return socket.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+  @Override
+  public GatheringByteChannel getChannel() {
+    return socket.getChannel();
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    try {
+      socket.shutdownOutput();
+    } catch (UnsupportedOperationException e) {
+      // TLS sockets before Java 11
+      throw new IOException("Output of " + socket + " can not be shut down.", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  @Override
+  public String toString() {
+    return socket.toString();
+  }
+}
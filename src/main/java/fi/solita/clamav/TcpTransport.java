@@ -0,0 +1,62 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to clamd over TCP, the TCPSocket setting in clamd.conf. The host name is resolved on every connect.
+ */
+public class TcpTransport implements ClamdTransport {
+
+  private final String hostName;
+  private final int port;
+
+  /**
+   * @param hostName The hostname of the server running clamav-daemon
+   * @param port     The port that clamav-daemon listens to(By default it might not listen to a port. Check your clamav configuration).
+   */
+  public TcpTransport(String hostName, int port) {
+    this.hostName = hostName;
+    this.port = port;
+  }
+
+  /**
+   * The socket is backed by a {@link SocketChannel}, which file and buffer scans use for zero-copy transfers.
+   */
+  @Override
+  public ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException {
+    return new SocketConnection(connect(SocketChannel.open().socket(), connectTimeout, readTimeout));
+  }
+
+  // A plain socket, since on Java 8 to 12 the streams of channel backed sockets lock each other, and a pipeline
+  // reads and writes at the same time.
+  ClamdConnection connectWithoutChannel(int connectTimeout, int readTimeout) throws IOException {
+    return new SocketConnection(connect(new Socket(), connectTimeout, readTimeout));
+  }
+
+  Socket connect(Socket socket, int connectTimeout, int readTimeout) throws IOException {
+    try {
+      socket.connect(new InetSocketAddress(hostName, port), connectTimeout);
+      socket.setSoTimeout(readTimeout);
+      // commands and chunk frames are flushed explicitly, Nagle would only delay them waiting for delayed ACKs
+      socket.setTcpNoDelay(true);
+      return socket;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public SocketAddress address() {
+    return new InetSocketAddress(hostName, port);
+  }
+
+  @Override
+  public String toString() {
+    return "tcp://" + hostName + ":" + port;
+  }
+}
@@ -0,0 +1,61 @@
+package fi.solita.clamav;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+
+/**
+ * Connects over TLS. clamd does not speak TLS itself, this is for reaching it through a TLS terminating proxy such as
+ * stunnel or a service mesh sidecar when the network between is not trusted.
+ * <p>
+ * The server certificate is checked against the host name. There is no channel under a TLS socket, so file and
+ * buffer scans copy through the heap, and asynchronous scans are not supported.
+ */
+public final class TlsTransport implements ClamdTransport {
+
+  private final TcpTransport tcp;
+  private final String hostName;
+  private final int port;
+  private final SSLSocketFactory factory;
+
+  /**
+   * Uses the default SSL context, so the server certificate must be trusted by the JVM's trust store.
+   */
+  public TlsTransport(String hostName, int port) {
+    this(hostName, port, (SSLSocketFactory) SSLSocketFactory.getDefault());
+  }
+
+  /**
+   * @param factory from an {@link javax.net.ssl.SSLContext} holding the trust store, and the key store for client
+   *                certificates if the proxy wants them
+   */
+  public TlsTransport(String hostName, int port, SSLSocketFactory factory) {
+    this.tcp = new TcpTransport(hostName, port);
+    this.hostName = hostName;
+    this.port = port;
+    this.factory = factory;
+  }
+
+  @Override
+  public ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException {
+    SSLSocket socket = (SSLSocket) factory.createSocket();
+    tcp.connect(socket, connectTimeout, readTimeout);
+    try {
+      SSLParameters parameters = socket.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      socket.setSSLParameters(parameters);
+      // handshake now, so that a bad certificate fails the connect rather than the first command
+      socket.startHandshake();
+      return new SocketConnection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "tls://" + hostName + ":" + port;
+  }
+}
@@ -0,0 +1,221 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection to clamd over a Unix domain socket, see {@link UnixSocketTransport}.
+ * <p>
+ * Unix domain socket channels arrived in Java 16. The library still runs on Java 8, so they are opened through
+ * reflection, and on older JVMs connecting fails with an IOException.
+ * <p>
+ * The channel is non-blocking and reads and writes wait on selectors of their own, which is how the read timeout is
+ * enforced. {@link #getChannel()} returns null, so file scans copy through the heap instead of using transferTo.
+ */
+final class UnixSocketConnection implements ClamdConnection {
+
+  private final SocketChannel channel;
+  // separate selectors, since a pipeline reads and writes from different threads at the same time
+  private final Selector readSelector;
+  private final Selector writeSelector;
+  private final InputStream in = new In();
+  private final OutputStream out = new Out();
+  private final int timeout;
+  private volatile boolean closed;
+
+  private UnixSocketConnection(SocketChannel channel, int timeout) throws IOException {
+    this.channel = channel;
+    this.timeout = timeout;
+    channel.configureBlocking(false);
+    readSelector = Selector.open();
+    writeSelector = Selector.open();
+    channel.register(readSelector, SelectionKey.OP_READ);
+    channel.register(writeSelector, SelectionKey.OP_WRITE);
+  }
+
+  /**
+   * Connects to the socket file. Connecting to a local socket does not wait for the server, so there is no
+   * connect timeout.
+   *
+   * @param readTimeout milliseconds, zero means infinite
+   */
+  static UnixSocketConnection connect(String path, int readTimeout) throws IOException {
+    SocketChannel channel = openChannel();
+    try {
+      channel.connect(address(path));
+      return new UnixSocketConnection(channel, readTimeout);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return {@code UnixDomainSocketAddress} of the socket file
+   */
+  static SocketAddress address(String path) throws IOException {
+    try {
+      return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+          .getMethod("of", String.class)
+          .invoke(null, path);
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+      throw unsupported(e);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Invalid socket path: " + path, e.getCause());
+    }
+  }
+
+  /**
+   * @return an unconnected, blocking Unix domain socket channel
+   */
+  static SocketChannel openChannel() throws IOException {
+    try {
+      ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+      return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+    } catch (IllegalArgumentException | NoSuchMethodException | IllegalAccessException e) {
+      throw unsupported(e);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : unsupported(cause);
+    }
+  }
+
+  private static IOException unsupported(Throwable cause) {
+    return new IOException("Unix domain sockets need Java 16 or later.", cause);
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return in;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return out;
+  }
+
+  @Override
+  public GatheringByteChannel getChannel() {
+    return null;
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    channel.shutdownOutput();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      readSelector.close();
+      writeSelector.close();
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "UnixSocketConnection[" + channel + "]";
+  }
+
+  // waits until the channel is ready, throws if the timeout passes first
+  private void await(Selector selector, String timeoutMessage) throws IOException {
+    int timeout = this.timeout;
+    long deadline = System.nanoTime() + timeout * 1000000L;
+    try {
+      while (selector.select(timeout) == 0) {
+        if (closed) {
+          throw new SocketException("Socket closed");
+        }
+        if (timeout > 0) {
+          long left = (deadline - System.nanoTime()) / 1000000L;
+          if (left <= 0) {
+            throw new SocketTimeoutException(timeoutMessage);
+          }
+          timeout = (int) left;
+        }
+      }
+      selector.selectedKeys().clear();
+    } catch (ClosedSelectorException e) {
+      throw new SocketException("Socket closed");
+    }
+  }
+
+  private final class In extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      int read;
+      while ((read = channel.read(buffer)) == 0) {
+        await(readSelector, "Read timed out");
+      }
+      return read;
+    }
+
+    // not the number of bytes, but more than zero when a read would not block
+    @Override
+    public int available() throws IOException {
+      try {
+        int ready = readSelector.selectNow();
+        readSelector.selectedKeys().clear();
+        return ready;
+      } catch (ClosedSelectorException e) {
+        throw new SocketException("Socket closed");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixSocketConnection.this.close();
+    }
+  }
+
+  private final class Out extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) == 0) {
+          await(writeSelector, "Write timed out");
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixSocketConnection.this.close();
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package fi.solita.clamav;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+
+/**
+ * Connects to clamd over a Unix domain socket, the LocalSocket setting in clamd.conf. Cheaper than TCP over loopback
+ * when clamd runs on the same host, and does not use up ephemeral ports. Needs Java 16 or later at runtime, on older
+ * JVMs every connect fails with an IOException.
+ * <p>
+ * There is no connect timeout for local sockets. File scans copy the file through the heap.
+ */
+public final class UnixSocketTransport implements ClamdTransport {
+
+  private final String path;
+
+  /**
+   * @param path of the socket file, for example /var/run/clamav/clamd.ctl
+   */
+  public UnixSocketTransport(Path path) {
+    this.path = path.toString();
+  }
+
+  @Override
+  public ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException {
+    return UnixSocketConnection.connect(path, readTimeout);
+  }
+
+  @Override
+  public SocketAddress address() throws IOException {
+    return UnixSocketConnection.address(path);
+  }
+
+  @Override
+  public String toString() {
+    return "unix://" + path;
+  }
+}
@@ -0,0 +1,16 @@
+package fi.solita.clamav;
+
+/**
+ * Told when clamd starts running another ClamAV or signature database version. See
+ * {@link ClamAVClient#addVersionListener(VersionListener)}.
+ */
+public interface VersionListener {
+
+  /**
+   * Called from the thread watching the version. Should return quickly, the next check waits for it.
+   *
+   * @param previous version seen before
+   * @param current  version clamd runs now
+   */
+  void versionChanged(ClamdVersion previous, ClamdVersion current);
+}
@@ -0,0 +1,74 @@
+package fi.solita.clamav;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks clamd for its version with VERSION at a fixed interval on a daemon thread of its own, and tells listeners
+ * when the version changes. Failed checks are skipped, the version is checked again after the interval.
+ */
+final class VersionWatcher implements Closeable {
+
+  private final ScanResultCache.VersionSource source;
+  private final List<VersionListener> listeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService executor;
+  private volatile ClamdVersion latest;
+
+  /**
+   * @param interval milliseconds between checks, the first check is made at once
+   */
+  VersionWatcher(ScanResultCache.VersionSource source, long interval) {
+    this.source = source;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "clamd-version-watcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::check, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  void addListener(VersionListener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(VersionListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @return version seen by the latest successful check, null before the first one
+   */
+  ClamdVersion latest() {
+    return latest;
+  }
+
+  private void check() {
+    ClamdVersion current;
+    try {
+      current = ClamdVersion.parse(source.version());
+    } catch (Exception e) {
+      // clamd may be restarting, try again later
+      return;
+    }
+    ClamdVersion previous = latest;
+    latest = current;
+    if (previous != null && !previous.equals(current)) {
+      for (VersionListener listener : listeners) {
+        try {
+          listener.versionChanged(previous, current);
+        } catch (RuntimeException e) {
+          // one failing listener must not stop the others or the watcher
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,59 @@
+package fi.solita.clamav.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tells archives and compressed files from their first bytes. clamd unpacks these and scans every member, nested
+ * archives too, so their scan time has little to do with their size.
+ */
+final class ArchiveSniffer {
+
+  // bytes needed to see any of the signatures, tar has its magic furthest in
+  static final int SNIFF_LENGTH = 262;
+
+  private static final byte[][] MAGIC = {
+      {'P', 'K', 3, 4},                                    // zip, jar, docx and the like
+      {'P', 'K', 7, 8},                                    // spanned zip
+      {0x1f, (byte) 0x8b},                                 // gzip
+      {'B', 'Z', 'h'},                                     // bzip2
+      {(byte) 0xfd, '7', 'z', 'X', 'Z', 0},                // xz
+      {'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c},    // 7-Zip
+      {'R', 'a', 'r', '!', 0x1a, 0x07},                    // RAR 4 and 5
+      {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},              // zstd
+      {'M', 'S', 'C', 'F'},                                // cabinet
+      {'L', 'Z', 'I', 'P'},                                // lzip
+      {0x60, (byte) 0xea},                                 // ARJ
+      {'0', '7', '0', '7', '0'},                           // cpio, ASCII headers
+  };
+  private static final int TAR_MAGIC_OFFSET = 257;
+  private static final byte[] TAR_MAGIC = "ustar".getBytes(StandardCharsets.US_ASCII);
+
+  private ArchiveSniffer() {
+  }
+
+  /**
+   * @param head the first bytes of the input from its position, at most {@link #SNIFF_LENGTH} are looked at. The
+   *             position is not moved.
+   */
+  static boolean isArchive(ByteBuffer head) {
+    for (byte[] magic : MAGIC) {
+      if (startsWith(head, 0, magic)) {
+        return true;
+      }
+    }
+    return startsWith(head, TAR_MAGIC_OFFSET, TAR_MAGIC);
+  }
+
+  private static boolean startsWith(ByteBuffer head, int offset, byte[] magic) {
+    if (head.remaining() < offset + magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if (head.get(head.position() + offset + i) != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,350 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClient;
+import fi.solita.clamav.ScanResult;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Spreads scans over several clamd nodes. Each scan goes to one node, picked by the {@link LoadBalancer} of the
+ * configuration. Every node has a client and a session pool of its own, see {@link ClamdNode}.
+ * <p>
+ * Balancers that choose by content, such as {@link ConsistentHashBalancer}, get a SHA-256 digest of byte arrays and
+ * buffers as the key, the same digest {@link ScanResult#getDigest()} gives by default. Streams and files are not read
+ * twice to digest them, pass a key of your own for them.
+ * <p>
+ * Scans can be hedged against stalled nodes, see {@link ClamAVClusterConfig#setHedgePercentile(double)}. Failing
+ * nodes are ejected for a while, see {@link ClamAVClusterConfig#setMaxConsecutiveFailures(int)} and
+ * {@link ClamAVClusterConfig#setHealthCheckInterval(long)}. Scans in flight on each node can be limited, see
+ * {@link ClamAVClusterConfig#setAdaptiveConcurrency(boolean)}. Nodes can be polled for their thread and queue state,
+ * see {@link ClamAVClusterConfig#setStatsPollInterval(long)}.
+ * <p>
+ * Like {@link ClamAVClient}, a cluster client should be created once, shared between threads and closed when no
+ * longer needed. Closing it closes the nodes.
+ */
+public class ClamAVClusterClient implements Closeable {
+
+  private final List<ClamdNode> nodes;
+  private final LoadBalancer balancer;
+  // null if scans are not hedged
+  private final HedgePolicy hedging;
+  private final HealthChecker health;
+  // null if nodes are not polled for STATS
+  private final StatsPoller stats;
+  private final boolean limited;
+  private final long concurrencyQueueTimeout;
+  private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /**
+   * @param nodes  the clamd nodes, at least one
+   * @param config how scans are spread over the nodes
+   */
+  public ClamAVClusterClient(List<ClamdNode> nodes, ClamAVClusterConfig config) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A cluster needs at least one node.");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    this.balancer = config.getLoadBalancer() != null ? config.getLoadBalancer() : new RoundRobinBalancer();
+    this.hedging = config.getHedgePercentile() > 0
+        ? new HedgePolicy(config.getHedgePercentile(), config.getHedgeBudget())
+        : null;
+    this.limited = config.isAdaptiveConcurrency();
+    this.concurrencyQueueTimeout = config.getConcurrencyQueueTimeout();
+    if (limited) {
+      for (ClamdNode node : this.nodes) {
+        node.limitConcurrency(new ConcurrencyLimiter(config.getMaxConcurrencyLimit()));
+      }
+    }
+    // last, the checker's and poller's threads use the nodes right away
+    this.health = new HealthChecker(this.nodes, config);
+    this.stats = config.getStatsPollInterval() > 0 ? new StatsPoller(this.nodes, config.getStatsPollInterval()) : null;
+  }
+
+  /**
+   * @return the nodes, for their metrics
+   */
+  public List<ClamdNode> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * @return nodes that get scans, that is all but the ejected ones
+   */
+  public List<ClamdNode> getAvailableNodes() {
+    return health.available();
+  }
+
+  /**
+   * @return scans sent to a second node because the first was slow, zero unless hedging is enabled
+   */
+  public long getHedgeCount() {
+    return hedging == null ? 0 : hedging.hedges();
+  }
+
+  /**
+   * Scans bytes on one of the nodes, see {@link ClamAVClient#scanResult(byte[])}.
+   */
+  public ScanResult scanResult(byte[] in) throws IOException {
+    return scanResult(ByteBuffer.wrap(in));
+  }
+
+  /**
+   * Scans the remaining bytes of the buffer on one of the nodes, see {@link ClamAVClient#scanResult(ByteBuffer)}.
+   */
+  public ScanResult scanResult(ByteBuffer in) throws IOException {
+    byte[] key = balancer.usesKey() ? digest(in) : null;
+    if (hedging != null) {
+      return hedged(key, in);
+    }
+    return scan(key, client -> client.scanResult(in));
+  }
+
+  /**
+   * Scans a stream on one of the nodes, see {@link ClamAVClient#scanResult(InputStream)}.
+   */
+  public ScanResult scanResult(InputStream is) throws IOException {
+    return scanResult(is, null);
+  }
+
+  /**
+   * Same as {@link #scanResult(InputStream)}, but with a key for balancers that choose by content.
+   *
+   * @param key identifies the content, for example its digest or an id it is stored under. Null if there is none.
+   */
+  public ScanResult scanResult(InputStream is, byte[] key) throws IOException {
+    return scan(key, new StreamScan(is));
+  }
+
+  /**
+   * Scans a file on one of the nodes, see {@link ClamAVClient#scanResult(Path)}.
+   */
+  public ScanResult scanResult(Path file) throws IOException {
+    return scanResult(file, null);
+  }
+
+  /**
+   * Same as {@link #scanResult(Path)}, but with a key for balancers that choose by content.
+   *
+   * @param key identifies the content, for example its digest. Null if there is none.
+   */
+  public ScanResult scanResult(Path file, byte[] key) throws IOException {
+    // opened before a node is picked, a file that is missing or can not be read says nothing about the nodes
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (hedging != null && channel.size() <= Integer.MAX_VALUE) {
+        // the mapping stays valid after the channel is closed
+        return hedged(key, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      return scan(key, client -> client.scanResult(file));
+    }
+  }
+
+  private ScanResult scan(byte[] key, ClamdNode.NodeScan scan) throws IOException {
+    return scan(select(key), scan);
+  }
+
+  // the caller holds a permit for the node
+  private ScanResult scan(ClamdNode node, ClamdNode.NodeScan scan) throws IOException {
+    ScanResult result;
+    try {
+      result = node.scan(scan);
+    } catch (IOException e) {
+      if (scan.isNodeFailure(e)) {
+        health.failed(node);
+      }
+      throw e;
+    }
+    health.succeeded(node);
+    return result;
+  }
+
+  // picks a node and takes a permit for it
+  private ClamdNode select(byte[] key) throws IOException {
+    List<ClamdNode> available = health.available();
+    ClamdNode node = health.warmUp(balancer.select(available, key), available);
+    if (!limited || node.tryAcquire()) {
+      return node;
+    }
+    ClamdNode other = HealthChecker.leastBusyOther(node, available);
+    if (other != node && other.tryAcquire()) {
+      return other;
+    }
+    if (!node.acquire(concurrencyQueueTimeout)) {
+      throw new ConcurrencyLimitExceededException(
+          node + " has had " + node.getConcurrencyLimit() + " scans in flight for " + concurrencyQueueTimeout + " ms.");
+    }
+    return node;
+  }
+
+  // Scans on the node the balancer picks, and if no reply has come by the hedge delay, on the least busy of the other
+  // nodes too. The first successful reply wins, the other scan is cancelled, which closes its connection. Every scan
+  // that may be hedged runs asynchronously, so that the delay is learned from scans like the ones it applies to.
+  private ScanResult hedged(byte[] key, ByteBuffer data) throws IOException {
+    ClamdNode first = select(key);
+    if (!first.isAsync()) {
+      return scan(first, client -> client.scanResult(data));
+    }
+    hedging.scanStarted();
+    long start = System.nanoTime();
+    CompletableFuture<ScanResult> primary = attempt(first, data);
+    CompletableFuture<ScanResult> hedge = null;
+    try {
+      long delay = hedging.delay();
+      List<ClamdNode> available = health.available();
+      ScanResult result;
+      if (delay < 0 || available.size() < 2) {
+        result = primary.get();
+      } else {
+        try {
+          result = primary.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          ClamdNode second = HealthChecker.leastBusyOther(first, available);
+          // a hedge never waits for a permit
+          if (second.isAsync() && second.tryAcquire()) {
+            if (hedging.tryHedge()) {
+              hedge = attempt(second, data);
+            } else {
+              second.release();
+            }
+          }
+          result = (hedge == null ? primary : firstSuccess(primary, hedge)).get();
+        }
+      }
+      // the latency of the whole call, a hedged scan is slow even if its hedge was fast. The primary may be cancelled
+      // below, its time so far is the least it would have taken.
+      hedging.record(System.nanoTime() - start);
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for clamd.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      primary.cancel(false);
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+    }
+  }
+
+  private CompletableFuture<ScanResult> attempt(ClamdNode node, ByteBuffer data) {
+    CompletableFuture<ScanResult> result = node.scanAsync(data);
+    result.whenComplete((r, e) -> {
+      if (e == null) {
+        health.succeeded(node);
+      } else if (e instanceof IOException) {
+        health.failed(node);
+      }
+    });
+    return result;
+  }
+
+  // completes with the first result, or fails when both have failed
+  private static CompletableFuture<ScanResult> firstSuccess(CompletableFuture<ScanResult> a,
+                                                            CompletableFuture<ScanResult> b) {
+    final CompletableFuture<ScanResult> winner = new CompletableFuture<>();
+    final AtomicInteger failed = new AtomicInteger();
+    BiConsumer<ScanResult, Throwable> done = (result, e) -> {
+      if (e == null) {
+        winner.complete(result);
+      } else if (failed.incrementAndGet() == 2) {
+        winner.completeExceptionally(e);
+      }
+    };
+    a.whenComplete(done);
+    b.whenComplete(done);
+    return winner;
+  }
+
+  private byte[] digest(ByteBuffer in) {
+    MessageDigest digest = digests.get();
+    digest.update(in.duplicate());
+    return digest.digest();
+  }
+
+  /**
+   * Stops the health checks and stats polls and closes every node.
+   */
+  @Override
+  public void close() {
+    health.close();
+    if (stats != null) {
+      stats.close();
+    }
+    for (ClamdNode node : nodes) {
+      node.close();
+    }
+  }
+
+  // the caller's stream failing says nothing about the node
+  private static final class StreamScan implements ClamdNode.NodeScan {
+    private final InputStream input;
+    private boolean inputFailed;
+
+    StreamScan(InputStream input) {
+      this.input = input;
+    }
+
+    @Override
+    public ScanResult run(ClamAVClient client) throws IOException {
+      return client.scanResult(new FilterInputStream(input) {
+        @Override
+        public int read() throws IOException {
+          try {
+            return super.read();
+          } catch (IOException e) {
+            inputFailed = true;
+            throw e;
+          }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          try {
+            return super.read(b, off, len);
+          } catch (IOException e) {
+            inputFailed = true;
+            throw e;
+          }
+        }
+      });
+    }
+
+    @Override
+    public boolean isNodeFailure(IOException e) {
+      return !inputFailed;
+    }
+  }
+}
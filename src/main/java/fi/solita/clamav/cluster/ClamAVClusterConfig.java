@@ -0,0 +1,263 @@
+package fi.solita.clamav.cluster;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tunables for {@link ClamAVClusterClient}. Setters return the configuration itself so they can be chained.
+ * Settings of the connections to each node are in the {@link fi.solita.clamav.ClamAVClientConfig} of the node.
+ * <p>
+ * The configuration is read when the client is constructed, changing it afterwards has no effect on existing clients.
+ */
+public class ClamAVClusterConfig {
+
+  static final double DEFAULT_HEDGE_BUDGET = 0.1;
+  static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 5;
+  static final long DEFAULT_BASE_EJECTION_TIME = 30000;
+  static final long DEFAULT_MAX_EJECTION_TIME = 300000;
+  static final long DEFAULT_WARM_UP_TIME = 30000;
+  static final int DEFAULT_MAX_CONCURRENCY_LIMIT = 64;
+  static final long DEFAULT_CONCURRENCY_QUEUE_TIMEOUT = 1000;
+
+  private LoadBalancer loadBalancer;
+  private double hedgePercentile;
+  private double hedgeBudget = DEFAULT_HEDGE_BUDGET;
+  private long healthCheckInterval;
+  private int maxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+  private long baseEjectionTime = DEFAULT_BASE_EJECTION_TIME;
+  private long maxEjectionTime = DEFAULT_MAX_EJECTION_TIME;
+  private long warmUpTime = DEFAULT_WARM_UP_TIME;
+  private double outlierLatencyFactor;
+  private boolean adaptiveConcurrency;
+  private int maxConcurrencyLimit = DEFAULT_MAX_CONCURRENCY_LIMIT;
+  private long concurrencyQueueTimeout = DEFAULT_CONCURRENCY_QUEUE_TIMEOUT;
+  private long statsPollInterval;
+
+  /**
+   * @return the balancer set, or null for a {@link RoundRobinBalancer} of the cluster's own
+   */
+  public LoadBalancer getLoadBalancer() {
+    return loadBalancer;
+  }
+
+  /**
+   * How the node for each scan is chosen. A balancer may keep state, give each cluster a balancer of its own.
+   */
+  public ClamAVClusterConfig setLoadBalancer(LoadBalancer loadBalancer) {
+    this.loadBalancer = loadBalancer;
+    return this;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * Hedges scans slower than the given percentile of recent scans: a second copy of the scan goes to another node,
+   * the first reply is returned and the other scan's connection is closed. This cuts the tail latency caused by a
+   * stalled node, for example one reloading its database, at the price of some extra scans.
+   * <p>
+   * Applies to byte arrays, buffers and files that fit in a buffer, on nodes reachable by TCP or a Unix domain
+   * socket. These scans run as asynchronous scans, see
+   * {@link fi.solita.clamav.ClamAVClient#scanAsync(ByteBuffer)}, so that the slower one can be cancelled. That has a
+   * cost: every such scan opens a connection of its own rather than using the node's pooled sessions, and skips the
+   * result cache, scan coalescing and content digest of the node's client. Files are scanned from a memory mapping.
+   * Zero, the default, disables hedging.
+   *
+   * @param hedgePercentile for example 95 to hedge the slowest 5 percent of scans
+   * @see #setHedgeBudget(double)
+   */
+  public ClamAVClusterConfig setHedgePercentile(double hedgePercentile) {
+    if (!(hedgePercentile >= 0 && hedgePercentile < 100)) {
+      throw new IllegalArgumentException("Hedge percentile must be at least 0 and below 100.");
+    }
+    this.hedgePercentile = hedgePercentile;
+    return this;
+  }
+
+  public double getHedgeBudget() {
+    return hedgeBudget;
+  }
+
+  /**
+   * Share of scans that may be hedged, 0.1 by default. When the whole cluster slows down, every scan is over the
+   * percentile, and the budget keeps hedges from doubling the load.
+   */
+  public ClamAVClusterConfig setHedgeBudget(double hedgeBudget) {
+    if (!(hedgeBudget > 0 && hedgeBudget <= 1)) {
+      throw new IllegalArgumentException("Hedge budget must be above 0 and at most 1.");
+    }
+    this.hedgeBudget = hedgeBudget;
+    return this;
+  }
+
+  public long getHealthCheckInterval() {
+    return healthCheckInterval;
+  }
+
+  /**
+   * Milliseconds between PINGs to every node, sent on a background thread over the node's pooled sessions. A failed
+   * PING counts like a failed scan, see {@link #setMaxConsecutiveFailures(int)}. Zero, the default, disables the
+   * checks, nodes are then only judged by their scans.
+   */
+  public ClamAVClusterConfig setHealthCheckInterval(long healthCheckInterval) {
+    if (healthCheckInterval < 0) {
+      throw new IllegalArgumentException("Negative check interval does not make sense.");
+    }
+    this.healthCheckInterval = healthCheckInterval;
+    return this;
+  }
+
+  public int getMaxConsecutiveFailures() {
+    return maxConsecutiveFailures;
+  }
+
+  /**
+   * Failures in a row after which a node is ejected, that is gets no scans for the ejection time. Scans failing
+   * with an I/O error, such as a timeout or a reset connection, count as failures, a scan completing with any reply
+   * does not. 5 by default, zero disables ejection on failures.
+   *
+   * @see #setBaseEjectionTime(long)
+   */
+  public ClamAVClusterConfig setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+    if (maxConsecutiveFailures < 0) {
+      throw new IllegalArgumentException("Negative failure count does not make sense.");
+    }
+    this.maxConsecutiveFailures = maxConsecutiveFailures;
+    return this;
+  }
+
+  public long getBaseEjectionTime() {
+    return baseEjectionTime;
+  }
+
+  /**
+   * Milliseconds a node is ejected for the first time, 30 seconds by default. Every ejection that follows before the
+   * node has stayed healthy through a warm-up lasts twice as long, up to the maximum ejection time.
+   */
+  public ClamAVClusterConfig setBaseEjectionTime(long baseEjectionTime) {
+    if (baseEjectionTime <= 0) {
+      throw new IllegalArgumentException("Ejection time must be positive.");
+    }
+    this.baseEjectionTime = baseEjectionTime;
+    return this;
+  }
+
+  public long getMaxEjectionTime() {
+    return maxEjectionTime;
+  }
+
+  /**
+   * Longest ejection in milliseconds, 5 minutes by default.
+   */
+  public ClamAVClusterConfig setMaxEjectionTime(long maxEjectionTime) {
+    if (maxEjectionTime <= 0) {
+      throw new IllegalArgumentException("Ejection time must be positive.");
+    }
+    this.maxEjectionTime = maxEjectionTime;
+    return this;
+  }
+
+  public long getWarmUpTime() {
+    return warmUpTime;
+  }
+
+  /**
+   * Milliseconds over which a node coming back from ejection grows from a tenth of its share of scans to all of it,
+   * 30 seconds by default. A node that has just reloaded or restarted is slow at first, and a full share at once could
+   * eject it again. Zero gives the full share at once.
+   */
+  public ClamAVClusterConfig setWarmUpTime(long warmUpTime) {
+    if (warmUpTime < 0) {
+      throw new IllegalArgumentException("Negative warm-up time does not make sense.");
+    }
+    this.warmUpTime = warmUpTime;
+    return this;
+  }
+
+  public double getOutlierLatencyFactor() {
+    return outlierLatencyFactor;
+  }
+
+  /**
+   * Ejects a node whose latency average is more than the given factor times the median of the cluster, judged at
+   * every health check among at least three nodes. Scan latency depends on what is scanned, so keep the factor well
+   * above what a node busy with large files reaches. Zero, the default, disables it.
+   *
+   * @see #setHealthCheckInterval(long)
+   */
+  public ClamAVClusterConfig setOutlierLatencyFactor(double outlierLatencyFactor) {
+    if (!(outlierLatencyFactor == 0 || outlierLatencyFactor > 1)) {
+      throw new IllegalArgumentException("Outlier latency factor must be 0 or above 1.");
+    }
+    this.outlierLatencyFactor = outlierLatencyFactor;
+    return this;
+  }
+
+  public boolean isAdaptiveConcurrency() {
+    return adaptiveConcurrency;
+  }
+
+  /**
+   * Limits the scans in flight on each node, to a limit found from the latencies seen. The limit starts at 4 and
+   * grows while latency stays level, and shrinks once scans slow down, as they then wait in clamd's queue rather than
+   * run. {@link ClamdNode#getConcurrencyLimit()} tells the current limit.
+   * <p>
+   * A scan for a node at its limit goes to the least busy other node that is below its limit. If there is none, it
+   * waits for the node up to the queue timeout, and then fails with {@link ConcurrencyLimitExceededException}.
+   * Disabled by default.
+   *
+   * @see #setMaxConcurrencyLimit(int)
+   * @see #setConcurrencyQueueTimeout(long)
+   */
+  public ClamAVClusterConfig setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+    this.adaptiveConcurrency = adaptiveConcurrency;
+    return this;
+  }
+
+  public int getMaxConcurrencyLimit() {
+    return maxConcurrencyLimit;
+  }
+
+  /**
+   * Highest concurrency limit of a node, 64 by default.
+   */
+  public ClamAVClusterConfig setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+    if (maxConcurrencyLimit <= 0) {
+      throw new IllegalArgumentException("Concurrency limit must be positive.");
+    }
+    this.maxConcurrencyLimit = maxConcurrencyLimit;
+    return this;
+  }
+
+  public long getConcurrencyQueueTimeout() {
+    return concurrencyQueueTimeout;
+  }
+
+  /**
+   * Milliseconds a scan waits for a node at its concurrency limit, 1 second by default. Zero rejects such scans at once.
+   */
+  public ClamAVClusterConfig setConcurrencyQueueTimeout(long concurrencyQueueTimeout) {
+    if (concurrencyQueueTimeout < 0) {
+      throw new IllegalArgumentException("Negative timeout value does not make sense.");
+    }
+    this.concurrencyQueueTimeout = concurrencyQueueTimeout;
+    return this;
+  }
+
+  public long getStatsPollInterval() {
+    return statsPollInterval;
+  }
+
+  /**
+   * Milliseconds between STATS commands to every node, sent on a background thread over the node's pooled sessions.
+   * The latest reply is kept in {@link ClamdNode#getStats()}, where {@link QueueAwareBalancer} finds the nodes with
+   * idle scanner threads. Zero, the default, disables polling.
+   */
+  public ClamAVClusterConfig setStatsPollInterval(long statsPollInterval) {
+    if (statsPollInterval < 0) {
+      throw new IllegalArgumentException("Negative poll interval does not make sense.");
+    }
+    this.statsPollInterval = statsPollInterval;
+    return this;
+  }
+}
@@ -0,0 +1,146 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ScanResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps scans of small files apart from scans that tie up a clamd thread for long, so that a large ISO image or an
+ * archive full of nested archives does not hold up the small files queued behind it. Large inputs and, unless
+ * disabled, archives go to a bulk cluster, everything else to the standard one, see {@link ClamAVRoutingConfig}.
+ * <p>
+ * Inputs are judged by their length where it is known, and by their first bytes. Files and streams are not read
+ * twice: a few hundred bytes are read ahead and sent before the rest.
+ * <p>
+ * The two clusters are configured on their own, the bulk one for example with longer read timeouts. They should not
+ * share nodes, or the small files would queue behind the large ones again. Closing the routing client closes both.
+ * Thread safe.
+ */
+public class ClamAVRoutingClient implements Closeable {
+
+  private final ClamAVClusterClient standard;
+  private final ClamAVClusterClient bulk;
+  private final long largeInputThreshold;
+  private final boolean routeArchives;
+  private final AtomicLong bulkScans = new AtomicLong();
+
+  /**
+   * @param standard scans small files
+   * @param bulk     scans large files and archives
+   * @param config   which inputs go to the bulk cluster
+   */
+  public ClamAVRoutingClient(ClamAVClusterClient standard, ClamAVClusterClient bulk, ClamAVRoutingConfig config) {
+    this.standard = standard;
+    this.bulk = bulk;
+    this.largeInputThreshold = config.getLargeInputThreshold();
+    this.routeArchives = config.isRouteArchives();
+  }
+
+  public ClamAVClusterClient getStandardCluster() {
+    return standard;
+  }
+
+  public ClamAVClusterClient getBulkCluster() {
+    return bulk;
+  }
+
+  /**
+   * @return scans sent to the bulk cluster
+   */
+  public long getBulkScanCount() {
+    return bulkScans.get();
+  }
+
+  /**
+   * Scans bytes, see {@link ClamAVClusterClient#scanResult(byte[])}.
+   */
+  public ScanResult scanResult(byte[] in) throws IOException {
+    return route(in.length, ByteBuffer.wrap(in)).scanResult(in);
+  }
+
+  /**
+   * Scans the remaining bytes of the buffer, see {@link ClamAVClusterClient#scanResult(ByteBuffer)}.
+   */
+  public ScanResult scanResult(ByteBuffer in) throws IOException {
+    return route(in.remaining(), in).scanResult(in);
+  }
+
+  /**
+   * Scans a stream of unknown length, routed by its first bytes only, see
+   * {@link ClamAVClusterClient#scanResult(InputStream)}.
+   */
+  public ScanResult scanResult(InputStream is) throws IOException {
+    return scanResult(is, -1);
+  }
+
+  /**
+   * Scans a stream, for example an upload with a Content-Length.
+   *
+   * @param length bytes in the stream, -1 if not known
+   */
+  public ScanResult scanResult(InputStream is, long length) throws IOException {
+    if (!routeArchives || length >= largeInputThreshold) {
+      return route(length, null).scanResult(is);
+    }
+    byte[] head = new byte[ArchiveSniffer.SNIFF_LENGTH];
+    int read = 0;
+    while (read < head.length) {
+      int n = is.read(head, read, head.length - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    InputStream rest = new SequenceInputStream(new ByteArrayInputStream(head, 0, read), is);
+    return route(length, ByteBuffer.wrap(head, 0, read)).scanResult(rest);
+  }
+
+  /**
+   * Scans a file, see {@link ClamAVClusterClient#scanResult(Path)}.
+   */
+  public ScanResult scanResult(Path file) throws IOException {
+    long size;
+    ByteBuffer head = null;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      size = channel.size();
+      if (routeArchives && size < largeInputThreshold) {
+        head = ByteBuffer.allocate(ArchiveSniffer.SNIFF_LENGTH);
+        while (head.hasRemaining()) {
+          if (channel.read(head, head.position()) < 0) {
+            break;
+          }
+        }
+        head.flip();
+      }
+    }
+    return route(size, head).scanResult(file);
+  }
+
+  // the head is null if it was not read
+  private ClamAVClusterClient route(long length, ByteBuffer head) {
+    boolean large = length >= largeInputThreshold;
+    if (large || routeArchives && head != null && ArchiveSniffer.isArchive(head)) {
+      bulkScans.incrementAndGet();
+      return bulk;
+    }
+    return standard;
+  }
+
+  /**
+   * Closes both clusters.
+   */
+  @Override
+  public void close() {
+    standard.close();
+    bulk.close();
+  }
+}
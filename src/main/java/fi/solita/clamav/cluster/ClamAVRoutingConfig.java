@@ -0,0 +1,48 @@
+package fi.solita.clamav.cluster;
+
+/**
+ * Rules by which {@link ClamAVRoutingClient} sends inputs to its bulk cluster rather than its standard one. Setters
+ * return the configuration itself so they can be chained.
+ * <p>
+ * The configuration is read when the client is constructed, changing it afterwards has no effect on existing clients.
+ */
+public class ClamAVRoutingConfig {
+
+  static final long DEFAULT_LARGE_INPUT_THRESHOLD = 8 * 1024 * 1024;
+
+  private long largeInputThreshold = DEFAULT_LARGE_INPUT_THRESHOLD;
+  private boolean routeArchives = true;
+
+  public long getLargeInputThreshold() {
+    return largeInputThreshold;
+  }
+
+  /**
+   * Inputs of this many bytes or more go to the bulk cluster, 8 MiB by default. Only inputs of known length are
+   * routed by size: byte arrays, buffers, files and streams scanned with a length. {@link Long#MAX_VALUE} routes by
+   * type only.
+   *
+   * @param largeInputThreshold bytes
+   */
+  public ClamAVRoutingConfig setLargeInputThreshold(long largeInputThreshold) {
+    if (largeInputThreshold <= 0) {
+      throw new IllegalArgumentException("Threshold must be positive.");
+    }
+    this.largeInputThreshold = largeInputThreshold;
+    return this;
+  }
+
+  public boolean isRouteArchives() {
+    return routeArchives;
+  }
+
+  /**
+   * Sends archives and compressed files of any size to the bulk cluster. They are told from their first bytes, which
+   * are read from streams before the scan and sent along with the rest. clamd scans every member of an archive, so a
+   * small archive may take longer than a large image. Enabled by default.
+   */
+  public ClamAVRoutingConfig setRouteArchives(boolean routeArchives) {
+    this.routeArchives = routeArchives;
+    return this;
+  }
+}
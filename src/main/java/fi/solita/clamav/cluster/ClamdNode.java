@@ -0,0 +1,308 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClient;
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.ClamdStats;
+import fi.solita.clamav.ClamdTransport;
+import fi.solita.clamav.ScanResult;
+import fi.solita.clamav.TcpTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One clamd in a {@link ClamAVClusterClient}. A node has a {@link ClamAVClient} of its own, so its own session pool,
+ * and keeps the metrics load balancers choose by: scans in flight, an exponentially weighted moving average of scan
+ * latency, and counts of scans and failures. A cluster may also limit the node's scans in flight, see
+ * {@link ClamAVClusterConfig#setAdaptiveConcurrency(boolean)}, and poll clamd's own view of its load, see
+ * {@link ClamAVClusterConfig#setStatsPollInterval(long)}. Thread safe.
+ */
+public final class ClamdNode implements Closeable {
+
+  // weight of the latest scan in the latency average
+  private static final double LATENCY_DECAY = 0.2;
+
+  private final String name;
+  private final int weight;
+  private final ClamdTransport transport;
+  private final ClamAVClient client;
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicLong scans = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  // null if scans in flight are not limited
+  private volatile ConcurrencyLimiter limiter;
+  private double latencyEwma;
+  // latest STATS reply and the scans in flight when it came, replaced together
+  private volatile PolledStats stats;
+
+  /**
+   * @param hostName The hostname of the server running clamav-daemon
+   * @param port     The port that clamav-daemon listens to
+   * @param config   settings of the node's client
+   */
+  public ClamdNode(String hostName, int port, ClamAVClientConfig config) {
+    this(hostName + ":" + port, new TcpTransport(hostName, port), config, 1);
+  }
+
+  /**
+   * @param name      identifies the node in metrics and logs
+   * @param transport how to reach the node
+   * @param config    settings of the node's client
+   * @param weight    share of scans relative to the other nodes, used by {@link WeightedBalancer}
+   */
+  public ClamdNode(String name, ClamdTransport transport, ClamAVClientConfig config, int weight) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Weight must be positive.");
+    }
+    this.name = name;
+    this.weight = weight;
+    this.transport = transport;
+    this.client = new ClamAVClient(transport, config);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return the node's own client, for commands the cluster does not spread over nodes
+   */
+  public ClamAVClient getClient() {
+    return client;
+  }
+
+  /**
+   * @return scans sent to the node that have not completed yet
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return moving average of the time successful scans took, in nanoseconds. Zero before the first one.
+   */
+  public synchronized double getLatencyEwma() {
+    return latencyEwma;
+  }
+
+  /**
+   * @return scans completed, successfully or not
+   */
+  public long getScanCount() {
+    return scans.get();
+  }
+
+  /**
+   * @return scans that failed with an I/O error of the node, such as a timeout or a refused connection. Failures to
+   * read the input of a scan are not counted.
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * @return scans in flight the node is allowed at the moment, or zero if they are not limited
+   */
+  public int getConcurrencyLimit() {
+    ConcurrencyLimiter limiter = this.limiter;
+    return limiter == null ? 0 : limiter.limit();
+  }
+
+  /**
+   * @return scans refused because the node was at its concurrency limit for too long
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return the latest reply to STATS, or null if the node is not polled or the latest poll failed
+   * @see ClamAVClusterConfig#setStatsPollInterval(long)
+   */
+  public ClamdStats getStats() {
+    PolledStats stats = this.stats;
+    return stats == null ? null : stats.stats;
+  }
+
+  /**
+   * @param stats null if the poll failed
+   */
+  void statsPolled(ClamdStats stats) {
+    this.stats = stats == null ? null : new PolledStats(stats, outstanding.get());
+  }
+
+  /**
+   * Estimates the scans the node could start at once, from the latest STATS and the scans sent since then. Scans
+   * this cluster sent before the poll are among clamd's busy threads and queue already.
+   *
+   * @return free scanner threads less queued commands, negative if commands queue, {@link Integer#MIN_VALUE} if
+   * unknown
+   */
+  int freeThreads() {
+    PolledStats stats = this.stats;
+    if (stats == null || stats.stats.getFreeThreads() == Integer.MIN_VALUE) {
+      return Integer.MIN_VALUE;
+    }
+    return stats.stats.getFreeThreads() - (outstanding.get() - stats.outstanding);
+  }
+
+  void limitConcurrency(ConcurrencyLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * @return true if the node is not at its concurrency limit, in which case the caller holds a permit for a scan
+   */
+  boolean tryAcquire() {
+    ConcurrencyLimiter limiter = this.limiter;
+    return limiter == null || limiter.tryAcquire();
+  }
+
+  /**
+   * Waits for a permit for a scan if the node is at its concurrency limit.
+   *
+   * @param timeout milliseconds to wait at most
+   * @return false if no permit was given within the timeout, and the scan is counted as rejected
+   */
+  boolean acquire(long timeout) throws InterruptedIOException {
+    ConcurrencyLimiter limiter = this.limiter;
+    if (limiter == null || limiter.acquire(timeout)) {
+      return true;
+    }
+    rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Gives back a permit that was not used for a scan.
+   */
+  void release() {
+    ConcurrencyLimiter limiter = this.limiter;
+    if (limiter != null) {
+      limiter.release(-1, false);
+    }
+  }
+
+  /**
+   * Scans with a permit from {@link #tryAcquire()} or {@link #acquire(long)}, which is given back when done.
+   */
+  ScanResult scan(NodeScan scan) throws IOException {
+    outstanding.incrementAndGet();
+    long start = System.nanoTime();
+    long latency = -1;
+    boolean failed = false;
+    try {
+      ScanResult result = scan.run(client);
+      latency = System.nanoTime() - start;
+      return result;
+    } catch (IOException e) {
+      // a failing input tells nothing about the node's limit either
+      if (scan.isNodeFailure(e)) {
+        failures.incrementAndGet();
+        failed = true;
+      }
+      throw e;
+    } finally {
+      outstanding.decrementAndGet();
+      scans.incrementAndGet();
+      completed(latency, failed);
+    }
+  }
+
+  /**
+   * @return true if the node can be scanned without blocking, which needs a socket address
+   * @see ClamdTransport#address()
+   */
+  boolean isAsync() {
+    try {
+      return transport.address() != null;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Scans on the client's event loop, see {@link ClamAVClient#scanAsync(ByteBuffer)}, with a permit like
+   * {@link #scan(NodeScan)}. Cancelling the returned future closes the connection, and the scan does not count as
+   * failed.
+   */
+  CompletableFuture<ScanResult> scanAsync(ByteBuffer data) {
+    outstanding.incrementAndGet();
+    final long start = System.nanoTime();
+    CompletableFuture<ScanResult> result = client.scanAsync(data);
+    result.whenComplete((r, e) -> {
+      outstanding.decrementAndGet();
+      scans.incrementAndGet();
+      boolean failed = e instanceof IOException;
+      if (failed) {
+        failures.incrementAndGet();
+      }
+      completed(e == null ? System.nanoTime() - start : -1, failed);
+    });
+    return result;
+  }
+
+  // latency is negative unless the scan succeeded
+  private void completed(long latency, boolean failed) {
+    if (latency >= 0) {
+      recordLatency(latency);
+    }
+    ConcurrencyLimiter limiter = this.limiter;
+    if (limiter != null) {
+      limiter.release(latency, failed);
+    }
+  }
+
+  private synchronized void recordLatency(long nanos) {
+    latencyEwma = latencyEwma == 0 ? nanos : latencyEwma + LATENCY_DECAY * (nanos - latencyEwma);
+  }
+
+  // the next scan starts a new average
+  synchronized void resetLatency() {
+    latencyEwma = 0;
+  }
+
+  /**
+   * Closes the node's client.
+   */
+  @Override
+  public void close() {
+    client.close();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static final class PolledStats {
+    private final ClamdStats stats;
+    private final int outstanding;
+
+    PolledStats(ClamdStats stats, int outstanding) {
+      this.stats = stats;
+      this.outstanding = outstanding;
+    }
+  }
+
+  interface NodeScan {
+    ScanResult run(ClamAVClient client) throws IOException;
+
+    /**
+     * @return true if the scan failed because of the node or the connection to it, rather than because of its input
+     */
+    default boolean isNodeFailure(IOException e) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package fi.solita.clamav.cluster;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a scan could not start because the nodes of a cluster were at their concurrency limits for longer than
+ * the queue timeout. The scan never reached clamd and may be retried later.
+ *
+ * @see ClamAVClusterConfig#setAdaptiveConcurrency(boolean)
+ */
+public class ConcurrencyLimitExceededException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public ConcurrencyLimitExceededException(String msg) {
+    super(msg);
+  }
+}
@@ -0,0 +1,102 @@
+package fi.solita.clamav.cluster;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the scans in flight on a node to what it handles without slowing down, and finds that limit from the
+ * latencies it sees, like the gradient limit of Netflix's concurrency-limits.
+ * <p>
+ * Every scan compares its latency to a long-term average. While it is within a tolerance of the average, the limit
+ * grows by a few scans, as the node keeps up. Once scans take longer, they have started to queue in clamd, and the
+ * limit shrinks in proportion. Failed scans shrink it by a tenth. Scans completing while far fewer than the limit are
+ * in flight tell nothing about the limit and leave it alone. Thread safe.
+ */
+final class ConcurrencyLimiter {
+
+  static final int INITIAL_LIMIT = 4;
+  // scans over the no-queueing estimate allowed to wait in clamd, so that its threads never run dry
+  private static final int QUEUE_SIZE = 4;
+  // latency within this many times the average does not shrink the limit
+  private static final double TOLERANCE = 1.5;
+  // weight of one scan in the long-term latency average
+  private static final double LONG_TERM_DECAY = 1.0 / 600;
+  // how far the limit moves toward its new estimate on each scan
+  private static final double SMOOTHING = 0.2;
+  private static final double FAILURE_BACKOFF = 0.9;
+
+  private final int maxLimit;
+  private double limit;
+  private double longTermLatency;
+  private int inFlight;
+
+  /**
+   * @param maxLimit the limit never grows above this
+   */
+  ConcurrencyLimiter(int maxLimit) {
+    this.maxLimit = maxLimit;
+    this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+  }
+
+  synchronized int limit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return true if a scan may start at once, it must then {@link #release(long, boolean)} when done
+   */
+  synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Waits until a scan may start.
+   *
+   * @param timeout milliseconds to wait at most
+   * @return false if the scan may not start within the timeout
+   */
+  synchronized boolean acquire(long timeout) throws InterruptedIOException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (inFlight >= (int) limit) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        return false;
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a scan to complete.");
+      }
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * @param latency nanoseconds the scan took, negative if it did not complete, for example when it was cancelled
+   * @param failed  true if the scan failed with an I/O error such as a timeout
+   */
+  synchronized void release(long latency, boolean failed) {
+    boolean applicationLimited = inFlight < limit / 2;
+    inFlight--;
+    if (failed) {
+      limit = Math.max(1, limit * FAILURE_BACKOFF);
+    } else if (latency > 0) {
+      longTermLatency = longTermLatency == 0 ? latency : longTermLatency + LONG_TERM_DECAY * (latency - longTermLatency);
+      // after latency has fallen a lot, the average would keep the limit growing for a long time
+      if (longTermLatency > 2 * latency) {
+        longTermLatency *= 0.95;
+      }
+      if (!applicationLimited) {
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longTermLatency / latency));
+        double estimate = limit * gradient + QUEUE_SIZE;
+        limit = Math.max(1, Math.min(maxLimit, limit * (1 - SMOOTHING) + estimate * SMOOTHING));
+      }
+    }
+    notifyAll();
+  }
+}
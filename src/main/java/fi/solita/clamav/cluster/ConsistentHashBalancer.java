@@ -0,0 +1,154 @@
+package fi.solita.clamav.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the same content to the same node, so repeated scans hit clamd's own cache of clean files on that node.
+ * <p>
+ * Nodes are placed on a hash ring at many points each, by their name, and content goes to the node following the
+ * hash of its key. When a node joins or leaves only the keys between it and its neighbours move. Nodes with a larger
+ * {@link ClamdNode#getWeight() weight} get proportionally more points.
+ * <p>
+ * Loads are bounded: a node with more scans in flight than the load factor times the average is skipped, and the key
+ * goes to the next node on the ring. A popular key can thus not pile up on one node. Scans without a key go to the
+ * fallback balancer.
+ */
+public class ConsistentHashBalancer implements LoadBalancer {
+
+  static final int DEFAULT_POINTS_PER_WEIGHT = 100;
+  static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+  private final int pointsPerWeight;
+  private final double loadFactor;
+  private final LoadBalancer fallback;
+  private volatile Ring ring = new Ring(new ArrayList<ClamdNode>(), new long[0], new ClamdNode[0]);
+
+  /**
+   * Places 100 points per weight, allows a node 1.25 times the average load and balances scans without a key by
+   * {@link LeastOutstandingBalancer}.
+   */
+  public ConsistentHashBalancer() {
+    this(DEFAULT_POINTS_PER_WEIGHT, DEFAULT_LOAD_FACTOR, new LeastOutstandingBalancer());
+  }
+
+  /**
+   * @param pointsPerWeight points on the ring per unit of node weight, more spread keys more evenly
+   * @param loadFactor      how many times the average number of scans in flight a node may have before keys skip
+   *                        it, at least 1
+   * @param fallback        picks the node for scans without a key
+   */
+  public ConsistentHashBalancer(int pointsPerWeight, double loadFactor, LoadBalancer fallback) {
+    if (pointsPerWeight <= 0) {
+      throw new IllegalArgumentException("A node needs at least one point on the ring.");
+    }
+    if (!(loadFactor >= 1)) {
+      throw new IllegalArgumentException("Load factor must be at least 1.");
+    }
+    this.pointsPerWeight = pointsPerWeight;
+    this.loadFactor = loadFactor;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public boolean usesKey() {
+    return true;
+  }
+
+  @Override
+  public ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    if (key == null) {
+      return fallback.select(nodes, null);
+    }
+    Ring ring = ring(nodes);
+    int total = 0;
+    for (ClamdNode node : nodes) {
+      total += node.getOutstanding();
+    }
+    // the scan being routed counts too, so an idle cluster allows every node one
+    long capacity = (long) Math.ceil(loadFactor * (total + 1) / nodes.size());
+    int start = Arrays.binarySearch(ring.points, hash(key));
+    if (start < 0) {
+      start = -start - 1;
+    }
+    ClamdNode first = null;
+    for (int i = 0; i < ring.points.length; i++) {
+      ClamdNode node = ring.owners[(start + i) % ring.points.length];
+      if (first == null) {
+        first = node;
+      }
+      if (node.getOutstanding() < capacity) {
+        return node;
+      }
+    }
+    // loads changed while looking
+    return first;
+  }
+
+  // rebuilt when the nodes change
+  private Ring ring(List<ClamdNode> nodes) {
+    Ring ring = this.ring;
+    if (ring.nodes.equals(nodes)) {
+      return ring;
+    }
+    int size = 0;
+    for (ClamdNode node : nodes) {
+      size += node.getWeight() * pointsPerWeight;
+    }
+    long[] points = new long[size];
+    ClamdNode[] owners = new ClamdNode[size];
+    Point[] placed = new Point[size];
+    int i = 0;
+    for (ClamdNode node : nodes) {
+      for (int p = 0; p < node.getWeight() * pointsPerWeight; p++) {
+        placed[i++] = new Point(hash((node.getName() + "#" + p).getBytes(StandardCharsets.UTF_8)), node);
+      }
+    }
+    Arrays.sort(placed, (a, b) -> Long.compare(a.hash, b.hash));
+    for (i = 0; i < size; i++) {
+      points[i] = placed[i].hash;
+      owners[i] = placed[i].node;
+    }
+    ring = new Ring(new ArrayList<>(nodes), points, owners);
+    this.ring = ring;
+    return ring;
+  }
+
+  // FNV-1a followed by the MurmurHash3 finalizer, so that similar names and keys land far apart
+  static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static final class Ring {
+    final List<ClamdNode> nodes;
+    final long[] points;
+    final ClamdNode[] owners;
+
+    Ring(List<ClamdNode> nodes, long[] points, ClamdNode[] owners) {
+      this.nodes = nodes;
+      this.points = points;
+      this.owners = owners;
+    }
+  }
+
+  private static final class Point {
+    final long hash;
+    final ClamdNode node;
+
+    Point(long hash, ClamdNode node) {
+      this.hash = hash;
+      this.node = node;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package fi.solita.clamav.cluster;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps failing nodes out of a cluster for a while. A node is ejected after a number of failures in a row, failed
+ * scans and, if checks are enabled, failed PINGs alike. Each ejection of the same node lasts twice as long as the
+ * one before, up to a maximum, and the doubling starts over once the node has stayed healthy through a warm-up.
+ * <p>
+ * A node coming back gets a small share of its scans at first, which grows over the warm-up time: the rest go to
+ * the least busy other node. Nodes are never all ejected, if every node is failing the cluster keeps using them all.
+ * <p>
+ * Checks run on a daemon thread of their own, which sends PING to every node over its pooled sessions, and ejects
+ * nodes whose latency average is far above the median of the cluster. Thread safe.
+ */
+final class HealthChecker implements Closeable {
+
+  // share of scans a node gets right after it comes back
+  private static final double MIN_WARM_UP_SHARE = 0.1;
+
+  private final List<ClamdNode> nodes;
+  private final Map<ClamdNode, NodeHealth> health = new IdentityHashMap<>();
+  private final int maxConsecutiveFailures;
+  private final long baseEjectionTime;
+  private final long maxEjectionTime;
+  private final long warmUpTime;
+  private final double outlierLatencyFactor;
+  // null if nodes are not checked in the background
+  private final ScheduledExecutorService executor;
+  private volatile Membership membership;
+
+  HealthChecker(List<ClamdNode> nodes, ClamAVClusterConfig config) {
+    this.nodes = nodes;
+    for (ClamdNode node : nodes) {
+      health.put(node, new NodeHealth());
+    }
+    this.maxConsecutiveFailures = config.getMaxConsecutiveFailures();
+    this.baseEjectionTime = config.getBaseEjectionTime();
+    this.maxEjectionTime = Math.max(config.getMaxEjectionTime(), baseEjectionTime);
+    this.warmUpTime = config.getWarmUpTime();
+    this.outlierLatencyFactor = config.getOutlierLatencyFactor();
+    this.membership = new Membership(nodes, Long.MAX_VALUE);
+    if (config.getHealthCheckInterval() > 0) {
+      executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "clamd-health-checker");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleWithFixedDelay(this::check, config.getHealthCheckInterval(),
+                                      config.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+    } else {
+      executor = null;
+    }
+  }
+
+  /**
+   * @return nodes not ejected, or all nodes if every one of them is
+   */
+  List<ClamdNode> available() {
+    Membership membership = this.membership;
+    if (System.currentTimeMillis() < membership.validUntil) {
+      return membership.nodes;
+    }
+    return updateMembership();
+  }
+
+  /**
+   * @return the node, or while it warms up, with a probability that falls over the warm-up time, the least busy
+   * other available node
+   */
+  ClamdNode warmUp(ClamdNode node, List<ClamdNode> available) {
+    if (warmUpTime == 0 || available.size() < 2) {
+      return node;
+    }
+    long since = System.currentTimeMillis() - health.get(node).returnedAt();
+    if (since >= warmUpTime) {
+      return node;
+    }
+    double share = MIN_WARM_UP_SHARE + (1 - MIN_WARM_UP_SHARE) * since / warmUpTime;
+    return ThreadLocalRandom.current().nextDouble() < share ? node : leastBusyOther(node, available);
+  }
+
+  static ClamdNode leastBusyOther(ClamdNode node, List<ClamdNode> candidates) {
+    ClamdNode best = null;
+    for (ClamdNode candidate : candidates) {
+      if (candidate != node && (best == null || candidate.getOutstanding() < best.getOutstanding())) {
+        best = candidate;
+      }
+    }
+    return best == null ? node : best;
+  }
+
+  void succeeded(ClamdNode node) {
+    health.get(node).succeeded(System.currentTimeMillis());
+  }
+
+  void failed(ClamdNode node) {
+    if (maxConsecutiveFailures > 0 && health.get(node).failed(System.currentTimeMillis())) {
+      updateMembership();
+    }
+  }
+
+  /**
+   * @return true if the node is ejected
+   */
+  boolean isEjected(ClamdNode node) {
+    return health.get(node).ejectedUntil() > System.currentTimeMillis();
+  }
+
+  private synchronized List<ClamdNode> updateMembership() {
+    long now = System.currentTimeMillis();
+    List<ClamdNode> available = new ArrayList<>(nodes.size());
+    long validUntil = Long.MAX_VALUE;
+    for (ClamdNode node : nodes) {
+      long ejectedUntil = health.get(node).ejectedUntil();
+      if (ejectedUntil > now) {
+        validUntil = Math.min(validUntil, ejectedUntil);
+      } else {
+        available.add(node);
+      }
+    }
+    List<ClamdNode> current = membership.nodes;
+    // a list equal to the current one is kept, balancers may have built state on it
+    membership = new Membership(available.isEmpty() ? nodes
+                                    : available.equals(current) ? current
+                                    : Collections.unmodifiableList(available), validUntil);
+    return membership.nodes;
+  }
+
+  private void check() {
+    for (ClamdNode node : nodes) {
+      boolean pong;
+      try {
+        pong = node.getClient().ping();
+      } catch (Exception e) {
+        pong = false;
+      }
+      if (pong) {
+        succeeded(node);
+      } else {
+        failed(node);
+      }
+    }
+    if (outlierLatencyFactor > 0) {
+      ejectLatencyOutliers();
+    }
+  }
+
+  // too few nodes have no meaningful median
+  private void ejectLatencyOutliers() {
+    List<ClamdNode> available = available();
+    if (available.size() < 3) {
+      return;
+    }
+    double[] latencies = new double[available.size()];
+    int measured = 0;
+    for (ClamdNode node : available) {
+      if (node.getLatencyEwma() > 0) {
+        latencies[measured++] = node.getLatencyEwma();
+      }
+    }
+    if (measured < 3) {
+      return;
+    }
+    Arrays.sort(latencies, 0, measured);
+    double median = latencies[measured / 2];
+    long now = System.currentTimeMillis();
+    boolean ejected = false;
+    for (ClamdNode node : available) {
+      if (node.getLatencyEwma() > outlierLatencyFactor * median) {
+        health.get(node).eject(now);
+        // the old average would eject the node again as soon as it is back
+        node.resetLatency();
+        ejected = true;
+      }
+    }
+    if (ejected) {
+      updateMembership();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private final class NodeHealth {
+    private int consecutiveFailures;
+    // ejections in a row, each doubles the ejection time
+    private int ejections;
+    private long ejectedUntil;
+
+    synchronized void succeeded(long now) {
+      consecutiveFailures = 0;
+      if (ejections > 0 && now - ejectedUntil >= warmUpTime) {
+        ejections = 0;
+      }
+    }
+
+    /**
+     * @return true if the node was ejected
+     */
+    synchronized boolean failed(long now) {
+      if (now < ejectedUntil || ++consecutiveFailures < maxConsecutiveFailures) {
+        return false;
+      }
+      eject(now);
+      return true;
+    }
+
+    synchronized void eject(long now) {
+      long time = baseEjectionTime << Math.min(ejections, 30);
+      ejections++;
+      ejectedUntil = now + Math.min(time < 0 ? maxEjectionTime : time, maxEjectionTime);
+      consecutiveFailures = 0;
+    }
+
+    synchronized long ejectedUntil() {
+      return ejectedUntil;
+    }
+
+    // a node never ejected came back long ago
+    synchronized long returnedAt() {
+      return ejectedUntil == 0 ? Long.MIN_VALUE / 2 : ejectedUntil;
+    }
+  }
+
+  private static final class Membership {
+    final List<ClamdNode> nodes;
+    // when the next ejection ends
+    final long validUntil;
+
+    Membership(List<ClamdNode> nodes, long validUntil) {
+      this.nodes = nodes;
+      this.validUntil = validUntil;
+    }
+  }
+}
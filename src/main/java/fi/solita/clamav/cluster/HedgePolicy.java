@@ -0,0 +1,76 @@
+package fi.solita.clamav.cluster;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a scan is hedged. Keeps the latencies of the latest scans and waits for their configured percentile
+ * before hedging, and limits hedges to a share of all scans with a token bucket: every scan adds its share of a token,
+ * every hedge takes a whole one. Thread safe.
+ */
+final class HedgePolicy {
+
+  // latest scans the percentile is taken over
+  private static final int WINDOW = 1024;
+  // too few scans say nothing about the tail
+  private static final int MIN_SAMPLES = 32;
+  // the percentile is sorted out again after this many scans rather than after each one
+  private static final int RECOMPUTE_INTERVAL = 64;
+  // hedges allowed in a burst
+  private static final double MAX_TOKENS = 10;
+
+  private final double percentile;
+  private final double budget;
+  private final long[] samples = new long[WINDOW];
+  private long recorded;
+  private int sinceComputed;
+  private long delay = -1;
+  private double tokens;
+  private long hedges;
+
+  /**
+   * @param percentile scans slower than this percentile are hedged, between 0 and 100
+   * @param budget     share of scans that may be hedged
+   */
+  HedgePolicy(double percentile, double budget) {
+    this.percentile = percentile;
+    this.budget = budget;
+  }
+
+  synchronized void record(long nanos) {
+    samples[(int) (recorded++ % WINDOW)] = nanos;
+    if (++sinceComputed >= RECOMPUTE_INTERVAL || (recorded >= MIN_SAMPLES && delay < 0)) {
+      int count = (int) Math.min(recorded, WINDOW);
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      delay = sorted[Math.min(count - 1, (int) Math.ceil(percentile / 100 * count) - 1)];
+      sinceComputed = 0;
+    }
+  }
+
+  /**
+   * @return nanoseconds to wait for a scan before hedging it, or -1 until enough scans have been seen
+   */
+  synchronized long delay() {
+    return recorded >= MIN_SAMPLES ? delay : -1;
+  }
+
+  synchronized void scanStarted() {
+    tokens = Math.min(MAX_TOKENS, tokens + budget);
+  }
+
+  /**
+   * @return true if the budget allows one more hedge, which is then taken from it
+   */
+  synchronized boolean tryHedge() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    hedges++;
+    return true;
+  }
+
+  synchronized long hedges() {
+    return hedges;
+  }
+}
@@ -0,0 +1,29 @@
+package fi.solita.clamav.cluster;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the node with the fewest scans in flight, so a node busy with a large archive gets no new scans until the
+ * others catch up. Ties go round-robin.
+ */
+public class LeastOutstandingBalancer implements LoadBalancer {
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  @Override
+  public ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    int start = Math.floorMod(next.getAndIncrement(), nodes.size());
+    ClamdNode best = null;
+    int fewest = Integer.MAX_VALUE;
+    for (int i = 0; i < nodes.size(); i++) {
+      ClamdNode node = nodes.get((start + i) % nodes.size());
+      int outstanding = node.getOutstanding();
+      if (outstanding < fewest) {
+        best = node;
+        fewest = outstanding;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,28 @@
+package fi.solita.clamav.cluster;
+
+import java.util.List;
+
+/**
+ * Picks the node for each scan of a {@link ClamAVClusterClient}.
+ * <p>
+ * Provided are {@link RoundRobinBalancer}, {@link LeastOutstandingBalancer}, {@link PowerOfTwoChoicesBalancer},
+ * {@link WeightedBalancer} and {@link ConsistentHashBalancer}. Implementations must be thread safe, and may keep
+ * state between calls, so a balancer should not be shared between clusters.
+ */
+public interface LoadBalancer {
+
+  /**
+   * @param nodes nodes to choose from, never empty
+   * @param key   identifies the content, null if there is none or the balancer does not {@link #usesKey() use keys}
+   * @return one of the nodes
+   */
+  ClamdNode select(List<ClamdNode> nodes, byte[] key);
+
+  /**
+   * @return true if the balancer chooses by content, in which case the cluster digests byte arrays and buffers to
+   * give them a key
+   */
+  default boolean usesKey() {
+    return false;
+  }
+}
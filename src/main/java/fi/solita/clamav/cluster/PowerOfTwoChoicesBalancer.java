@@ -0,0 +1,38 @@
+package fi.solita.clamav.cluster;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two nodes at random and takes the cheaper one, the cost being the node's latency average times its scans in
+ * flight plus one. Slow nodes get fewer scans, and no node is looked at more than twice per scan, so the choice
+ * stays cheap with many nodes. Random pairs keep clients that share a cluster from all rushing to the same node.
+ * Nodes without a latency average yet cost nothing, so new nodes are tried at once.
+ */
+public class PowerOfTwoChoicesBalancer implements LoadBalancer {
+
+  @Override
+  public ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    if (nodes.size() == 1) {
+      return nodes.get(0);
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(nodes.size());
+    int second = random.nextInt(nodes.size() - 1);
+    if (second >= first) {
+      second++;
+    }
+    ClamdNode a = nodes.get(first);
+    ClamdNode b = nodes.get(second);
+    double costA = cost(a);
+    double costB = cost(b);
+    if (costA == costB) {
+      return a.getOutstanding() <= b.getOutstanding() ? a : b;
+    }
+    return costA < costB ? a : b;
+  }
+
+  private static double cost(ClamdNode node) {
+    return node.getLatencyEwma() * (node.getOutstanding() + 1);
+  }
+}
@@ -0,0 +1,56 @@
+package fi.solita.clamav.cluster;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the node with the most idle scanner threads by clamd's own account, so new scans go where they start at
+ * once rather than behind a queue. Free threads are estimated from the latest STATS of each node, less the scans sent
+ * to it since, see {@link ClamAVClusterConfig#setStatsPollInterval(long)}. Ties go round-robin.
+ * <p>
+ * Unlike counting scans in flight, this sees the load other clients put on a shared clamd, and how many threads it
+ * has. While any node has no stats, before the first poll or after a failed one, the fallback balancer chooses.
+ */
+public class QueueAwareBalancer implements LoadBalancer {
+
+  private final LoadBalancer fallback;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Falls back to a {@link LeastOutstandingBalancer}.
+   */
+  public QueueAwareBalancer() {
+    this(new LeastOutstandingBalancer());
+  }
+
+  /**
+   * @param fallback chooses while stats are missing
+   */
+  public QueueAwareBalancer(LoadBalancer fallback) {
+    this.fallback = fallback;
+  }
+
+  @Override
+  public ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    int start = Math.floorMod(next.getAndIncrement(), nodes.size());
+    ClamdNode best = null;
+    int most = Integer.MIN_VALUE;
+    for (int i = 0; i < nodes.size(); i++) {
+      ClamdNode node = nodes.get((start + i) % nodes.size());
+      int free = node.freeThreads();
+      if (free == Integer.MIN_VALUE) {
+        return fallback.select(nodes, key);
+      }
+      if (best == null || free > most) {
+        best = node;
+        most = free;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public boolean usesKey() {
+    return fallback.usesKey();
+  }
+}
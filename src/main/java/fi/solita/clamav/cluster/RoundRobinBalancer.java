@@ -0,0 +1,17 @@
+package fi.solita.clamav.cluster;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the nodes in turn. The default, fair when the nodes are alike and scans cost about the same.
+ */
+public class RoundRobinBalancer implements LoadBalancer {
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  @Override
+  public ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    return nodes.get(Math.floorMod(next.getAndIncrement(), nodes.size()));
+  }
+}
@@ -0,0 +1,47 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamdStats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends STATS to every node of a cluster in turn, on a daemon thread of its own, and keeps the replies in the nodes.
+ * A node whose poll fails has no stats until the next poll succeeds, balancers then do not trust old numbers.
+ */
+final class StatsPoller implements Closeable {
+
+  private final List<ClamdNode> nodes;
+  private final ScheduledExecutorService executor;
+
+  StatsPoller(List<ClamdNode> nodes, long interval) {
+    this.nodes = nodes;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "clamd-stats-poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::poll, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() {
+    for (ClamdNode node : nodes) {
+      ClamdStats stats;
+      try {
+        stats = ClamdStats.parse(node.getClient().stats());
+      } catch (IOException | RuntimeException e) {
+        stats = null;
+      }
+      node.statsPolled(stats);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
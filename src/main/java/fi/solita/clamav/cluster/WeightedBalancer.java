@@ -0,0 +1,35 @@
+package fi.solita.clamav.cluster;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each node a share of the scans in proportion to its {@link ClamdNode#getWeight() weight}, for clusters of
+ * unequal hosts. Smooth weighted round-robin: with weights 5, 1 and 1 the order is a a b a c a a rather than five
+ * scans in a row to the first node.
+ */
+public class WeightedBalancer implements LoadBalancer {
+
+  // how far each node is ahead of its share
+  private final Map<ClamdNode, Long> current = new IdentityHashMap<>();
+
+  @Override
+  public synchronized ClamdNode select(List<ClamdNode> nodes, byte[] key) {
+    ClamdNode best = null;
+    long bestWeight = Long.MIN_VALUE;
+    long total = 0;
+    for (ClamdNode node : nodes) {
+      Long previous = current.get(node);
+      long weight = (previous == null ? 0 : previous) + node.getWeight();
+      current.put(node, weight);
+      total += node.getWeight();
+      if (weight > bestWeight) {
+        best = node;
+        bestWeight = weight;
+      }
+    }
+    current.put(best, bestWeight - total);
+    return best;
+  }
+}
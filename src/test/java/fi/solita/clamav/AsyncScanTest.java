@@ -0,0 +1,109 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * These tests assume clamd is running and responding in the virtual machine.
+ */
+public class AsyncScanTest {
+
+  private static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes();
+
+  @Test
+  public void testConcurrentScans() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310, new ClamAVClientConfig().setReadTimeout(5000))) {
+      List<CompletableFuture<ScanResult>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        results.add(cl.scanAsync(i % 10 == 0 ? EICAR : new byte[500 * i]));
+      }
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i % 10 != 0, results.get(i).get().isClean());
+      }
+    }
+  }
+
+  @Test
+  public void testDirectBuffer() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(40000);
+      buffer.position(100);
+      assertTrue(cl.scanAsync(buffer).get().isClean());
+      assertEquals(100, buffer.position());
+    }
+  }
+
+  @Test
+  public void testSizeLimit() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      cl.scanAsync(new byte[60000]).get();
+      fail("size limit should have been exceeded");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ClamAVSizeLimitException);
+    }
+  }
+
+  @Test
+  public void testClosedClient() throws InterruptedException {
+    ClamAVClient cl = new ClamAVClient("localhost", 3310);
+    cl.close();
+    try {
+      cl.scanAsync(new byte[10]).get();
+      fail("scan should fail after close");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testConnectionRefused() throws InterruptedException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 1)) {
+      CompletableFuture<ScanResult> result = cl.scanAsync(new byte[10]);
+      try {
+        result.get();
+        fail("scan should fail");
+      } catch (ExecutionException e) {
+        assertFalse(result.isCancelled());
+      }
+    }
+  }
+
+  @Test
+  public void testCompletedOffEventLoop() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      String thread = cl.scanAsync(new byte[100]).thenApply(result -> Thread.currentThread().getName()).get();
+      assertFalse(thread.startsWith("clamd-nio-"));
+    }
+  }
+
+  @Test
+  public void testPeerThatStopsReading() throws Exception {
+    // the connection waits in the backlog, nothing reads what is sent
+    try (ServerSocket server = new ServerSocket()) {
+      server.setReceiveBufferSize(4096);
+      server.bind(new InetSocketAddress("localhost", 0));
+      try (ClamAVClient cl = new ClamAVClient("localhost", server.getLocalPort(),
+                                              new ClamAVClientConfig().setReadTimeout(200))) {
+        cl.scanAsync(new byte[64 * 1024 * 1024]).get(5, TimeUnit.SECONDS);
+        fail("scan should time out");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+      }
+    }
+  }
+}
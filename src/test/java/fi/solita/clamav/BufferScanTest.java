@@ -0,0 +1,69 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * These tests assume clamd is running and responding in the virtual machine.
+ */
+public class BufferScanTest {
+
+  private static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes();
+
+  private static byte[] embedded(int off, int len) {
+    byte[] content = new byte[len];
+    System.arraycopy(EICAR, 0, content, off, EICAR.length);
+    return content;
+  }
+
+  private static void assertBuffers(ClamAVClient cl) throws IOException {
+    byte[] content = embedded(1000, 5000);
+    assertFalse(ClamAVClient.isCleanReply(cl.scan(content, 1000, EICAR.length)));
+    assertTrue(ClamAVClient.isCleanReply(cl.scan(content, 2000, 3000)));
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+    direct.put(content);
+    direct.position(900);
+    direct.limit(1200);
+    assertFalse(ClamAVClient.isCleanReply(cl.scan(direct)));
+    assertEquals(900, direct.position());
+    direct.position(1200).limit(5000);
+    assertTrue(ClamAVClient.isCleanReply(cl.scan(direct)));
+    assertTrue(ClamAVClient.isCleanReply(cl.scan(ByteBuffer.allocate(0))));
+  }
+
+  @Test
+  public void testSlices() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      assertBuffers(cl);
+    }
+  }
+
+  @Test
+  public void testSocketWithoutChannel() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310) {
+      @Override
+      protected Socket openSocket() throws IOException {
+        Socket socket = new Socket("localhost", 3310);
+        socket.setSoTimeout(500);
+        return socket;
+      }
+    }) {
+      assertBuffers(cl);
+    }
+  }
+
+  @Test(expected = ClamAVSizeLimitException.class)
+  public void testSizeLimit() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      cl.scan(ByteBuffer.allocateDirect(60000));
+    }
+  }
+}
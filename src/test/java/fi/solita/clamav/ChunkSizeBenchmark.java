@@ -0,0 +1,51 @@
+package fi.solita.clamav;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan throughput for different INSTREAM chunk sizes. Multiply the score by payloadSize to get bytes per second.
+ * <p>
+ * Runs against clamd at clamd.host:clamd.port (localhost:3310 by default). The default payload fits the test image's
+ * StreamMaxLength, pass for instance {@code -p payloadSize=104857600} to benchmark against a production configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkSizeBenchmark {
+
+  @Param({"2048", "8192", "32768", "131072", "524288", "1048576"})
+  public int chunkSize;
+
+  @Param({"49152"})
+  public int payloadSize;
+
+  private ClamAVClient client;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    client = new ClamAVClient(System.getProperty("clamd.host", "localhost"), Integer.getInteger("clamd.port", 3310),
+        new ClamAVClientConfig().setChunkSize(chunkSize).setReadTimeout(0));
+    payload = new byte[payloadSize];
+    new Random(1).nextBytes(payload);
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.close();
+  }
+
+  @Benchmark
+  public byte[] scan() throws IOException {
+    // a stream, since in-memory data is not sent in configured chunks
+    return client.scan(new ByteArrayInputStream(payload));
+  }
+}
@@ -0,0 +1,86 @@
+package fi.solita.clamav;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChunkSizeTunerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCandidates() {
+    assertArrayEquals(new int[]{2048, 4096, 8192, 16384}, new ChunkSizeTuner(20000).candidates());
+    assertArrayEquals(new int[]{2048}, new ChunkSizeTuner(100).candidates());
+  }
+
+  @Test
+  public void testKnownLengthIsSentAsOneChunk() {
+    ChunkSizeTuner tuner = new ChunkSizeTuner(16384);
+    assertEquals(1, tuner.chunkSize(0));
+    assertEquals(5000, tuner.chunkSize(5000));
+    assertEquals(16384, tuner.chunkSize(16384));
+  }
+
+  @Test
+  public void testEveryCandidateIsTriedBeforeTheBestIsChosen() {
+    ChunkSizeTuner tuner = new ChunkSizeTuner(8192);
+    assertEquals(2048, tuner.chunkSize(-1));
+    tuner.record(2048, 100000, 1000);
+    assertEquals(4096, tuner.chunkSize(-1));
+    tuner.record(4096, 100000, 100);
+    assertEquals(8192, tuner.chunkSize(-1));
+    tuner.record(8192, 100000, 500);
+
+    int best = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (tuner.chunkSize(-1) == 4096) {
+        best++;
+      }
+    }
+    assertEquals(950, best, 50);
+  }
+
+  @Test
+  public void testSingleChunkScansAreIgnored() {
+    ChunkSizeTuner tuner = new ChunkSizeTuner(4096);
+    tuner.record(2048, 2048, 1);
+    tuner.record(3000, 100000, 1);
+    assertEquals(2048, tuner.chunkSize(-1));
+  }
+
+  @Test
+  public void testKnownLengthsReachTuner() throws IOException {
+    Path file = Files.write(folder.newFile().toPath(), new byte[100000]);
+    LoopbackTransport clamd = new LoopbackTransport();
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setChunkSizeAutoTuning(true))) {
+      cl.scanResult(new byte[100000]);
+      assertEquals(1, clamd.frameCount());
+      cl.scanResult(ByteBuffer.allocateDirect(100000));
+      assertEquals(2, clamd.frameCount());
+      cl.scanResult(file);
+      assertEquals(3, clamd.frameCount());
+    }
+  }
+
+  @Test
+  public void testConfiguredChunkSizeIsHonoured() throws IOException {
+    Path file = Files.write(folder.newFile().toPath(), new byte[100000]);
+    LoopbackTransport clamd = new LoopbackTransport();
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setChunkSize(10000))) {
+      cl.scanResult(new byte[100000]);
+      assertEquals(10, clamd.frameCount());
+      cl.scanResult(file);
+      assertEquals(20, clamd.frameCount());
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClamdStatsTest {
+
+  private static final String REPLY = "POOLS: 1\n\nSTATE: VALID PRIMARY\n"
+      + "THREADS: live 6  idle 2 max 12 idle-timeout 30\nQUEUE: 3 items\n"
+      + "\tSTATS 0.000394 \n\tINSTREAM 1.250311 \n\n"
+      + "MEMSTATS: heap 9.082M mmap 0.000M used 6.902M free 2.184M releasable 0.129M pools 1 pools_used 565.979M "
+      + "pools_total 565.999M\nEND";
+
+  @Test
+  public void testParse() {
+    ClamdStats stats = ClamdStats.parse(REPLY);
+    assertEquals("VALID PRIMARY", stats.getState());
+    assertEquals(6, stats.getLiveThreads());
+    assertEquals(2, stats.getIdleThreads());
+    assertEquals(12, stats.getMaxThreads());
+    assertEquals(3, stats.getQueueLength());
+    assertEquals(3, stats.getBusyThreads());
+    assertEquals(6, stats.getFreeThreads());
+    assertEquals((long) (9.082 * 1024 * 1024), stats.getHeapBytes());
+    assertEquals((long) (6.902 * 1024 * 1024), stats.getUsedBytes());
+    assertEquals((long) (565.979 * 1024 * 1024), stats.getPoolsUsedBytes());
+    assertEquals(REPLY, stats.toString());
+  }
+
+  @Test
+  public void testMemoryNotAvailable() {
+    ClamdStats stats = ClamdStats.parse(LoopbackTransport.STATS);
+    assertEquals(-1, stats.getHeapBytes());
+    assertEquals(-1, stats.getUsedBytes());
+    assertEquals(0, stats.getPoolsUsedBytes());
+    assertEquals(0, stats.getBusyThreads());
+    assertEquals(10, stats.getFreeThreads());
+  }
+
+  @Test
+  public void testMissingParts() {
+    ClamdStats stats = ClamdStats.parse("POOLS: 1\nTHREADS: live x\nEND");
+    assertNull(stats.getState());
+    assertEquals(-1, stats.getLiveThreads());
+    assertEquals(-1, stats.getQueueLength());
+    assertEquals(-1, stats.getBusyThreads());
+    assertEquals(Integer.MIN_VALUE, stats.getFreeThreads());
+    assertEquals(-1, stats.getHeapBytes());
+  }
+
+  @Test
+  public void testPoolsAddUp() {
+    ClamdStats stats = ClamdStats.parse("POOLS: 2\n\nSTATE: VALID PRIMARY\n"
+        + "THREADS: live 4  idle 1 max 10 idle-timeout 30\nQUEUE: 0 items\n\n"
+        + "STATE: VALID PRIMARY\nTHREADS: live 10  idle 0 max 10 idle-timeout 30\nQUEUE: 5 items\nEND");
+    assertEquals(14, stats.getLiveThreads());
+    assertEquals(1, stats.getIdleThreads());
+    assertEquals(20, stats.getMaxThreads());
+    assertEquals(5, stats.getQueueLength());
+  }
+
+  @Test
+  public void testStatsOverLoopback() throws IOException {
+    LoopbackTransport clamd = new LoopbackTransport();
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig())) {
+      assertEquals(LoopbackTransport.STATS, cl.stats());
+      clamd.setStats(REPLY);
+      assertEquals(3, ClamdStats.parse(cl.stats()).getQueueLength());
+    }
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertEquals(REPLY, cl.stats());
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClamdVersionTest {
+
+  @Test
+  public void testParse() {
+    ClamdVersion version = ClamdVersion.parse("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026");
+    assertEquals("0.103.8", version.getEngineVersion());
+    assertEquals(26700, version.getDatabaseVersion());
+    assertEquals(LocalDateTime.of(2026, 10, 16, 7, 52, 51), version.getDatabaseBuildTime());
+    assertEquals("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026", version.toString());
+  }
+
+  @Test
+  public void testSingleDigitDay() {
+    assertEquals(LocalDateTime.of(2026, 11, 2, 9, 5, 0),
+        ClamdVersion.parse("ClamAV 1.0.3/27080/Mon Nov  2 09:05:00 2026").getDatabaseBuildTime());
+  }
+
+  @Test
+  public void testMissingParts() {
+    ClamdVersion version = ClamdVersion.parse("ClamAV 0.103.8");
+    assertEquals("0.103.8", version.getEngineVersion());
+    assertEquals(-1, version.getDatabaseVersion());
+    assertNull(version.getDatabaseBuildTime());
+
+    version = ClamdVersion.parse("ClamAV 0.103.8/x/yesterday");
+    assertEquals(-1, version.getDatabaseVersion());
+    assertNull(version.getDatabaseBuildTime());
+  }
+
+  @Test
+  public void testEquality() {
+    assertEquals(ClamdVersion.parse("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"),
+        ClamdVersion.parse("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"));
+    assertNotEquals(ClamdVersion.parse("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"),
+        ClamdVersion.parse("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026"));
+  }
+}
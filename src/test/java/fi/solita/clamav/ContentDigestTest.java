@@ -0,0 +1,104 @@
+package fi.solita.clamav;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentDigestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final LoopbackTransport clamd = new LoopbackTransport();
+  private final byte[] data = new byte[100000];
+
+  public ContentDigestTest() {
+    new Random(1).nextBytes(data);
+  }
+
+  private static byte[] sha256(byte[] data) throws Exception {
+    return MessageDigest.getInstance("SHA-256").digest(data);
+  }
+
+  @Test
+  public void testDigestOfEveryInput() throws Exception {
+    Path file = Files.write(folder.newFile().toPath(), data);
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+    ClamAVClientConfig config = new ClamAVClientConfig().setContentDigest(true).setChunkSize(4096);
+    for (int sessions : new int[]{8, 0}) {
+      try (ClamAVClient cl = new ClamAVClient(clamd, config.setMaxIdleSessions(sessions))) {
+        byte[] expected = sha256(data);
+        assertArrayEquals(expected, cl.scanResult(data).getDigest());
+        assertArrayEquals(expected, cl.scanResult(new ByteArrayInputStream(data)).getDigest());
+        assertArrayEquals(expected, cl.scanResult(direct).getDigest());
+        assertArrayEquals(expected, cl.scanResult(file).getDigest());
+        assertArrayEquals(sha256(new byte[0]), cl.scanResult(new byte[0]).getDigest());
+      }
+    }
+  }
+
+  // assumes clamd is running and responding in the virtual machine
+  @Test
+  public void testDigestOfAsyncScan() throws Exception {
+    byte[] small = Arrays.copyOf(data, 20000);
+    ClamAVClientConfig config = new ClamAVClientConfig().setContentDigest(true).setChunkSize(4096);
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310, config)) {
+      assertArrayEquals(sha256(small), cl.scanAsync(small).get().getDigest());
+      assertArrayEquals(sha256(new byte[0]), cl.scanAsync(new byte[0]).get().getDigest());
+    }
+  }
+
+  @Test
+  public void testNoDigestByDefault() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig())) {
+      assertNull(cl.scanResult(data).getDigest());
+      assertNull(cl.scanResult(new ByteArrayInputStream(data)).getDigest());
+    }
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setResultCacheSize(10))) {
+      assertNull(cl.scanResult(data).getDigest());
+      assertNull(cl.scanResult(data).getDigest());
+    }
+  }
+
+  @Test
+  public void testOtherAlgorithm() throws Exception {
+    ClamAVClientConfig config = new ClamAVClientConfig().setContentDigest(true).setDigestAlgorithm("SHA-512");
+    try (ClamAVClient cl = new ClamAVClient(clamd, config)) {
+      assertArrayEquals(MessageDigest.getInstance("SHA-512").digest(data),
+          cl.scanResult(new ByteArrayInputStream(data)).getDigest());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownAlgorithm() {
+    new ClamAVClientConfig().setDigestAlgorithm("no such digest");
+  }
+
+  @Test
+  public void testStreamResultIsCached() throws Exception {
+    ClamAVClientConfig config = new ClamAVClientConfig().setResultCacheSize(10).setContentDigest(true);
+    try (ClamAVClient cl = new ClamAVClient(clamd, config)) {
+      cl.scanResult(new ByteArrayInputStream(data));
+      ScanResult cached = cl.scanResult(data);
+      assertEquals(1, clamd.scanCount());
+      assertArrayEquals(sha256(data), cached.getDigest());
+      // streams are always sent, as their digest is only known afterwards
+      cl.scanResult(new ByteArrayInputStream(data));
+      assertEquals(2, clamd.scanCount());
+    }
+  }
+}
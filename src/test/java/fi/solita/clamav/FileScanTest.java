@@ -0,0 +1,88 @@
+package fi.solita.clamav;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * These tests assume clamd is running and responding in the virtual machine.
+ */
+public class FileScanTest {
+
+  private static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file(byte[] content) throws IOException {
+    return Files.write(folder.newFile().toPath(), content);
+  }
+
+  @Test
+  public void testCleanFile() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(file(new byte[50000]))));
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(file(new byte[0]))));
+    }
+  }
+
+  @Test
+  public void testFileRegion() throws IOException {
+    byte[] content = new byte[5000];
+    System.arraycopy(EICAR, 0, content, 1000, EICAR.length);
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310);
+         FileChannel channel = FileChannel.open(file(content), StandardOpenOption.READ)) {
+      channel.position(17);
+      assertFalse(ClamAVClient.isCleanReply(cl.scan(channel, 1000, EICAR.length)));
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(channel, 2000, 3000)));
+      assertEquals(17, channel.position());
+    }
+  }
+
+  @Test(expected = ClamAVSizeLimitException.class)
+  public void testSizeLimit() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310, new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      cl.scan(file(new byte[60000]));
+    }
+  }
+
+  @Test
+  public void testSocketWithoutChannel() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310) {
+      @Override
+      protected Socket openSocket() throws IOException {
+        Socket socket = new Socket("localhost", 3310);
+        socket.setSoTimeout(500);
+        return socket;
+      }
+    }) {
+      Path eicar = file(EICAR);
+      assertFalse(ClamAVClient.isCleanReply(cl.scan(eicar)));
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(file(new byte[50000]))));
+    }
+  }
+
+  @Test
+  public void testDigestedFile() throws Exception {
+    byte[] content = new byte[40000];
+    System.arraycopy(EICAR, 0, content, 30000, EICAR.length);
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310, new ClamAVClientConfig().setContentDigest(true))) {
+      ScanResult result = cl.scanResult(file(content));
+      assertEquals(ScanResult.Status.FOUND, result.getStatus());
+      assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), result.getDigest());
+    }
+  }
+}
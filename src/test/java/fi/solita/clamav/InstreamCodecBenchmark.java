@@ -0,0 +1,58 @@
+package fi.solita.clamav;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cost of framing a stream and reading the reply, without any network. Run with {@code -prof gc} and
+ * check that gc.alloc.rate.norm stays flat when the payload grows, allocation must not depend on the chunk count.
+ * InstreamCodecTest fails the build if it does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstreamCodecBenchmark {
+
+  @Param({"2048", "65536"})
+  public int chunkSize;
+
+  @Param({"65536", "1048576"})
+  public int payloadSize;
+
+  private final InstreamCodec codec = new InstreamCodec();
+  private final ByteArrayInputStream reply = new ByteArrayInputStream(ClamAVClient.asBytes("stream: OK\0"));
+  private final ByteArrayInputStream noReply = new ByteArrayInputStream(new byte[0]);
+  private ByteArrayInputStream payload;
+
+  private final OutputStream nullOutput = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  @Setup
+  public void setUp() {
+    payload = new ByteArrayInputStream(new byte[payloadSize]);
+  }
+
+  @Benchmark
+  public boolean scan() throws IOException {
+    payload.reset();
+    reply.reset();
+    codec.sendChunks(payload, chunkSize, nullOutput, noReply);
+    int length = codec.readTerminated(reply);
+    ClamAVClient.assertSizeLimit(codec.replyBuffer(), length);
+    return ClamAVClient.isCleanReply(codec.replyBuffer());
+  }
+}
@@ -0,0 +1,217 @@
+package fi.solita.clamav;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstreamCodecTest {
+
+  private static final InputStream NO_REPLY = new ByteArrayInputStream(new byte[0]);
+
+  // endless zeros, count bytes at a time, without allocating
+  private static final class ZeroStream extends InputStream {
+    private long remaining;
+
+    ZeroStream reset(long remaining) {
+      this.remaining = remaining;
+      return this;
+    }
+
+    @Override
+    public int read() {
+      return remaining-- > 0 ? 0 : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = (int) Math.min(len, remaining);
+      remaining -= read;
+      return read;
+    }
+  }
+
+  private static final OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  @Test
+  public void testFraming() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(new InstreamCodec().sendChunks(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5}), 3, out, NO_REPLY));
+    assertArrayEquals(new byte[]{0, 0, 0, 3, 1, 2, 3, 0, 0, 0, 2, 4, 5, 0, 0, 0, 0}, out.toByteArray());
+  }
+
+  @Test
+  public void testReplies() throws IOException {
+    InstreamCodec codec = new InstreamCodec();
+    byte[] replies = ClamAVClient.asBytes("1: stream: OK\0" + "2: PONG\0");
+    ByteArrayInputStream in = new ByteArrayInputStream(replies);
+    assertEquals(14, codec.readTerminated(in));
+    assertArrayEquals(ClamAVClient.asBytes("stream: OK\0"), codec.replyCopy(3));
+    assertEquals(8, codec.readTerminated(in));
+    assertArrayEquals(ClamAVClient.asBytes("PONG\0"), codec.replyCopy(3));
+  }
+
+  @Test
+  public void testEarlyReplyIsCheckedOncePerInterval() throws IOException {
+    final int[] checks = new int[1];
+    InputStream clamIs = new InputStream() {
+      @Override
+      public int read() {
+        return -1;
+      }
+
+      @Override
+      public int available() {
+        checks[0]++;
+        return 0;
+      }
+    };
+    InstreamCodec codec = new InstreamCodec();
+    assertTrue(codec.sendChunks(new ZeroStream().reset(1000 * 2048), 2048, NULL_OUTPUT, clamIs));
+    assertEquals(1000 * 2048 / InstreamCodec.EARLY_REPLY_CHECK_INTERVAL, checks[0]);
+  }
+
+  @Test
+  public void testEarlyReply() throws IOException {
+    InstreamCodec codec = new InstreamCodec();
+    InputStream clamIs = new ByteArrayInputStream(ClamAVClient.asBytes("INSTREAM size limit exceeded. ERROR\0"));
+    assertFalse(codec.sendChunks(new ZeroStream().reset(1000 * 2048), 2048, NULL_OUTPUT, clamIs));
+    assertEquals(InstreamCodec.EARLY_REPLY_CHECK_INTERVAL, codec.bytesSent());
+    assertNull(codec.writeFailure());
+  }
+
+  @Test
+  public void testWriteFailure() throws IOException {
+    final IOException reset = new SocketException("Connection reset");
+    OutputStream closed = new OutputStream() {
+      private int written;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (++written > 10000) {
+          throw reset;
+        }
+      }
+    };
+    InstreamCodec codec = new InstreamCodec();
+    assertFalse(codec.sendChunks(new ZeroStream().reset(100000), 2048, closed, NO_REPLY));
+    assertSame(reset, codec.writeFailure());
+    assertTrue(codec.sendChunks(new ZeroStream().reset(10), 2048, NULL_OUTPUT, NO_REPLY));
+    assertNull(codec.writeFailure());
+  }
+
+  // hands out the given bytes a few at a time, like a reply split across TCP segments, and then times out
+  private static final class TrickleStream extends InputStream {
+    private final byte[] data;
+    private int position;
+
+    TrickleStream(String data) {
+      this.data = ClamAVClient.asBytes(data);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position == data.length) {
+        throw new SocketTimeoutException("Read timed out");
+      }
+      int read = Math.min(Math.min(len, 3), data.length - position);
+      System.arraycopy(data, position, b, off, read);
+      position += read;
+      return read;
+    }
+  }
+
+  @Test
+  public void testReplySplitAcrossReads() throws IOException {
+    InstreamCodec codec = new InstreamCodec();
+    assertEquals(35, codec.readTerminated(new TrickleStream("stream: Win.Test.EICAR_HDB-1 FOUND\0")));
+    assertEquals("stream: Win.Test.EICAR_HDB-1 FOUND", ScanResult.parse(codec.replyCopy(0)).toString());
+  }
+
+  @Test
+  public void testPartialReplyIsKeptOverTimeout() throws IOException {
+    InstreamCodec codec = new InstreamCodec();
+    try {
+      codec.readTerminated(new TrickleStream("1: stre"));
+      fail("reply is not complete");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    assertEquals(14, codec.readTerminated(new TrickleStream("am: OK\0")));
+    assertArrayEquals(ClamAVClient.asBytes("1: stream: OK\0"), codec.replyCopy(0));
+  }
+
+  @Test
+  public void testMaxReplySize() throws IOException {
+    InstreamCodec codec = new InstreamCodec(16);
+    assertEquals(16, codec.readTerminated(new ByteArrayInputStream(ClamAVClient.asBytes("123456789012345\0"))));
+    try {
+      codec.readTerminated(new ByteArrayInputStream(ClamAVClient.asBytes("1234567890123456\0")));
+      fail("reply is too long");
+    } catch (IOException e) {
+      assertEquals("Reply from server exceeds 16 bytes.", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testNoAllocationPerChunk() throws IOException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+    InstreamCodec codec = new InstreamCodec();
+    ZeroStream data = new ZeroStream();
+    ByteArrayInputStream reply = new ByteArrayInputStream(ClamAVClient.asBytes("stream: OK\0"));
+    long threadId = Thread.currentThread().getId();
+    // warm up, the first scan sizes the buffers
+    for (int i = 0; i < 10000; i++) {
+      scan(codec, data.reset(10 * 2048), reply);
+    }
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100; i++) {
+      scan(codec, data.reset(10000 * 2048), reply);
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+    // a million chunks, allowing for a few stray allocations by the measurement itself
+    assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+  }
+
+  private static void scan(InstreamCodec codec, InputStream data, ByteArrayInputStream reply) throws IOException {
+    codec.sendChunks(data, 2048, NULL_OUTPUT, NO_REPLY);
+    reply.reset();
+    ClamAVClient.assertSizeLimit(codec.replyBuffer(), codec.readTerminated(reply));
+  }
+}
@@ -2,11 +2,14 @@ package fi.solita.clamav;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -40,6 +43,18 @@ public class InstreamTest {
     assertFalse(ClamAVClient.isCleanReply(r));
   }
 
+  @Test
+  public void testScanResult() throws IOException {
+    byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes("ASCII");
+    try (ClamAVClient cl = new ClamAVClient(CLAMAV_HOST, 3310)) {
+      ScanResult found = cl.scanResult(EICAR);
+      assertEquals(ScanResult.Status.FOUND, found.getStatus());
+      assertEquals(1, found.getSignatures().size());
+      assertTrue(found.getRequestId() > 0);
+      assertSame(ScanResult.CLEAN, cl.scanResult(new ByteArrayInputStream(new byte[100])));
+    }
+  }
+
   @Test
   public void testStreamChunkingWorks() throws UnknownHostException, IOException {
     byte[] multipleChunks = new byte[50000];
@@ -54,6 +69,22 @@ public class InstreamTest {
     assertTrue(ClamAVClient.isCleanReply(r));
   }
 
+  @Test
+  public void testLargeChunks() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(CLAMAV_HOST, 3310, new ClamAVClientConfig().setChunkSize(65536))) {
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[50000])));
+    }
+  }
+
+  @Test
+  public void testAutoTunedChunks() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(CLAMAV_HOST, 3310, new ClamAVClientConfig().setChunkSizeAutoTuning(true))) {
+      for (int i = 0; i < 20; i++) {
+        assertTrue(ClamAVClient.isCleanReply(cl.scan(new ByteArrayInputStream(new byte[50000]))));
+      }
+    }
+  }
+
   @Test
   public void testZeroBytes() throws UnknownHostException, IOException {
     byte[] r = scan(new byte[]{});
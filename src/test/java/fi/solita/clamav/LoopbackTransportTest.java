@@ -0,0 +1,69 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoopbackTransportTest {
+
+  @Test
+  public void testPooledSessions() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(new LoopbackTransport(), new ClamAVClientConfig())) {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(cl.ping());
+        assertSame(ScanResult.CLEAN, cl.scanResult(new byte[100000]));
+        assertSame(ScanResult.CLEAN, cl.scanResult(new ByteArrayInputStream(new byte[5000])));
+        assertSame(ScanResult.CLEAN, cl.scanResult(ByteBuffer.allocateDirect(5000)));
+      }
+    }
+  }
+
+  @Test
+  public void testConnectionPerCommand() throws IOException {
+    LoopbackTransport transport = new LoopbackTransport("stream: Eicar-Test-Signature FOUND", Long.MAX_VALUE);
+    try (ClamAVClient cl = new ClamAVClient(transport, new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertTrue(cl.ping());
+      ScanResult result = cl.scanResult(new byte[100]);
+      assertEquals(ScanResult.Status.FOUND, result.getStatus());
+      assertEquals(Collections.singletonList("Eicar-Test-Signature"), result.getSignatures());
+    }
+  }
+
+  @Test(expected = ClamAVSizeLimitException.class)
+  public void testSizeLimit() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(new LoopbackTransport("stream: OK", 50100), new ClamAVClientConfig())) {
+      cl.scan(new ByteArrayInputStream(new byte[60000]));
+    }
+  }
+
+  @Test
+  public void testPipeline() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient(new LoopbackTransport(), new ClamAVClientConfig());
+         ClamdPipeline pipeline = cl.openPipeline(4)) {
+      CompletableFuture<byte[]> first = pipeline.submit(new byte[1000]);
+      CompletableFuture<byte[]> second = pipeline.submit(new byte[2000]);
+      assertTrue(ClamAVClient.isCleanReply(first.get()));
+      assertTrue(ClamAVClient.isCleanReply(second.get()));
+    }
+  }
+
+  @Test
+  public void testNoAsyncScans() throws InterruptedException {
+    try (ClamAVClient cl = new ClamAVClient(new LoopbackTransport(), new ClamAVClientConfig())) {
+      cl.scanAsync(new byte[10]).get();
+      fail("loopback has no address for non-blocking connections");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package fi.solita.clamav;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MappedResultStoreTest {
+
+  private static final String VERSION = "ClamAV 0.103.8/26700";
+  private static final ScanResult FOUND = ScanResult.parse(ClamAVClient.asBytes("stream: Eicar-Test-Signature FOUND\0"));
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file() throws IOException {
+    return folder.getRoot().toPath().resolve("results");
+  }
+
+  private static byte[] digest(int n) {
+    return ContentDigest.newDigest("SHA-256").digest(new byte[]{(byte) n, (byte) (n >> 8)});
+  }
+
+  @Test
+  public void testStoredResults() throws IOException {
+    try (MappedResultStore store = new MappedResultStore(file(), 100)) {
+      assertNull(store.get(digest(1), VERSION));
+      store.put(digest(1), VERSION, ScanResult.CLEAN);
+      store.put(digest(2), VERSION, FOUND);
+      assertSame(ScanResult.CLEAN, store.get(digest(1), VERSION));
+      ScanResult found = store.get(digest(2), VERSION);
+      assertEquals(ScanResult.Status.FOUND, found.getStatus());
+      assertEquals(Collections.singletonList("Eicar-Test-Signature"), found.getSignatures());
+      assertNull(store.get(digest(3), VERSION));
+    }
+  }
+
+  @Test
+  public void testOtherVersionMisses() throws IOException {
+    try (MappedResultStore store = new MappedResultStore(file(), 100)) {
+      store.put(digest(1), VERSION, ScanResult.CLEAN);
+      assertNull(store.get(digest(1), "ClamAV 0.103.8/26701"));
+      store.put(digest(1), "ClamAV 0.103.8/26701", FOUND);
+      assertEquals(ScanResult.Status.FOUND, store.get(digest(1), "ClamAV 0.103.8/26701").getStatus());
+      assertNull(store.get(digest(1), VERSION));
+    }
+  }
+
+  @Test
+  public void testSharedAndKeptOverRestart() throws IOException {
+    try (MappedResultStore first = new MappedResultStore(file(), 100);
+         MappedResultStore second = new MappedResultStore(file(), 100)) {
+      first.put(digest(1), VERSION, ScanResult.CLEAN);
+      second.put(digest(2), VERSION, FOUND);
+      assertSame(ScanResult.CLEAN, second.get(digest(1), VERSION));
+      assertEquals(ScanResult.Status.FOUND, first.get(digest(2), VERSION).getStatus());
+    }
+    // the size of an existing file is kept
+    try (MappedResultStore reopened = new MappedResultStore(file(), 5)) {
+      assertSame(ScanResult.CLEAN, reopened.get(digest(1), VERSION));
+      assertEquals(ScanResult.Status.FOUND, reopened.get(digest(2), VERSION).getStatus());
+    }
+  }
+
+  @Test
+  public void testFullTableReplacesOldest() throws IOException {
+    try (MappedResultStore store = new MappedResultStore(file(), 4)) {
+      for (int i = 0; i < 100; i++) {
+        store.put(digest(i), VERSION, ScanResult.CLEAN);
+      }
+      int found = 0;
+      for (int i = 0; i < 100; i++) {
+        if (store.get(digest(i), VERSION) != null) {
+          found++;
+        }
+      }
+      assertEquals(4, found);
+      assertSame(ScanResult.CLEAN, store.get(digest(99), VERSION));
+    }
+  }
+
+  @Test
+  public void testCorruptSlotMisses() throws IOException {
+    try (MappedResultStore store = new MappedResultStore(file(), 1)) {
+      store.put(digest(1), VERSION, ScanResult.CLEAN);
+    }
+    try (RandomAccessFile raw = new RandomAccessFile(file().toFile(), "rw")) {
+      // flip a bit in the stored time of the only slot
+      raw.seek(64 + 24);
+      int b = raw.read();
+      raw.seek(64 + 24);
+      raw.write(b ^ 1);
+    }
+    try (MappedResultStore store = new MappedResultStore(file(), 1)) {
+      assertNull(store.get(digest(1), VERSION));
+    }
+  }
+
+  @Test
+  public void testLongReplyIsNotStored() throws IOException {
+    StringBuilder reply = new StringBuilder("stream: ");
+    for (int i = 0; i < MappedResultStore.REPLY_CAPACITY; i++) {
+      reply.append('x');
+    }
+    ScanResult longFound = ScanResult.parse(ClamAVClient.asBytes(reply + " FOUND\0"));
+    try (MappedResultStore store = new MappedResultStore(file(), 10)) {
+      store.put(digest(1), VERSION, longFound);
+      assertNull(store.get(digest(1), VERSION));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotAStore() throws IOException {
+    Files.write(file(), new byte[1000]);
+    try (MappedResultStore store = new MappedResultStore(file(), 10)) {
+      store.get(digest(1), VERSION);
+    }
+  }
+
+  @Test
+  public void testClientsShareResults() throws IOException {
+    LoopbackTransport clamd = new LoopbackTransport();
+    ClamAVClientConfig config = new ClamAVClientConfig().setResultStore(file());
+    try (ClamAVClient cl = new ClamAVClient(clamd, config)) {
+      cl.scanResult(new byte[1000]);
+      cl.scanResult(new byte[1000]);
+    }
+    try (ClamAVClient cl = new ClamAVClient(clamd, config)) {
+      cl.scanResult(new byte[1000]);
+    }
+    assertEquals(1, clamd.scanCount());
+  }
+
+  @Test
+  public void testReaderNeverSeesEvictingWrite() throws Exception {
+    try (MappedResultStore store = new MappedResultStore(file(), 1)) {
+      final byte[] infected = digest(1);
+      final byte[] clean = digest(2);
+      final AtomicBoolean done = new AtomicBoolean();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      // the only slot goes back and forth between a found and a clean result of other content
+      Thread writer = new Thread(() -> {
+        try {
+          while (!done.get()) {
+            store.put(infected, VERSION, FOUND);
+            store.put(clean, VERSION, ScanResult.CLEAN);
+          }
+        } catch (IOException e) {
+          failure.set(e);
+        }
+      });
+      writer.start();
+      try {
+        long deadline = System.currentTimeMillis() + 500;
+        int found = 0;
+        while (System.currentTimeMillis() < deadline || found == 0) {
+          ScanResult result = store.get(infected, VERSION);
+          if (result != null) {
+            assertEquals(ScanResult.Status.FOUND, result.getStatus());
+            found++;
+          }
+        }
+      } finally {
+        done.set(true);
+        writer.join();
+      }
+      assertNull(failure.get());
+    }
+  }
+
+  @Test
+  public void testWriteFailureIsDropped() throws IOException {
+    MappedResultStore store = new MappedResultStore(file(), 100);
+    ScanResultCache cache = new ScanResultCache(new ClamAVClientConfig().setResultCacheSize(10), store, () -> VERSION);
+    store.close();
+    cache.put(digest(1), VERSION, ScanResult.CLEAN);
+    assertSame(ScanResult.CLEAN, cache.scan(digest(1), () -> {
+      throw new AssertionError("cached result not used");
+    }));
+  }
+
+  @Test
+  public void testUnusableStoreMisses() throws IOException {
+    Files.write(file(), new byte[1000]);
+    try (MappedResultStore store = new MappedResultStore(file(), 10)) {
+      IOException first = null;
+      try {
+        store.get(digest(1), VERSION);
+        fail("not a store");
+      } catch (IOException e) {
+        first = e;
+      }
+      try {
+        store.get(digest(1), VERSION);
+        fail("not a store");
+      } catch (IOException e) {
+        // not opened again
+        assertSame(first, e);
+      }
+    }
+    LoopbackTransport clamd = new LoopbackTransport();
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setResultStore(file()))) {
+      assertSame(ScanResult.CLEAN, cl.scanResult(new byte[1000]));
+      assertSame(ScanResult.CLEAN, cl.scanResult(new byte[1000]));
+    }
+    assertEquals(2, clamd.scanCount());
+  }
+}
@@ -17,4 +17,24 @@ public class PingTest {
     ClamAVClient cl = new ClamAVClient("localhost", 3310);
     assertTrue(cl.ping());
   }
+
+  @Test
+  public void testVersion() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      assertTrue(cl.version().startsWith("ClamAV "));
+    }
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310, new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertTrue(cl.version().startsWith("ClamAV "));
+    }
+  }
+
+  @Test
+  public void testStats() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      ClamdStats stats = ClamdStats.parse(cl.stats());
+      assertTrue(stats.getReply().endsWith("END"));
+      assertTrue(stats.getMaxThreads() > 0);
+      assertTrue(stats.getQueueLength() >= 0);
+    }
+  }
 }
@@ -0,0 +1,85 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * These tests assume clamd is running and responding in the virtual machine.
+ */
+public class PipelineTest {
+
+  private static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes();
+
+  @Test
+  public void testRepliesAreMatchedToScans() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310);
+         ClamdPipeline pipeline = cl.openPipeline(4)) {
+      List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        replies.add(pipeline.submit(i % 3 == 0 ? EICAR : new byte[1000 * i]));
+      }
+      for (int i = 0; i < 20; i++) {
+        assertTrue(i % 3 == 0 ^ ClamAVClient.isCleanReply(replies.get(i).get()));
+      }
+    }
+  }
+
+  @Test
+  public void testSizeLimitFailsPipeline() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310);
+         ClamdPipeline pipeline = cl.openPipeline(4)) {
+      CompletableFuture<byte[]> tooLarge = pipeline.submit(new byte[60000]);
+      try {
+        tooLarge.get();
+        fail("size limit should have been exceeded");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof ClamAVSizeLimitException);
+      }
+      try {
+        pipeline.submit(new byte[10]).get();
+        fail("pipeline should not be usable after an error");
+      } catch (IOException | ExecutionException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testClosedPipeline() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      ClamdPipeline pipeline = cl.openPipeline(1);
+      pipeline.close();
+      pipeline.submit(new byte[10]);
+    }
+  }
+
+  @Test
+  public void testCloseWithoutReadTimeoutIsBounded() throws Exception {
+    // the connection waits in the backlog, clamd never replies
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+         ClamAVClient cl = new ClamAVClient(server.getInetAddress().getHostAddress(), server.getLocalPort(),
+                                            new ClamAVClientConfig().setReadTimeout(0))) {
+      ClamdPipeline pipeline = cl.openPipeline(4);
+      CompletableFuture<byte[]> reply = pipeline.submit(new byte[100]);
+      long start = System.currentTimeMillis();
+      pipeline.close();
+      assertTrue(System.currentTimeMillis() - start < 10000);
+      try {
+        reply.get();
+        fail("scan should fail when the pipeline is closed");
+      } catch (ExecutionException e) {
+        // expected
+      }
+    }
+  }
+}
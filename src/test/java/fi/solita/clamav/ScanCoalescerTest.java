@@ -0,0 +1,130 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanCoalescerTest {
+
+  private final ScanCoalescer coalescer = new ScanCoalescer();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private static byte[] digest(int n) {
+    return new byte[]{(byte) n};
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  @Test
+  public void testConcurrentScansShareOne() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger scans = new AtomicInteger();
+    ScanResultCache.Scan slow = () -> {
+      scans.incrementAndGet();
+      started.countDown();
+      await(release);
+      return ScanResult.CLEAN;
+    };
+    Future<ScanResult> leader = executor.submit(() -> coalescer.scan(digest(1), slow));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    List<Future<ScanResult>> followers = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      followers.add(executor.submit(() -> coalescer.scan(digest(1), slow)));
+    }
+    // other content is not held up
+    assertSame(ScanResult.CLEAN, coalescer.scan(digest(2), () -> {
+      scans.incrementAndGet();
+      return ScanResult.CLEAN;
+    }));
+    Thread.sleep(100);
+    release.countDown();
+    assertSame(ScanResult.CLEAN, leader.get());
+    for (Future<ScanResult> follower : followers) {
+      assertSame(ScanResult.CLEAN, follower.get());
+    }
+    assertEquals(2, scans.get());
+    executor.shutdown();
+  }
+
+  @Test
+  public void testFailureIsShared() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    IOException failure = new IOException("clamd went away");
+    ScanResultCache.Scan failing = () -> {
+      started.countDown();
+      await(release);
+      throw failure;
+    };
+    Future<ScanResult> leader = executor.submit(() -> coalescer.scan(digest(1), failing));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    Future<ScanResult> follower = executor.submit(() -> coalescer.scan(digest(1), failing));
+    Thread.sleep(100);
+    release.countDown();
+    try {
+      leader.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+    try {
+      follower.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertSame(failure, e.getCause().getCause());
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testNothingIsRemembered() throws IOException {
+    AtomicInteger scans = new AtomicInteger();
+    ScanResultCache.Scan scan = () -> {
+      scans.incrementAndGet();
+      return ScanResult.CLEAN;
+    };
+    coalescer.scan(digest(1), scan);
+    coalescer.scan(digest(1), scan);
+    assertEquals(2, scans.get());
+  }
+
+  @Test
+  public void testClientCoalescesIdenticalUploads() throws Exception {
+    LoopbackTransport clamd = new LoopbackTransport();
+    clamd.setScanDelay(300);
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig().setCoalesceScans(true).setReadTimeout(5000))) {
+      List<Future<ScanResult>> uploads = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        uploads.add(executor.submit(() -> cl.scanResult(new byte[10000])));
+      }
+      for (Future<ScanResult> upload : uploads) {
+        assertSame(ScanResult.CLEAN, upload.get());
+      }
+      assertEquals(1, clamd.scanCount());
+    }
+    executor.shutdown();
+  }
+}
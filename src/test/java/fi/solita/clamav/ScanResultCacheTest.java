@@ -0,0 +1,261 @@
+package fi.solita.clamav;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanResultCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final LoopbackTransport clamd = new LoopbackTransport();
+
+  private ClamAVClient client(int cacheSize) {
+    return new ClamAVClient(clamd, new ClamAVClientConfig().setResultCacheSize(cacheSize));
+  }
+
+  @Test
+  public void testRepeatedScanIsCached() throws IOException {
+    try (ClamAVClient cl = client(10)) {
+      for (int i = 0; i < 5; i++) {
+        assertSame(ScanResult.CLEAN, cl.scanResult(new byte[5000]));
+      }
+      assertEquals(1, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testSameContentInAnyForm() throws IOException {
+    byte[] data = "same content".getBytes("US-ASCII");
+    Path file = folder.newFile().toPath();
+    Files.write(file, data);
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+    byte[] padded = new byte[data.length + 2];
+    System.arraycopy(data, 0, padded, 1, data.length);
+
+    try (ClamAVClient cl = client(10)) {
+      cl.scanResult(data);
+      cl.scanResult(direct);
+      cl.scanResult(file);
+      cl.scanResult(padded, 1, data.length);
+      assertEquals(1, clamd.scanCount());
+      assertEquals(0, direct.position());
+    }
+  }
+
+  @Test
+  public void testStreamsAreNotCached() throws IOException {
+    try (ClamAVClient cl = client(10)) {
+      cl.scanResult(new ByteArrayInputStream(new byte[100]));
+      cl.scanResult(new ByteArrayInputStream(new byte[100]));
+      assertEquals(2, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testNewDatabaseVersionInvalidates() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(clamd,
+        new ClamAVClientConfig().setResultCacheSize(10).setVersionCheckInterval(0))) {
+      clamd.setVersion("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026");
+      cl.scanResult(new byte[100]);
+      cl.scanResult(new byte[100]);
+      assertEquals(1, clamd.scanCount());
+
+      // a rebuilt database of the same version is the same signatures
+      clamd.setVersion("ClamAV 0.103.8/26700/Mon Oct 16 09:00:00 2026");
+      cl.scanResult(new byte[100]);
+      assertEquals(1, clamd.scanCount());
+
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      cl.scanResult(new byte[100]);
+      cl.scanResult(new byte[100]);
+      assertEquals(2, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testVersionIsTrustedForCheckInterval() throws IOException {
+    try (ClamAVClient cl = client(10)) {
+      cl.scanResult(new byte[100]);
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      cl.scanResult(new byte[100]);
+      assertEquals(1, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    try (ClamAVClient cl = client(2)) {
+      cl.scanResult(new byte[1]);
+      cl.scanResult(new byte[2]);
+      cl.scanResult(new byte[1]);
+      cl.scanResult(new byte[3]);
+      assertEquals(3, clamd.scanCount());
+      cl.scanResult(new byte[1]);
+      assertEquals(3, clamd.scanCount());
+      cl.scanResult(new byte[2]);
+      assertEquals(4, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testFoundIsCached() throws IOException {
+    LoopbackTransport infected = new LoopbackTransport("stream: Eicar-Test-Signature FOUND", Long.MAX_VALUE);
+    try (ClamAVClient cl = new ClamAVClient(infected, new ClamAVClientConfig().setResultCacheSize(10))) {
+      assertEquals(ScanResult.Status.FOUND, cl.scanResult(new byte[100]).getStatus());
+      assertEquals(ScanResult.Status.FOUND, cl.scanResult(new byte[100]).getStatus());
+      assertEquals(1, infected.scanCount());
+    }
+  }
+
+  @Test
+  public void testErrorsAreNotCached() throws IOException {
+    LoopbackTransport failing = new LoopbackTransport("stream: Can't allocate memory ERROR", Long.MAX_VALUE);
+    try (ClamAVClient cl = new ClamAVClient(failing, new ClamAVClientConfig().setResultCacheSize(10))) {
+      assertEquals(ScanResult.Status.ERROR, cl.scanResult(new byte[100]).getStatus());
+      assertEquals(ScanResult.Status.ERROR, cl.scanResult(new byte[100]).getStatus());
+      assertEquals(2, failing.scanCount());
+    }
+  }
+
+  @Test
+  public void testDisabledByDefault() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig())) {
+      cl.scanResult(new byte[100]);
+      cl.scanResult(new byte[100]);
+      assertEquals(2, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testDatabaseVersion() {
+    assertEquals("ClamAV 0.103.8/26700", ScanResultCache.databaseVersion("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"));
+    assertEquals("ClamAV 0.103.8", ScanResultCache.databaseVersion("ClamAV 0.103.8"));
+    assertEquals("ClamAV 0.103.8/26700", ScanResultCache.databaseVersion("ClamAV 0.103.8/26700"));
+  }
+
+  private ClamAVClient staleClient(long staleness) {
+    clamd.setVersion("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026");
+    return new ClamAVClient(clamd, new ClamAVClientConfig().setResultCacheSize(10).setVersionCheckInterval(0)
+        .setStaleWhileRevalidate(staleness).setMaxRevalidations(1).setReadTimeout(5000));
+  }
+
+  private void awaitScans(int scans) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (clamd.scanCount() < scans && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(scans, clamd.scanCount());
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    Path file = Files.write(folder.newFile().toPath(), new byte[1000]);
+    try (ClamAVClient cl = staleClient(60000)) {
+      cl.scanResult(new byte[100]);
+      cl.scanResult(file);
+      assertEquals(2, clamd.scanCount());
+
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      clamd.setScanDelay(300);
+      long start = System.currentTimeMillis();
+      assertSame(ScanResult.CLEAN, cl.scanResult(new byte[100]));
+      assertTrue(System.currentTimeMillis() - start < 250);
+      awaitScans(3);
+      // the reply to the revalidation takes a while, the only revalidation thread is busy until then
+      Thread.sleep(400);
+      assertSame(ScanResult.CLEAN, cl.scanResult(file));
+      awaitScans(4);
+      Thread.sleep(400);
+
+      // revalidated under the new version
+      cl.scanResult(new byte[100]);
+      cl.scanResult(file);
+      assertEquals(4, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testStaleOnlyWithinBudget() throws Exception {
+    try (ClamAVClient cl = staleClient(50)) {
+      cl.scanResult(new byte[100]);
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      // the new version is seen here
+      cl.scanResult(new byte[1]);
+      Thread.sleep(100);
+      clamd.setScanDelay(300);
+      long start = System.currentTimeMillis();
+      cl.scanResult(new byte[100]);
+      assertTrue(System.currentTimeMillis() - start >= 300);
+      assertEquals(3, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testFoundIsNeverStale() throws Exception {
+    LoopbackTransport infected = new LoopbackTransport("stream: Eicar-Test-Signature FOUND", Long.MAX_VALUE);
+    infected.setVersion("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026");
+    try (ClamAVClient cl = new ClamAVClient(infected, new ClamAVClientConfig().setResultCacheSize(10)
+        .setVersionCheckInterval(0).setStaleWhileRevalidate(60000))) {
+      cl.scanResult(new byte[100]);
+      infected.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      cl.scanResult(new byte[100]);
+      assertEquals(2, infected.scanCount());
+    }
+  }
+
+  @Test
+  public void testRevalidationsAreLimited() throws Exception {
+    try (ClamAVClient cl = staleClient(60000)) {
+      cl.scanResult(new byte[1]);
+      cl.scanResult(new byte[2]);
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      clamd.setScanDelay(300);
+      // the second stale result is returned without a revalidation, as the only revalidation thread is busy
+      assertSame(ScanResult.CLEAN, cl.scanResult(new byte[1]));
+      assertSame(ScanResult.CLEAN, cl.scanResult(new byte[2]));
+      awaitScans(3);
+      Thread.sleep(400);
+      assertEquals(3, clamd.scanCount());
+    }
+  }
+
+  @Test
+  public void testFailedRevalidationCanBeRetried() throws Exception {
+    final String[] version = {"ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026"};
+    ScanResultCache cache = new ScanResultCache(new ClamAVClientConfig().setResultCacheSize(10)
+        .setVersionCheckInterval(0).setStaleWhileRevalidate(60000), null, () -> version[0]);
+    byte[] digest = new byte[32];
+    cache.scan(digest, () -> ScanResult.CLEAN);
+    version[0] = "ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026";
+    try {
+      cache.scan(digest, () -> ScanResult.CLEAN, () -> {
+        throw new IllegalStateException("content is gone");
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    final CountDownLatch revalidated = new CountDownLatch(1);
+    assertSame(ScanResult.CLEAN, cache.scan(digest, () -> ScanResult.CLEAN, () -> () -> {
+      revalidated.countDown();
+      return ScanResult.CLEAN;
+    }));
+    assertTrue(revalidated.await(5, TimeUnit.SECONDS));
+  }
+}
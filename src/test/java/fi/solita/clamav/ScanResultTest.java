@@ -0,0 +1,74 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanResultTest {
+
+  private static ScanResult parse(String reply) {
+    return ScanResult.parse(ClamAVClient.asBytes(reply));
+  }
+
+  @Test
+  public void testCleanIsShared() {
+    assertSame(ScanResult.CLEAN, parse("stream: OK\0"));
+    assertSame(ScanResult.CLEAN, parse("stream: OK"));
+    assertSame(ScanResult.CLEAN, parse("12: stream: OK\0"));
+    assertArrayEquals(ClamAVClient.asBytes("stream: OK\0"), ScanResult.CLEAN.getReply());
+  }
+
+  @Test
+  public void testFound() {
+    ScanResult result = parse("stream: Win.Test.EICAR_HDB-1 FOUND\0");
+    assertEquals(ScanResult.Status.FOUND, result.getStatus());
+    assertFalse(result.isClean());
+    assertEquals(Collections.singletonList("Win.Test.EICAR_HDB-1"), result.getSignatures());
+    assertEquals(0, result.getRequestId());
+    assertEquals("stream: Win.Test.EICAR_HDB-1 FOUND", result.toString());
+  }
+
+  @Test
+  public void testSignatureNamedOk() {
+    ScanResult result = parse("stream: Heuristics.OK FOUND\0");
+    assertEquals(ScanResult.Status.FOUND, result.getStatus());
+    assertEquals(Collections.singletonList("Heuristics.OK"), result.getSignatures());
+    assertFalse(ClamAVClient.isCleanReply(ClamAVClient.asBytes("stream: Heuristics.OK FOUND\0")));
+  }
+
+  @Test
+  public void testAllMatches() {
+    ScanResult result = parse("7: stream: Sig.A FOUND\nstream: Sig.B FOUND\n\0");
+    assertEquals(ScanResult.Status.FOUND, result.getStatus());
+    assertEquals(Arrays.asList("Sig.A", "Sig.B"), result.getSignatures());
+    assertEquals(7, result.getRequestId());
+    assertArrayEquals(ClamAVClient.asBytes("stream: Sig.A FOUND\nstream: Sig.B FOUND\n\0"), result.getReply());
+  }
+
+  @Test
+  public void testErrors() {
+    ScanResult sizeLimit = parse("3: INSTREAM size limit exceeded. ERROR\0");
+    assertEquals(ScanResult.Status.SIZE_LIMIT, sizeLimit.getStatus());
+    assertEquals(3, sizeLimit.getRequestId());
+    assertTrue(sizeLimit.getSignatures().isEmpty());
+
+    assertEquals(ScanResult.Status.ERROR, parse("stream: Can't allocate memory ERROR\0").getStatus());
+    assertEquals(ScanResult.Status.ERROR, parse("UNKNOWN COMMAND\0").getStatus());
+    assertEquals(ScanResult.Status.ERROR, parse("\0").getStatus());
+  }
+
+  @Test
+  public void testPartOfBuffer() {
+    byte[] buffer = ClamAVClient.asBytes("xx2: stream: Eicar FOUND\0yy");
+    ScanResult result = ScanResult.parse(buffer, 2, 23);
+    assertEquals(2, result.getRequestId());
+    assertEquals(Collections.singletonList("Eicar"), result.getSignatures());
+  }
+}
@@ -0,0 +1,145 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * These tests assume clamd is running and responding in the virtual machine.
+ */
+public class SessionPoolTest {
+
+  private static class CountingClient extends ClamAVClient {
+    int socketsOpened;
+
+    CountingClient(ClamAVClientConfig config) {
+      super("localhost", 3310, config);
+    }
+
+    @Override
+    protected Socket openSocket() throws IOException {
+      socketsOpened++;
+      return super.openSocket();
+    }
+  }
+
+  @Test
+  public void testSessionIsReused() throws IOException {
+    try (CountingClient cl = new CountingClient(new ClamAVClientConfig())) {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[50000])));
+        assertTrue(cl.ping());
+      }
+      assertEquals(1, cl.socketsOpened);
+    }
+  }
+
+  @Test
+  public void testPositiveInSession() throws IOException {
+    byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes("ASCII");
+    try (ClamAVClient cl = new ClamAVClient("localhost", 3310)) {
+      assertFalse(ClamAVClient.isCleanReply(cl.scan(EICAR)));
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[100])));
+    }
+  }
+
+  @Test
+  public void testFailedSessionIsDiscarded() throws IOException {
+    try (CountingClient cl = new CountingClient(new ClamAVClientConfig())) {
+      try {
+        cl.scan(new SlowInputStream());
+      } catch (ClamAVSizeLimitException e) {
+        // expected
+      }
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[100])));
+      assertEquals(2, cl.socketsOpened);
+    }
+  }
+
+  @Test
+  public void testExpiredSessionIsReplaced() throws IOException, InterruptedException {
+    try (CountingClient cl = new CountingClient(new ClamAVClientConfig().setSessionMaxLifetime(50))) {
+      assertTrue(cl.ping());
+      Thread.sleep(100);
+      assertTrue(cl.ping());
+      assertEquals(2, cl.socketsOpened);
+    }
+  }
+
+  @Test
+  public void testPoolingDisabled() throws IOException {
+    try (CountingClient cl = new CountingClient(new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[100])));
+      assertTrue(cl.ping());
+      assertEquals(2, cl.socketsOpened);
+    }
+  }
+
+  @Test
+  public void testPipelineUsesOverriddenSocket() throws Exception {
+    try (CountingClient cl = new CountingClient(new ClamAVClientConfig());
+         ClamdPipeline pipeline = cl.openPipeline(4)) {
+      assertTrue(ClamAVClient.isCleanReply(pipeline.submit(new byte[100]).get()));
+      assertEquals(1, cl.socketsOpened);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNoSocketOverOtherTransports() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(new LoopbackTransport(), new ClamAVClientConfig())) {
+      cl.openSocket();
+    }
+  }
+
+  @Test
+  public void testReplyToEarlierCommandIsRejected() throws IOException {
+    byte[] replies = "1: PONG\0001: PONG\0".getBytes(StandardCharsets.US_ASCII);
+    ClamdSession session = ClamdSession.open(new ClamdConnection() {
+      private final InputStream in = new ByteArrayInputStream(replies);
+      private final OutputStream out = new ByteArrayOutputStream();
+
+      @Override
+      public InputStream getInputStream() {
+        return in;
+      }
+
+      @Override
+      public OutputStream getOutputStream() {
+        return out;
+      }
+
+      @Override
+      public GatheringByteChannel getChannel() {
+        return null;
+      }
+
+      @Override
+      public void shutdownOutput() {
+      }
+
+      @Override
+      public void close() {
+      }
+    }, 1024);
+    assertTrue(session.isValid());
+    assertFalse(session.isValid());
+  }
+
+  @Test(expected = IOException.class)
+  public void testClosedClient() throws IOException {
+    ClamAVClient cl = new ClamAVClient("localhost", 3310);
+    cl.close();
+    cl.ping();
+  }
+}
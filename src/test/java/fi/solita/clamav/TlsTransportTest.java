@@ -0,0 +1,140 @@
+package fi.solita.clamav;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.KeyStore;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the client over TLS against a TLS server that hands the decrypted stream to a {@link LoopbackTransport}.
+ * The server certificate is generated with keytool for localhost.
+ */
+public class TlsTransportTest {
+
+  private static final char[] PASSWORD = "changeit".toCharArray();
+  private static File keyStoreFile;
+  private static SSLContext clientContext;
+  private static SSLServerSocket server;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    keyStoreFile = File.createTempFile("clamd", ".p12");
+    keyStoreFile.delete();
+    File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+    Assume.assumeTrue(keytool.exists());
+    Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "clamd", "-keyalg", "RSA",
+        "-keysize", "2048", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+        "-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+        "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD)).inheritIO().start();
+    Assume.assumeTrue(process.waitFor() == 0);
+
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = Files.newInputStream(keyStoreFile.toPath())) {
+      keyStore.load(in, PASSWORD);
+    }
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(keyStore, PASSWORD);
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keys.getKeyManagers(), null, null);
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore);
+    clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, trust.getTrustManagers(), null);
+
+    server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+    Thread acceptor = new Thread(TlsTransportTest::accept, "tls-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @AfterClass
+  public static void stopServer() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+    keyStoreFile.delete();
+  }
+
+  private static void accept() {
+    LoopbackTransport clamd = new LoopbackTransport();
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        ClamdConnection connection = clamd.connect(0, 0);
+        pump(socket.getInputStream(), connection.getOutputStream(), socket, connection);
+        pump(connection.getInputStream(), socket.getOutputStream(), socket, connection);
+      } catch (IOException e) {
+        // server closed
+      }
+    }
+  }
+
+  private static void pump(InputStream in, OutputStream out, Closeable... both) {
+    Thread pump = new Thread(() -> {
+      byte[] buffer = new byte[8192];
+      try {
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+          out.flush();
+        }
+      } catch (IOException e) {
+        // one side closed
+      }
+      for (Closeable closeable : both) {
+        try {
+          closeable.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    });
+    pump.setDaemon(true);
+    pump.start();
+  }
+
+  private static ClamAVClient client(String host, ClamAVClientConfig config) {
+    return new ClamAVClient(new TlsTransport(host, server.getLocalPort(), clientContext.getSocketFactory()),
+        config.setReadTimeout(5000).setConnectTimeout(5000));
+  }
+
+  @Test
+  public void testScans() throws IOException {
+    try (ClamAVClient cl = client("localhost", new ClamAVClientConfig())) {
+      assertTrue(cl.ping());
+      assertTrue(cl.scanResult(new byte[100000]).isClean());
+      assertTrue(cl.scanResult(new byte[100]).isClean());
+    }
+  }
+
+  @Test
+  public void testConnectionPerCommand() throws IOException {
+    try (ClamAVClient cl = client("localhost", new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertTrue(cl.ping());
+      assertTrue(cl.scanResult(new byte[100000]).isClean());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testHostNameIsVerified() throws IOException {
+    // the certificate is for localhost only
+    try (ClamAVClient cl = client("127.0.0.1", new ClamAVClientConfig())) {
+      cl.ping();
+    }
+  }
+}
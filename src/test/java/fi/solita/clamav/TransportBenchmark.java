@@ -0,0 +1,65 @@
+package fi.solita.clamav;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan throughput over TCP loopback and over a Unix domain socket, with pooled sessions and with a connection per scan.
+ * The in-memory loopback transport shows the cost of the client alone, without any socket or scanning.
+ * <p>
+ * Runs against clamd at clamd.host:clamd.port (localhost:3310 by default) and at the clamd.socket local socket
+ * (/var/run/clamav/clamd.ctl by default), which must be the same clamd for the comparison to mean anything. The large
+ * payload fits the test image's StreamMaxLength, pass for instance {@code -p payloadSize=1024,10485760} to benchmark
+ * against a production configuration. Add {@code -t 8} to see how the transports behave under concurrent load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+  @Param({"tcp", "unix", "loopback"})
+  public String transport;
+
+  @Param({"8", "0"})
+  public int maxIdleSessions;
+
+  @Param({"1024", "49152"})
+  public int payloadSize;
+
+  private ClamAVClient client;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    ClamAVClientConfig config = new ClamAVClientConfig().setMaxIdleSessions(maxIdleSessions).setReadTimeout(0);
+    switch (transport) {
+      case "unix":
+        client = new ClamAVClient(Paths.get(System.getProperty("clamd.socket", "/var/run/clamav/clamd.ctl")), config);
+        break;
+      case "loopback":
+        client = new ClamAVClient(new LoopbackTransport(), config);
+        break;
+      default:
+        client = new ClamAVClient(System.getProperty("clamd.host", "localhost"), Integer.getInteger("clamd.port", 3310), config);
+    }
+    payload = new byte[payloadSize];
+    new Random(1).nextBytes(payload);
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.close();
+  }
+
+  @Benchmark
+  public byte[] scan() throws IOException {
+    return client.scan(payload);
+  }
+}
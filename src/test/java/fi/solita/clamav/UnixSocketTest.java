@@ -0,0 +1,100 @@
+package fi.solita.clamav;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * These tests assume clamd is running and listening to a local socket, /var/run/clamav/clamd.ctl unless the
+ * clamd.socket system property says otherwise.
+ */
+public class UnixSocketTest {
+
+  private static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes();
+  private static final Path SOCKET = Paths.get(System.getProperty("clamd.socket", "/var/run/clamav/clamd.ctl"));
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void assumeSocket() throws IOException {
+    Assume.assumeTrue(Files.exists(SOCKET));
+    try {
+      UnixSocketConnection.openChannel().close();
+    } catch (IOException e) {
+      Assume.assumeNoException("Java 16 or later is needed", e);
+    }
+  }
+
+  private static void assertScans(ClamAVClient cl) throws IOException {
+    assertTrue(cl.ping());
+    assertTrue(ClamAVClient.isCleanReply(cl.scan(new byte[50000])));
+    assertFalse(ClamAVClient.isCleanReply(cl.scan(EICAR)));
+    assertTrue(ClamAVClient.isCleanReply(cl.scan(new ByteArrayInputStream(new byte[10000]))));
+    assertFalse(ClamAVClient.isCleanReply(cl.scan(ByteBuffer.wrap(EICAR))));
+  }
+
+  @Test
+  public void testPooledSessions() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig())) {
+      assertScans(cl);
+    }
+  }
+
+  @Test
+  public void testConnectionPerCommand() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      assertScans(cl);
+    }
+  }
+
+  @Test
+  public void testFile() throws IOException {
+    Path file = Files.write(folder.newFile().toPath(), EICAR);
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig())) {
+      assertEquals(ScanResult.Status.FOUND, cl.scanResult(file).getStatus());
+    }
+  }
+
+  @Test(expected = ClamAVSizeLimitException.class)
+  public void testSizeLimit() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig())) {
+      cl.scan(new SlowInputStream());
+    }
+  }
+
+  @Test
+  public void testPipeline() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig());
+         ClamdPipeline pipeline = cl.openPipeline(4)) {
+      CompletableFuture<byte[]> found = pipeline.submit(EICAR);
+      CompletableFuture<byte[]> clean = pipeline.submit(new byte[1000]);
+      assertFalse(ClamAVClient.isCleanReply(found.get()));
+      assertTrue(ClamAVClient.isCleanReply(clean.get()));
+    }
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    try (ClamAVClient cl = new ClamAVClient(SOCKET, new ClamAVClientConfig())) {
+      CompletableFuture<ScanResult> found = cl.scanAsync(EICAR);
+      CompletableFuture<ScanResult> clean = cl.scanAsync(ByteBuffer.allocateDirect(40000));
+      assertFalse(found.get().isClean());
+      assertTrue(clean.get().isClean());
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package fi.solita.clamav;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VersionWatcherTest {
+
+  private final LoopbackTransport clamd = new LoopbackTransport();
+
+  private ClamAVClient client(ClamAVClientConfig config) {
+    clamd.setVersion("ClamAV 0.103.8/26700/Mon Oct 16 07:52:51 2026");
+    return new ClamAVClient(clamd, config.setVersionWatchInterval(20));
+  }
+
+  private void awaitVersion(ClamAVClient cl, long databaseVersion) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < deadline) {
+      ClamdVersion version = cl.getWatchedVersion();
+      if (version != null && version.getDatabaseVersion() == databaseVersion) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("version " + databaseVersion + " not seen");
+  }
+
+  @Test
+  public void testListenersAreTold() throws Exception {
+    BlockingQueue<ClamdVersion[]> changes = new ArrayBlockingQueue<>(10);
+    try (ClamAVClient cl = client(new ClamAVClientConfig())) {
+      cl.addVersionListener((previous, current) -> changes.add(new ClamdVersion[]{previous, current}));
+      awaitVersion(cl, 26700);
+      Thread.sleep(100);
+      assertNull("no change yet", changes.poll());
+
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      ClamdVersion[] change = changes.poll(5, TimeUnit.SECONDS);
+      assertEquals(26700, change[0].getDatabaseVersion());
+      assertEquals(26701, change[1].getDatabaseVersion());
+      Thread.sleep(100);
+      assertNull("told once", changes.poll());
+    }
+  }
+
+  @Test
+  public void testFailingListenerDoesNotStopWatching() throws Exception {
+    BlockingQueue<ClamdVersion> changes = new ArrayBlockingQueue<>(10);
+    try (ClamAVClient cl = client(new ClamAVClientConfig().setMaxIdleSessions(0))) {
+      cl.addVersionListener((previous, current) -> {
+        throw new IllegalStateException("listener bug");
+      });
+      cl.addVersionListener((previous, current) -> changes.add(current));
+      awaitVersion(cl, 26700);
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      assertEquals(26701, changes.poll(5, TimeUnit.SECONDS).getDatabaseVersion());
+      clamd.setVersion("ClamAV 0.103.8/26702/Wed Oct 18 07:52:51 2026");
+      assertEquals(26702, changes.poll(5, TimeUnit.SECONDS).getDatabaseVersion());
+    }
+  }
+
+  @Test
+  public void testCacheFollowsWatcher() throws Exception {
+    // the cache would trust the version for a minute without the watcher
+    try (ClamAVClient cl = client(new ClamAVClientConfig().setResultCacheSize(10).setVersionCheckInterval(60000))) {
+      awaitVersion(cl, 26700);
+      cl.scanResult(new byte[100]);
+      cl.scanResult(new byte[100]);
+      assertEquals(1, clamd.scanCount());
+      clamd.setVersion("ClamAV 0.103.8/26701/Tue Oct 17 07:52:51 2026");
+      awaitVersion(cl, 26701);
+      cl.scanResult(new byte[100]);
+      assertEquals(2, clamd.scanCount());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNotWatching() throws IOException {
+    try (ClamAVClient cl = new ClamAVClient(clamd, new ClamAVClientConfig())) {
+      assertNull(cl.getWatchedVersion());
+      cl.addVersionListener((previous, current) -> { });
+    }
+  }
+}
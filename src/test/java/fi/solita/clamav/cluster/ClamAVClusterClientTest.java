@@ -0,0 +1,132 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.LoopbackTransport;
+import fi.solita.clamav.ScanResult;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClamAVClusterClientTest {
+
+  private static final byte[] DATA = "some data".getBytes();
+
+  private static ClamdNode node(String name, LoopbackTransport clamd, int weight) {
+    return new ClamdNode(name, clamd, new ClamAVClientConfig(), weight);
+  }
+
+  private static ClamdNode node(String name, LoopbackTransport clamd) {
+    return node(name, clamd, 1);
+  }
+
+  private static ClamAVClusterClient cluster(LoadBalancer balancer, ClamdNode... nodes) {
+    return new ClamAVClusterClient(Arrays.asList(nodes), new ClamAVClusterConfig().setLoadBalancer(balancer));
+  }
+
+  @Test
+  public void testRoundRobinTakesTurns() throws IOException {
+    try (ClamAVClusterClient cluster = cluster(new RoundRobinBalancer(), node("a", new LoopbackTransport()),
+        node("b", new LoopbackTransport()), node("c", new LoopbackTransport()))) {
+      for (int i = 0; i < 30; i++) {
+        assertSame(ScanResult.CLEAN, cluster.scanResult(DATA));
+      }
+      for (ClamdNode node : cluster.getNodes()) {
+        assertEquals(10, node.getScanCount());
+        assertEquals(0, node.getOutstanding());
+        assertTrue(node.getLatencyEwma() > 0);
+      }
+    }
+  }
+
+  @Test
+  public void testLeastOutstandingAvoidsBusyNode() throws Exception {
+    LoopbackTransport busy = new LoopbackTransport();
+    busy.setScanDelay(300);
+    ClamdNode a = new ClamdNode("a", busy, new ClamAVClientConfig().setReadTimeout(2000), 1);
+    ClamdNode b = node("b", new LoopbackTransport());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ClamAVClusterClient cluster = cluster(new LeastOutstandingBalancer(), a, b)) {
+      // ties go round-robin from the first node
+      Future<ScanResult> slow = executor.submit(() -> cluster.scanResult(DATA));
+      while (a.getOutstanding() == 0) {
+        Thread.sleep(1);
+      }
+      long before = b.getScanCount();
+      for (int i = 0; i < 5; i++) {
+        cluster.scanResult(DATA);
+      }
+      assertEquals(before + 5, b.getScanCount());
+      assertSame(ScanResult.CLEAN, slow.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testPowerOfTwoChoicesPrefersFastNode() throws IOException {
+    LoopbackTransport slowClamd = new LoopbackTransport();
+    slowClamd.setScanDelay(50);
+    ClamdNode slow = node("slow", slowClamd);
+    ClamdNode fast = node("fast", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = cluster(new PowerOfTwoChoicesBalancer(), slow, fast)) {
+      for (int i = 0; i < 40; i++) {
+        cluster.scanResult(DATA);
+      }
+      // the slow node is only tried while it has no latency average yet
+      assertTrue(slow.getScanCount() <= 1);
+      assertEquals(40, slow.getScanCount() + fast.getScanCount());
+    }
+  }
+
+  @Test
+  public void testWeightedIsSmooth() {
+    ClamdNode a = node("a", new LoopbackTransport(), 5);
+    ClamdNode b = node("b", new LoopbackTransport(), 1);
+    ClamdNode c = node("c", new LoopbackTransport(), 1);
+    List<ClamdNode> nodes = Arrays.asList(a, b, c);
+    WeightedBalancer balancer = new WeightedBalancer();
+    List<ClamdNode> picked = new ArrayList<>();
+    for (int i = 0; i < 14; i++) {
+      picked.add(balancer.select(nodes, null));
+    }
+    assertEquals(Arrays.asList(a, a, b, a, c, a, a, a, a, b, a, c, a, a), picked);
+    for (ClamdNode node : nodes) {
+      node.close();
+    }
+  }
+
+  @Test
+  public void testFailuresAreCounted() {
+    ClamdNode down = new ClamdNode("down", (connectTimeout, readTimeout) -> {
+      throw new ConnectException("Connection refused");
+    }, new ClamAVClientConfig(), 1);
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Collections.singletonList(down),
+        new ClamAVClusterConfig())) {
+      cluster.scanResult(DATA);
+      fail("scan should have failed");
+    } catch (IOException e) {
+      assertEquals(1, down.getFailureCount());
+      assertEquals(1, down.getScanCount());
+      assertEquals(0, down.getOutstanding());
+      assertEquals(0, down.getLatencyEwma(), 0);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testClusterNeedsNodes() {
+    new ClamAVClusterClient(Collections.<ClamdNode>emptyList(), new ClamAVClusterConfig());
+  }
+}
@@ -0,0 +1,140 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.ClamAVSizeLimitException;
+import fi.solita.clamav.LoopbackTransport;
+import fi.solita.clamav.ScanResult;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClamAVRoutingClientTest {
+
+  private static final byte[] TEXT = "just some text".getBytes(StandardCharsets.US_ASCII);
+
+  private static byte[] zip(int length) {
+    byte[] zip = new byte[length];
+    zip[0] = 'P';
+    zip[1] = 'K';
+    zip[2] = 3;
+    zip[3] = 4;
+    return zip;
+  }
+
+  private static byte[] tar(int length) {
+    byte[] tar = new byte[length];
+    System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, tar, 257, 5);
+    return tar;
+  }
+
+  private static ClamAVClusterClient cluster(LoopbackTransport clamd) {
+    return new ClamAVClusterClient(Collections.singletonList(new ClamdNode("node", clamd, new ClamAVClientConfig(), 1)),
+                                   new ClamAVClusterConfig());
+  }
+
+  private static ClamAVRoutingClient router(ClamAVRoutingConfig config) {
+    return router(new LoopbackTransport(), config);
+  }
+
+  private static ClamAVRoutingClient router(LoopbackTransport bulk, ClamAVRoutingConfig config) {
+    return new ClamAVRoutingClient(cluster(new LoopbackTransport()), cluster(bulk), config);
+  }
+
+  private static long bulkScans(ClamAVRoutingClient router) {
+    return router.getBulkCluster().getNodes().get(0).getScanCount();
+  }
+
+  @Test
+  public void testLargeInputsGoToBulk() throws IOException {
+    try (ClamAVRoutingClient router = router(new ClamAVRoutingConfig().setLargeInputThreshold(1000))) {
+      assertTrue(router.scanResult(TEXT).isClean());
+      assertTrue(router.scanResult(ByteBuffer.wrap(new byte[999])).isClean());
+      assertEquals(0, bulkScans(router));
+      assertTrue(router.scanResult(new byte[1000]).isClean());
+      assertTrue(router.scanResult(new ByteArrayInputStream(new byte[5000]), 5000).isClean());
+      assertEquals(2, bulkScans(router));
+      assertEquals(2, router.getBulkScanCount());
+      assertEquals(2, router.getStandardCluster().getNodes().get(0).getScanCount());
+    }
+  }
+
+  @Test
+  public void testArchivesGoToBulk() throws IOException {
+    try (ClamAVRoutingClient router = router(new ClamAVRoutingConfig())) {
+      router.scanResult(zip(100));
+      router.scanResult(ByteBuffer.wrap(tar(300)));
+      router.scanResult(new ByteArrayInputStream(zip(10000)));
+      assertEquals(3, bulkScans(router));
+      // too short to tell
+      router.scanResult(new byte[]{'P', 'K'});
+      router.scanResult(new ByteArrayInputStream(TEXT));
+      assertEquals(3, bulkScans(router));
+    }
+    try (ClamAVRoutingClient router = router(new ClamAVRoutingConfig().setRouteArchives(false))) {
+      router.scanResult(zip(100));
+      router.scanResult(new ByteArrayInputStream(zip(100)));
+      assertEquals(0, bulkScans(router));
+    }
+  }
+
+  @Test
+  public void testSniffedStreamIsSentWhole() throws IOException {
+    LoopbackTransport bulk = new LoopbackTransport("stream: OK", 999);
+    try (ClamAVRoutingClient router = router(bulk, new ClamAVRoutingConfig())) {
+      assertTrue(router.scanResult(new ByteArrayInputStream(zip(999))).isClean());
+      try {
+        router.scanResult(new ByteArrayInputStream(zip(1000)));
+        fail("the bytes read ahead were not sent");
+      } catch (ClamAVSizeLimitException e) {
+        // all 1000 bytes reached clamd
+      }
+    }
+  }
+
+  @Test
+  public void testFiles() throws IOException {
+    Path tar = Files.createTempFile("routing", ".tar");
+    Path text = Files.createTempFile("routing", ".txt");
+    try (ClamAVRoutingClient router = router(new ClamAVRoutingConfig().setLargeInputThreshold(1000))) {
+      Files.write(tar, tar(512));
+      Files.write(text, TEXT);
+      ScanResult result = router.scanResult(tar);
+      assertTrue(result.isClean());
+      assertEquals(1, bulkScans(router));
+      router.scanResult(text);
+      assertEquals(1, bulkScans(router));
+      Files.write(text, new byte[1000]);
+      router.scanResult(text);
+      assertEquals(2, bulkScans(router));
+    } finally {
+      Files.delete(tar);
+      Files.delete(text);
+    }
+  }
+
+  @Test
+  public void testSniffer() {
+    assertTrue(ArchiveSniffer.isArchive(ByteBuffer.wrap(new byte[]{0x1f, (byte) 0x8b, 8, 0})));
+    assertTrue(ArchiveSniffer.isArchive(ByteBuffer.wrap("Rar!\u001a\u0007\u0001\u0000".getBytes(StandardCharsets.ISO_8859_1))));
+    assertTrue(ArchiveSniffer.isArchive(ByteBuffer.wrap(tar(ArchiveSniffer.SNIFF_LENGTH))));
+    assertFalse(ArchiveSniffer.isArchive(ByteBuffer.wrap(Arrays.copyOf(tar(512), ArchiveSniffer.SNIFF_LENGTH - 1))));
+    assertFalse(ArchiveSniffer.isArchive(ByteBuffer.wrap(TEXT)));
+    assertFalse(ArchiveSniffer.isArchive(ByteBuffer.wrap(new byte[0])));
+    // from the position on
+    ByteBuffer buffer = ByteBuffer.wrap(zip(8));
+    buffer.position(1);
+    assertFalse(ArchiveSniffer.isArchive(buffer));
+  }
+}
@@ -0,0 +1,164 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.LoopbackTransport;
+import fi.solita.clamav.ScanResult;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+  private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // fills the limit and completes every scan with the given latency
+  private static void run(ConcurrencyLimiter limiter, long latency, int rounds) {
+    for (int round = 0; round < rounds; round++) {
+      int permits = 0;
+      while (limiter.tryAcquire()) {
+        permits++;
+      }
+      for (int i = 0; i < permits; i++) {
+        limiter.release(latency, false);
+      }
+    }
+  }
+
+  @Test
+  public void testGrowsWhileLatencyIsLevel() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(64);
+    assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.limit());
+    run(limiter, 10 * MILLISECOND, 20);
+    assertEquals(64, limiter.limit());
+  }
+
+  @Test
+  public void testShrinksWhenLatencyRises() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(64);
+    run(limiter, 10 * MILLISECOND, 20);
+    run(limiter, 50 * MILLISECOND, 3);
+    assertTrue("limit " + limiter.limit(), limiter.limit() < 32);
+  }
+
+  @Test
+  public void testShrinksOnFailure() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(64);
+    run(limiter, 10 * MILLISECOND, 20);
+    assertTrue(limiter.tryAcquire());
+    limiter.release(-1, true);
+    assertEquals(57, limiter.limit());
+  }
+
+  @Test
+  public void testFewScansLeaveLimitAlone() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(64);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limiter.tryAcquire());
+      limiter.release(10 * MILLISECOND, false);
+    }
+    assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.limit());
+  }
+
+  @Test
+  public void testWaitsForPermit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    long start = System.currentTimeMillis();
+    assertFalse(limiter.acquire(50));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+    new Thread(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        // released anyway
+      }
+      limiter.release(MILLISECOND, false);
+    }).start();
+    assertTrue(limiter.acquire(5000));
+  }
+
+  @Test
+  public void testClusterRejectsOverLimit() throws Exception {
+    LoopbackTransport clamd = new LoopbackTransport();
+    clamd.setScanDelay(200);
+    ClamdNode node = new ClamdNode("only", clamd, new ClamAVClientConfig().setReadTimeout(5000), 1);
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Collections.singletonList(node),
+        new ClamAVClusterConfig().setAdaptiveConcurrency(true).setConcurrencyQueueTimeout(0))) {
+      assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, node.getConcurrencyLimit());
+      List<Future<ScanResult>> scans = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        scans.add(executor.submit(() -> cluster.scanResult("data".getBytes())));
+      }
+      int rejected = 0;
+      for (Future<ScanResult> scan : scans) {
+        try {
+          assertSame(ScanResult.CLEAN, scan.get());
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+          rejected++;
+        }
+      }
+      assertTrue(rejected >= 6);
+      assertEquals(rejected, node.getRejectedCount());
+      assertEquals(0, node.getFailureCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailingInputLeavesLimitAlone() throws Exception {
+    ClamdNode node = new ClamdNode("only", new LoopbackTransport(), new ClamAVClientConfig(), 1);
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Collections.singletonList(node),
+        new ClamAVClusterConfig().setAdaptiveConcurrency(true))) {
+      for (int i = 0; i < 5; i++) {
+        try {
+          cluster.scanResult(HealthCheckerTest.abortedUpload());
+          fail("input did not fail");
+        } catch (IOException e) {
+          // the caller's own failure
+        }
+      }
+      assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, node.getConcurrencyLimit());
+      assertTrue(cluster.scanResult("data".getBytes()).isClean());
+    }
+  }
+
+  @Test
+  public void testMissingFileLeavesLimitAlone() throws Exception {
+    ClamdNode node = new ClamdNode("only", new LoopbackTransport(), new ClamAVClientConfig(), 1);
+    Path missing = Paths.get("does-not-exist-" + System.nanoTime());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Collections.singletonList(node),
+        new ClamAVClusterConfig().setAdaptiveConcurrency(true))) {
+      for (int i = 0; i < 5; i++) {
+        try {
+          cluster.scanResult(missing);
+          fail("missing file was scanned");
+        } catch (NoSuchFileException e) {
+          // the caller's own failure
+        }
+      }
+      assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, node.getConcurrencyLimit());
+      assertEquals(0, node.getFailureCount());
+    }
+  }
+}
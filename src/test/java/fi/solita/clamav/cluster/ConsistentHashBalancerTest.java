@@ -0,0 +1,158 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.LoopbackTransport;
+import fi.solita.clamav.ScanResult;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashBalancerTest {
+
+  private final List<ClamdNode> nodes = new ArrayList<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private ClamdNode node(String name) {
+    ClamdNode node = new ClamdNode(name, new LoopbackTransport(), new ClamAVClientConfig(), 1);
+    nodes.add(node);
+    return node;
+  }
+
+  private static byte[] key(int n) {
+    return ("content " + n).getBytes();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    for (ClamdNode node : nodes) {
+      node.close();
+    }
+  }
+
+  @Test
+  public void testSameKeySameNode() {
+    List<ClamdNode> cluster = Arrays.asList(node("a"), node("b"), node("c"));
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer();
+    for (int i = 0; i < 100; i++) {
+      assertSame(balancer.select(cluster, key(i)), balancer.select(cluster, key(i)));
+    }
+  }
+
+  @Test
+  public void testKeysAreSpread() {
+    List<ClamdNode> cluster = Arrays.asList(node("a"), node("b"), node("c"), node("d"));
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer();
+    Map<ClamdNode, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 10000; i++) {
+      counts.merge(balancer.select(cluster, key(i)), 1, Integer::sum);
+    }
+    for (ClamdNode node : cluster) {
+      int count = counts.get(node);
+      assertTrue(node + " got " + count, count > 1500 && count < 3500);
+    }
+  }
+
+  @Test
+  public void testOnlyKeysOfRemovedNodeMove() {
+    ClamdNode a = node("a");
+    ClamdNode b = node("b");
+    ClamdNode c = node("c");
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer();
+    List<ClamdNode> before = Arrays.asList(a, b, c);
+    List<ClamdNode> after = Arrays.asList(a, c);
+    for (int i = 0; i < 1000; i++) {
+      ClamdNode owner = balancer.select(before, key(i));
+      if (owner != b) {
+        assertSame(owner, balancer.select(after, key(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testKeysMoveOnlyToNewNode() {
+    ClamdNode a = node("a");
+    ClamdNode b = node("b");
+    ClamdNode c = node("c");
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer();
+    List<ClamdNode> before = Arrays.asList(a, b);
+    List<ClamdNode> after = Arrays.asList(a, b, c);
+    int moved = 0;
+    for (int i = 0; i < 1000; i++) {
+      ClamdNode owner = balancer.select(before, key(i));
+      ClamdNode newOwner = balancer.select(after, key(i));
+      if (newOwner != owner) {
+        assertSame(c, newOwner);
+        moved++;
+      }
+    }
+    // about a third
+    assertTrue("moved " + moved, moved > 200 && moved < 470);
+  }
+
+  @Test
+  public void testBusyNodeIsSkipped() throws Exception {
+    List<ClamdNode> cluster = Arrays.asList(node("a"), node("b"), node("c"));
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer();
+    ClamdNode owner = balancer.select(cluster, key(1));
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      executor.submit(() -> owner.scan(client -> {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return ScanResult.CLEAN;
+      }));
+    }
+    started.await();
+    // two scans in flight are more than 1.25 times the average of one per node
+    assertNotSame(owner, balancer.select(cluster, key(1)));
+    release.countDown();
+    while (owner.getOutstanding() > 0) {
+      Thread.sleep(1);
+    }
+    assertSame(owner, balancer.select(cluster, key(1)));
+  }
+
+  @Test
+  public void testScansWithoutKeyUseFallback() {
+    List<ClamdNode> cluster = Arrays.asList(node("a"), node("b"));
+    ConsistentHashBalancer balancer = new ConsistentHashBalancer(10, 1.25, new RoundRobinBalancer());
+    assertSame(cluster.get(0), balancer.select(cluster, null));
+    assertSame(cluster.get(1), balancer.select(cluster, null));
+  }
+
+  @Test
+  public void testRepeatedScansLandOnOneNode() throws IOException {
+    ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(node("a"), node("b"), node("c")),
+        new ClamAVClusterConfig().setLoadBalancer(new ConsistentHashBalancer()));
+    byte[] upload = "the same upload".getBytes();
+    for (int i = 0; i < 10; i++) {
+      cluster.scanResult(upload);
+    }
+    long busiest = 0;
+    for (ClamdNode node : cluster.getNodes()) {
+      busiest = Math.max(busiest, node.getScanCount());
+    }
+    assertEquals(10, busiest);
+  }
+}
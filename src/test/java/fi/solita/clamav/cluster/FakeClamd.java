@@ -0,0 +1,126 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.TcpTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A clamd on a local TCP port that answers PING and INSTREAM, one command per connection, for tests that need real
+ * sockets, such as asynchronous scans. Every stream is clean. Replies can be delayed, like from a stalled clamd.
+ */
+final class FakeClamd implements Closeable {
+
+  private final ServerSocket server;
+  private volatile long scanDelay;
+  private final AtomicInteger scans = new AtomicInteger();
+  private final AtomicInteger abandoned = new AtomicInteger();
+
+  FakeClamd() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "fake-clamd-" + server.getLocalPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int port() {
+    return server.getLocalPort();
+  }
+
+  ClamdNode node(String name) {
+    return new ClamdNode(name, new TcpTransport("localhost", port()), new ClamAVClientConfig().setReadTimeout(5000), 1);
+  }
+
+  /**
+   * @param scanDelay milliseconds before a stream is replied to
+   */
+  void setScanDelay(long scanDelay) {
+    this.scanDelay = scanDelay;
+  }
+
+  /**
+   * @return streams received completely
+   */
+  int scans() {
+    return scans.get();
+  }
+
+  /**
+   * @return connections the client closed while waiting for the reply to a stream
+   */
+  int abandoned() {
+    return abandoned.get();
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        final Socket socket = server.accept();
+        Thread handler = new Thread(() -> handle(socket), "fake-clamd-connection");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      String command = readCommand(in);
+      if (command.equals("zPING")) {
+        out.write("PONG\0".getBytes(StandardCharsets.US_ASCII));
+      } else if (command.equals("zINSTREAM")) {
+        int length;
+        while ((length = in.readInt()) > 0) {
+          in.readFully(new byte[length]);
+        }
+        scans.incrementAndGet();
+        long delay = scanDelay;
+        if (delay > 0) {
+          s.setSoTimeout((int) delay);
+          try {
+            if (in.read() < 0) {
+              abandoned.incrementAndGet();
+              return;
+            }
+          } catch (SocketTimeoutException e) {
+            // delay over
+          }
+        }
+        out.write("stream: OK\0".getBytes(StandardCharsets.US_ASCII));
+      } else {
+        out.write("UNKNOWN COMMAND\0".getBytes(StandardCharsets.US_ASCII));
+      }
+      out.flush();
+    } catch (IOException e) {
+      // client went away
+    }
+  }
+
+  private static String readCommand(DataInputStream in) throws IOException {
+    ByteArrayOutputStream command = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) > 0) {
+      command.write(b);
+    }
+    return new String(command.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+}
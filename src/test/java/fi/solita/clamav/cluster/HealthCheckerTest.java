@@ -0,0 +1,211 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.ClamdConnection;
+import fi.solita.clamav.ClamdTransport;
+import fi.solita.clamav.LoopbackTransport;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HealthCheckerTest {
+
+  private static final byte[] DATA = "some data".getBytes();
+
+  // a clamd that can be taken down, every command opens a connection of its own so that the change shows at once
+  private static final class SwitchableClamd implements ClamdTransport {
+    private final LoopbackTransport clamd = new LoopbackTransport();
+    volatile boolean down;
+
+    @Override
+    public ClamdConnection connect(int connectTimeout, int readTimeout) throws IOException {
+      if (down) {
+        throw new ConnectException("Connection refused");
+      }
+      return clamd.connect(connectTimeout, readTimeout);
+    }
+  }
+
+  // sends some bytes, then fails like an upload the client aborted
+  static InputStream abortedUpload() {
+    return new InputStream() {
+      private int sent;
+
+      @Override
+      public int read() throws IOException {
+        if (sent++ >= 100) {
+          throw new IOException("Connection reset by client");
+        }
+        return 'x';
+      }
+    };
+  }
+
+  private static ClamdNode node(String name, ClamdTransport transport) {
+    return new ClamdNode(name, transport, new ClamAVClientConfig().setMaxIdleSessions(0), 1);
+  }
+
+  private static void scan(ClamAVClusterClient cluster, int times) {
+    for (int i = 0; i < times; i++) {
+      try {
+        cluster.scanResult(DATA);
+      } catch (IOException e) {
+        // counted by the cluster
+      }
+    }
+  }
+
+  private static void awaitEjected(ClamAVClusterClient cluster, ClamdNode node, boolean ejected)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cluster.getAvailableNodes().contains(node) == ejected) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError(node + (ejected ? " not ejected" : " not back"));
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testFailingNodeIsEjected() throws Exception {
+    SwitchableClamd failing = new SwitchableClamd();
+    failing.down = true;
+    ClamdNode down = node("down", failing);
+    ClamdNode up = node("up", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(down, up), new ClamAVClusterConfig()
+        .setMaxConsecutiveFailures(3).setBaseEjectionTime(300).setWarmUpTime(0))) {
+      // round-robin, every other scan fails
+      scan(cluster, 6);
+      assertEquals(3, down.getFailureCount());
+      assertEquals(Collections.singletonList(up), cluster.getAvailableNodes());
+      scan(cluster, 10);
+      assertEquals(13, up.getScanCount());
+      assertEquals(3, down.getScanCount());
+      awaitEjected(cluster, down, false);
+    }
+  }
+
+  @Test
+  public void testEjectionsGetLonger() throws Exception {
+    SwitchableClamd failing = new SwitchableClamd();
+    failing.down = true;
+    ClamdNode down = node("down", failing);
+    ClamdNode up = node("up", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(down, up), new ClamAVClusterConfig()
+        .setMaxConsecutiveFailures(1).setBaseEjectionTime(200).setWarmUpTime(0))) {
+      scan(cluster, 1);
+      long ejected = System.currentTimeMillis();
+      awaitEjected(cluster, down, false);
+      long first = System.currentTimeMillis() - ejected;
+      // the next scans reach the node again, and the first fails
+      while (down.getFailureCount() < 2) {
+        scan(cluster, 1);
+      }
+      ejected = System.currentTimeMillis();
+      awaitEjected(cluster, down, false);
+      long second = System.currentTimeMillis() - ejected;
+      assertTrue(first + " then " + second, first >= 190 && second >= 390);
+    }
+  }
+
+  @Test
+  public void testPingsFindDownNode() throws Exception {
+    SwitchableClamd failing = new SwitchableClamd();
+    ClamdNode node = node("switchable", failing);
+    ClamdNode other = node("other", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(node, other), new ClamAVClusterConfig()
+        .setHealthCheckInterval(10).setMaxConsecutiveFailures(2).setBaseEjectionTime(100).setWarmUpTime(0))) {
+      Thread.sleep(50);
+      assertEquals(2, cluster.getAvailableNodes().size());
+      failing.down = true;
+      awaitEjected(cluster, node, true);
+      assertEquals(0, node.getScanCount());
+      failing.down = false;
+      awaitEjected(cluster, node, false);
+    }
+  }
+
+  @Test
+  public void testReturningNodeWarmsUp() throws Exception {
+    SwitchableClamd failing = new SwitchableClamd();
+    failing.down = true;
+    ClamdNode node = node("returning", failing);
+    ClamdNode other = node("other", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(node, other), new ClamAVClusterConfig()
+        .setMaxConsecutiveFailures(1).setBaseEjectionTime(50).setWarmUpTime(5000))) {
+      scan(cluster, 1);
+      failing.down = false;
+      awaitEjected(cluster, node, false);
+      scan(cluster, 100);
+      // round-robin would give it 50
+      assertTrue(node.getScanCount() + " scans", node.getScanCount() < 40);
+      assertEquals(101, node.getScanCount() + other.getScanCount());
+    }
+  }
+
+  @Test
+  public void testLastNodeIsNotEjected() {
+    SwitchableClamd failing = new SwitchableClamd();
+    failing.down = true;
+    ClamdNode node = node("only", failing);
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Collections.singletonList(node),
+        new ClamAVClusterConfig().setMaxConsecutiveFailures(1))) {
+      scan(cluster, 3);
+      assertEquals(3, node.getScanCount());
+      assertEquals(Collections.singletonList(node), cluster.getAvailableNodes());
+    }
+  }
+
+  @Test
+  public void testFailingInputDoesNotEject() throws IOException {
+    ClamdNode node = node("node", new LoopbackTransport());
+    ClamdNode other = node("other", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(node, other),
+        new ClamAVClusterConfig().setMaxConsecutiveFailures(1))) {
+      for (int i = 0; i < 4; i++) {
+        try {
+          cluster.scanResult(abortedUpload());
+          fail("input did not fail");
+        } catch (IOException e) {
+          assertEquals("Connection reset by client", e.getMessage());
+        }
+      }
+      assertEquals(2, node.getScanCount());
+      assertEquals(0, node.getFailureCount());
+      assertEquals(0, other.getFailureCount());
+      assertEquals(2, cluster.getAvailableNodes().size());
+    }
+  }
+
+  @Test
+  public void testMissingFileDoesNotEject() {
+    ClamdNode node = node("node", new LoopbackTransport());
+    ClamdNode other = node("other", new LoopbackTransport());
+    Path missing = Paths.get("does-not-exist-" + System.nanoTime());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(node, other),
+        new ClamAVClusterConfig().setMaxConsecutiveFailures(1))) {
+      for (int i = 0; i < 4; i++) {
+        try {
+          cluster.scanResult(missing);
+          fail("missing file was scanned");
+        } catch (IOException e) {
+          assertTrue(e instanceof NoSuchFileException);
+        }
+      }
+      assertEquals(0, node.getFailureCount());
+      assertEquals(0, other.getFailureCount());
+      assertEquals(2, cluster.getAvailableNodes().size());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ScanResult;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgedScanTest {
+
+  private static final byte[] DATA = new byte[10000];
+
+  private final FakeClamd slow;
+  private final FakeClamd fast;
+
+  public HedgedScanTest() throws IOException {
+    slow = new FakeClamd();
+    fast = new FakeClamd();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    slow.close();
+    fast.close();
+  }
+
+  private ClamAVClusterClient cluster(double budget) {
+    // round-robin, so every other scan goes to the node that is about to stall
+    return new ClamAVClusterClient(Arrays.asList(slow.node("slow"), fast.node("fast")),
+        new ClamAVClusterConfig().setHedgePercentile(90).setHedgeBudget(budget));
+  }
+
+  private static void warmUp(ClamAVClusterClient cluster) throws IOException {
+    for (int i = 0; i < 40; i++) {
+      assertSame(ScanResult.CLEAN, cluster.scanResult(DATA));
+    }
+  }
+
+  @Test
+  public void testStalledScanIsHedged() throws Exception {
+    try (ClamAVClusterClient cluster = cluster(0.5)) {
+      warmUp(cluster);
+      // jitter alone may have hedged a few of the warm-up scans
+      long hedges = cluster.getHedgeCount();
+      int fastScans = fast.scans();
+      slow.setScanDelay(3000);
+      long start = System.currentTimeMillis();
+      assertSame(ScanResult.CLEAN, cluster.scanResult(DATA));
+      assertTrue(System.currentTimeMillis() - start < 2000);
+      assertEquals(hedges + 1, cluster.getHedgeCount());
+      assertEquals(fastScans + 1, fast.scans());
+      // the stalled scan's connection is closed
+      long deadline = System.currentTimeMillis() + 2000;
+      while (slow.abandoned() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, slow.abandoned());
+    }
+  }
+
+  @Test
+  public void testBudgetLimitsHedges() throws Exception {
+    // 40 scans earn 0.4 hedges
+    try (ClamAVClusterClient cluster = cluster(0.01)) {
+      warmUp(cluster);
+      slow.setScanDelay(300);
+      long start = System.currentTimeMillis();
+      assertSame(ScanResult.CLEAN, cluster.scanResult(DATA));
+      assertTrue(System.currentTimeMillis() - start >= 300);
+      assertEquals(0, cluster.getHedgeCount());
+      assertEquals(20, fast.scans());
+    }
+  }
+
+  @Test
+  public void testFilesAreScanned() throws Exception {
+    Path file = Files.createTempFile("hedged", ".bin");
+    try (ClamAVClusterClient cluster = cluster(0.1)) {
+      Files.write(file, DATA);
+      assertSame(ScanResult.CLEAN, cluster.scanResult(file));
+      assertSame(ScanResult.CLEAN, cluster.scanResult(file));
+      assertEquals(1, slow.scans());
+      assertEquals(1, fast.scans());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testInterruptIsKept() throws Exception {
+    try (ClamAVClusterClient cluster = cluster(0.1)) {
+      warmUp(cluster);
+      slow.setScanDelay(3000);
+      fast.setScanDelay(3000);
+      Thread.currentThread().interrupt();
+      try {
+        cluster.scanResult(DATA);
+        fail("not interrupted");
+      } catch (InterruptedIOException e) {
+        assertTrue(Thread.interrupted());
+      }
+    }
+  }
+}
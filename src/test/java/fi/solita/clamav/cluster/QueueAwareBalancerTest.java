@@ -0,0 +1,105 @@
+package fi.solita.clamav.cluster;
+
+import fi.solita.clamav.ClamAVClientConfig;
+import fi.solita.clamav.ClamdStats;
+import fi.solita.clamav.LoopbackTransport;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueueAwareBalancerTest {
+
+  private static final byte[] DATA = "some data".getBytes();
+
+  private static String stats(int live, int idle, int queued) {
+    return "POOLS: 1\n\nSTATE: VALID PRIMARY\nTHREADS: live " + live + "  idle " + idle + " max 10 idle-timeout 30\n"
+        + "QUEUE: " + queued + " items\n\tSTATS 0.000012 \n\nMEMSTATS: heap N/A mmap N/A used N/A free N/A "
+        + "releasable N/A pools 1 pools_used 0.000M pools_total 0.000M\nEND";
+  }
+
+  private static ClamdNode node(String name, LoopbackTransport clamd) {
+    return new ClamdNode(name, clamd, new ClamAVClientConfig().setReadTimeout(5000), 1);
+  }
+
+  private static void awaitStats(ClamdNode node, int queued) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (node.getStats() == null || node.getStats().getQueueLength() != queued) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError(node + " not polled");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testAvoidsQueueingNode() throws Exception {
+    LoopbackTransport busyClamd = new LoopbackTransport();
+    busyClamd.setStats(stats(10, 0, 5));
+    LoopbackTransport idleClamd = new LoopbackTransport();
+    idleClamd.setStats(stats(3, 2, 0));
+    ClamdNode busy = node("busy", busyClamd);
+    ClamdNode idle = node("idle", idleClamd);
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(busy, idle), new ClamAVClusterConfig()
+        .setLoadBalancer(new QueueAwareBalancer()).setStatsPollInterval(10))) {
+      awaitStats(busy, 5);
+      awaitStats(idle, 0);
+      for (int i = 0; i < 10; i++) {
+        cluster.scanResult(DATA);
+      }
+      assertEquals(0, busy.getScanCount());
+      assertEquals(10, idle.getScanCount());
+
+      // the queue moves over
+      busyClamd.setStats(stats(1, 0, 0));
+      idleClamd.setStats(stats(10, 0, 8));
+      awaitStats(busy, 0);
+      awaitStats(idle, 8);
+      cluster.scanResult(DATA);
+      assertEquals(1, busy.getScanCount());
+    }
+  }
+
+  @Test
+  public void testCountsScansSincePoll() throws Exception {
+    LoopbackTransport clamd = new LoopbackTransport();
+    clamd.setScanDelay(200);
+    ClamdNode node = node("node", clamd);
+    node.statsPolled(ClamdStats.parse(stats(3, 1, 0)));
+    assertEquals(9, node.freeThreads());
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      Future<?> scan = executor.submit(() -> node.scan(client -> client.scanResult(DATA)));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (node.getOutstanding() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals(8, node.freeThreads());
+      scan.get();
+      assertEquals(9, node.freeThreads());
+    } finally {
+      executor.shutdown();
+      node.close();
+    }
+  }
+
+  @Test
+  public void testFallsBackWithoutStats() throws Exception {
+    ClamdNode a = node("a", new LoopbackTransport());
+    ClamdNode b = node("b", new LoopbackTransport());
+    try (ClamAVClusterClient cluster = new ClamAVClusterClient(Arrays.asList(a, b), new ClamAVClusterConfig()
+        .setLoadBalancer(new QueueAwareBalancer()))) {
+      for (int i = 0; i < 10; i++) {
+        cluster.scanResult(DATA);
+      }
+      assertNull(a.getStats());
+      assertEquals(5, a.getScanCount());
+      assertEquals(5, b.getScanCount());
+    }
+  }
+}